@@ -1,14 +1,19 @@
 package com.pngencoder;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.zip.Deflater;
 
 /**
@@ -27,27 +32,42 @@ public class PngEncoder {
     private final BufferedImage bufferedImage;
     private final int compressionLevel;
     private final boolean multiThreadedCompressionEnabled;
-    private final PngEncoderSrgbRenderingIntent srgbRenderingIntent;
-    private final PngEncoderPhysicalPixelDimensions physicalPixelDimensions;
+    private final PngEncoderAncillaryChunks ancillaryChunks;
 
     private final boolean usePredictorEncoding;
+    private final PngEncoderImageHeader imageHeader;
+    private final PngEncoderRowSource rowSource;
+    private final Rectangle region;
+    private final boolean usePaletteReduction;
+    private final boolean useLosslessReduction;
+    private final PngEncoderQuantization quantization;
+    private final PngEncoderFlushPolicy flushPolicy;
 
     private PngEncoder(BufferedImage bufferedImage, int compressionLevel, boolean multiThreadedCompressionEnabled,
-            PngEncoderSrgbRenderingIntent srgbRenderingIntent,
-            PngEncoderPhysicalPixelDimensions physicalPixelDimensions, boolean usePredictorEncoding) {
+            PngEncoderAncillaryChunks ancillaryChunks, boolean usePredictorEncoding,
+            PngEncoderImageHeader imageHeader, PngEncoderRowSource rowSource, Rectangle region,
+            boolean usePaletteReduction, boolean useLosslessReduction, PngEncoderQuantization quantization,
+            PngEncoderFlushPolicy flushPolicy) {
         this.bufferedImage = bufferedImage;
         this.compressionLevel = PngEncoderVerificationUtil.verifyCompressionLevel(compressionLevel);
         this.multiThreadedCompressionEnabled = multiThreadedCompressionEnabled;
-        this.srgbRenderingIntent = srgbRenderingIntent;
-        this.physicalPixelDimensions = physicalPixelDimensions;
+        this.ancillaryChunks = ancillaryChunks;
         this.usePredictorEncoding = usePredictorEncoding;
+        this.imageHeader = imageHeader;
+        this.rowSource = rowSource;
+        this.region = region;
+        this.usePaletteReduction = usePaletteReduction;
+        this.useLosslessReduction = useLosslessReduction;
+        this.quantization = quantization;
+        this.flushPolicy = flushPolicy;
     }
 
     /**
      * Constructs an empty PngEncoder. Usually combined with methods named with*.
      */
     public PngEncoder() {
-        this(null, DEFAULT_COMPRESSION_LEVEL, true, null, null, false);
+        this(null, DEFAULT_COMPRESSION_LEVEL, true, PngEncoderAncillaryChunks.NONE, false, null, null, null, false, false, null,
+                PngEncoderFlushPolicy.AT_END);
     }
 
     /**
@@ -58,8 +78,27 @@ public class PngEncoder {
      * @return a new PngEncoder
      */
     public PngEncoder withBufferedImage(BufferedImage bufferedImage) {
-        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding);
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, null, null, region,
+                usePaletteReduction, useLosslessReduction, quantization, flushPolicy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except the image to encode.
+     * The new PngEncoder will pull the rows of the image from {@code rowSource} instead of using a {@code BufferedImage}.
+     * <p>
+     * The image never has to exist fully in memory. The rows are requested one at a time in the invoking thread,
+     * while the compression runs in parallel just as for a {@code BufferedImage}.
+     *
+     * @param imageHeader the size and pixel layout of the image
+     * @param rowSource   supplies the rows of the image
+     * @return a new PngEncoder
+     */
+    public PngEncoder withRowSource(PngEncoderImageHeader imageHeader, PngEncoderRowSource rowSource) {
+        return new PngEncoder(null, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, Objects.requireNonNull(imageHeader, "imageHeader"),
+                Objects.requireNonNull(rowSource, "rowSource"), region, usePaletteReduction, useLosslessReduction,
+                quantization, flushPolicy);
     }
 
     /**
@@ -70,8 +109,9 @@ public class PngEncoder {
      * @return a new PngEncoder
      */
     public PngEncoder withCompressionLevel(int compressionLevel) {
-        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding);
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource, region,
+                usePaletteReduction, useLosslessReduction, quantization, flushPolicy);
     }
 
     /**
@@ -82,8 +122,9 @@ public class PngEncoder {
      * @return a new PngEncoder
      */
     public PngEncoder withMultiThreadedCompressionEnabled(boolean multiThreadedCompressionEnabled) {
-        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding);
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource, region,
+                usePaletteReduction, useLosslessReduction, quantization, flushPolicy);
     }
 
     /**
@@ -94,13 +135,17 @@ public class PngEncoder {
      * @return a new PngEncoder
      */
     public PngEncoder withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent srgbRenderingIntent) {
-        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding);
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled,
+                ancillaryChunks.withSrgbRenderingIntent(srgbRenderingIntent),
+                usePredictorEncoding, imageHeader, rowSource, region,
+                usePaletteReduction, useLosslessReduction, quantization, flushPolicy);
     }
 
     public PngEncoder withPhysicalPixelDimensions(PngEncoderPhysicalPixelDimensions physicalPixelDimensions) {
-        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions, usePredictorEncoding);
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled,
+                ancillaryChunks.withPhysicalPixelDimensions(physicalPixelDimensions),
+                usePredictorEncoding, imageHeader, rowSource, region,
+                usePaletteReduction, useLosslessReduction, quantization, flushPolicy);
     }
 
     /**
@@ -111,15 +156,124 @@ public class PngEncoder {
      * @return a new PngEncoder
      */
     public PngEncoder withPredictorEncoding(boolean usePredictorEncoding) {
-        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, srgbRenderingIntent,
-                physicalPixelDimensions,
-                usePredictorEncoding);
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource, region,
+                usePaletteReduction, useLosslessReduction, quantization, flushPolicy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code region}.
+     * The new PngEncoder will only encode the provided {@code region} of the image.
+     * <p>
+     * The region is read in place, without creating a subimage or copying any pixels. This makes it
+     * efficient to encode many regions of one large image with the same PngEncoder.
+     * The region only applies to a {@code BufferedImage}, not to a row source.
+     *
+     * @param region the part of the image to encode, or null to encode the whole image
+     * @return a new PngEncoder
+     */
+    public PngEncoder withRegion(Rectangle region) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource,
+                region == null ? null : new Rectangle(region), usePaletteReduction, useLosslessReduction,
+                quantization, flushPolicy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code usePaletteReduction}.
+     * The new PngEncoder will use the provided {@code usePaletteReduction}.
+     * <p>
+     * With palette reduction, the colors of an 8 bit RGB or RGBA image are counted before encoding it. When there
+     * are 256 or fewer, the image is stored as a palette image with 1, 2, 4 or 8 bits per pixel instead. This
+     * usually makes images like icons or screenshots several times smaller, and faster to compress.
+     * The predictor encoding is not used for palette images. Images with more colors are encoded as usual,
+     * after counting a part of them. Palette reduction only applies to a {@code BufferedImage}, not to a row source.
+     *
+     * @param usePaletteReduction true if images with few colors should be stored as palette images
+     * @return a new PngEncoder
+     */
+    public PngEncoder withPaletteReduction(boolean usePaletteReduction) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource, region, usePaletteReduction,
+                useLosslessReduction, quantization, flushPolicy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code useLosslessReduction}.
+     * The new PngEncoder will use the provided {@code useLosslessReduction}.
+     * <p>
+     * With lossless reduction, every pixel of the image is looked at before encoding it, to leave out what carries
+     * no information: the alpha channel of an image without translucent pixels, two of the three color channels of
+     * an image which only has gray pixels, and the low byte of 16 bit samples which are 8 bit samples scaled up.
+     * When the alpha channel only masks out pixels of a single color, which no opaque pixel has, a tRNS chunk
+     * naming that color replaces the alpha channel.
+     * The decoded image is exactly the same, but there is less data to compress. The analysis runs in parallel
+     * when multithreaded compression is enabled. Lossless reduction only applies to a {@code BufferedImage}, not to
+     * a row source.
+     *
+     * @param useLosslessReduction true if channels and bits without information should be left out
+     * @return a new PngEncoder
+     */
+    public PngEncoder withLosslessReduction(boolean useLosslessReduction) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource, region, usePaletteReduction,
+                useLosslessReduction, quantization, flushPolicy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code quantization}.
+     * The new PngEncoder will use the provided {@code quantization}.
+     * <p>
+     * With a quantization, the colors of an 8 bit RGB or RGBA image are reduced to a palette of at most
+     * {@link PngEncoderQuantization#getMaxColors()} colors, and the image is stored as an 8 bit palette image.
+     * This is lossy, but makes photos and previews several times smaller. Images which have no more colors than
+     * the palette can hold are stored without any loss. Other images, like gray or 16 bit images, are encoded as
+     * usual. Quantization only applies to a {@code BufferedImage}, not to a row source.
+     *
+     * @param quantization the quantization to apply, or null to keep all colors
+     * @return a new PngEncoder
+     */
+    public PngEncoder withQuantization(PngEncoderQuantization quantization) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource, region, usePaletteReduction,
+                useLosslessReduction, quantization, flushPolicy);
+    }
+
+    /**
+     * Returns a new PngEncoder which has the same configuration as this one except {@code flushPolicy}.
+     * The new PngEncoder will flush the output stream as the provided {@code flushPolicy} says.
+     * <p>
+     * Flushing after every chunk lowers the time to the first byte when the output stream buffers, e.g. for a
+     * streamed HTTP response. It does not change the encoded bytes.
+     *
+     * @param flushPolicy when to flush the output stream
+     * @return a new PngEncoder
+     */
+    public PngEncoder withFlushPolicy(PngEncoderFlushPolicy flushPolicy) {
+        return new PngEncoder(bufferedImage, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks,
+                usePredictorEncoding, imageHeader, rowSource, region, usePaletteReduction,
+                useLosslessReduction, quantization, Objects.requireNonNull(flushPolicy, "flushPolicy"));
     }
 
     public BufferedImage getBufferedImage() {
         return bufferedImage;
     }
 
+    public PngEncoderImageHeader getImageHeader() {
+        return imageHeader;
+    }
+
+    public PngEncoderRowSource getRowSource() {
+        return rowSource;
+    }
+
+    /**
+     * @return the part of the image to encode, or null if the whole image is encoded
+     */
+    public Rectangle getRegion() {
+        return region == null ? null : new Rectangle(region);
+    }
+
     /**
      * @return true if the predictor encoding is enabled.
      */
@@ -127,6 +281,31 @@ public class PngEncoder {
         return usePredictorEncoding;
     }
 
+    /**
+     * @return true if images with few colors are stored as palette images.
+     */
+    public boolean isPaletteReductionEnabled() {
+        return usePaletteReduction;
+    }
+
+    /**
+     * @return true if channels and bits without information are left out.
+     */
+    public boolean isLosslessReductionEnabled() {
+        return useLosslessReduction;
+    }
+
+    /**
+     * @return the quantization applied to the colors of images, or null if all colors are kept.
+     */
+    public PngEncoderQuantization getQuantization() {
+        return quantization;
+    }
+
+    public PngEncoderFlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
     public int getCompressionLevel() {
         return compressionLevel;
     }
@@ -136,7 +315,7 @@ public class PngEncoder {
     }
 
     public PngEncoderSrgbRenderingIntent getSrgbRenderingIntent() {
-        return srgbRenderingIntent;
+        return ancillaryChunks.srgbRenderingIntent;
     }
 
     /**
@@ -144,20 +323,111 @@ public class PngEncoder {
      *
      * @param outputStream destination of the encoded data
      * @throws NullPointerException if the image has not been set.
+     * @throws IllegalArgumentException if the region is not within the image.
      * @return number of bytes written
      */
     public int toStream(OutputStream outputStream) {
-        BufferedImage actualBufferedImage = bufferedImage;
+        if (rowSource != null) {
+            try {
+                return PngEncoderLogic.encode(imageHeader, rowSource, getFlushingStream(outputStream), compressionLevel,
+                        multiThreadedCompressionEnabled, ancillaryChunks, isPredictorEncodingEnabled());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        BufferedImage actualBufferedImage = getEncodableImage();
+
+        try {
+            return PngEncoderLogic.encode(actualBufferedImage, region, getFlushingStream(outputStream), compressionLevel,
+                    multiThreadedCompressionEnabled, ancillaryChunks, isPredictorEncodingEnabled(),
+                    isPaletteReductionEnabled(), isLosslessReductionEnabled(), quantization);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private OutputStream getFlushingStream(OutputStream outputStream) {
+        if (flushPolicy == PngEncoderFlushPolicy.EVERY_CHUNK && outputStream != null) {
+            return new PngEncoderChunkFlushingOutputStream(outputStream);
+        }
+        return outputStream;
+    }
 
+    private BufferedImage getEncodableImage() {
         if (bufferedImage.getType() == BufferedImage.TYPE_4BYTE_ABGR_PRE) {
             // This is a hack. We don't really support TYPE_4BYTE_ABGR_PRE yet, but we can convert it to something that can be encoded.
             // It would probably be better to convert it manually.
-            actualBufferedImage = PngEncoderBufferedImageConverter.ensureType(bufferedImage, PngEncoderBufferedImageType.TYPE_4BYTE_ABGR);
+            return PngEncoderBufferedImageConverter.ensureType(bufferedImage, PngEncoderBufferedImageType.TYPE_4BYTE_ABGR);
         }
+        return bufferedImage;
+    }
+
+    /**
+     * Encodes the image to outputStream without blocking the calling thread.
+     * <p>
+     * The image is encoded by the threads of the encoder, which also write to {@code outputStream}. No thread waits
+     * for the compression of the image, so this can be called from threads which must never block, such as event loops.
+     * Neither the image nor the output stream may be used by the caller until the future has completed.
+     * The optional analysis and quantization of the image run in a single thread.
+     *
+     * @param outputStream destination of the encoded data
+     * @throws NullPointerException if the image has not been set.
+     * @return a future of the number of bytes written, which completes exceptionally with an
+     * {@link UncheckedIOException} instead of an IOException
+     */
+    public CompletableFuture<Integer> toStreamAsync(OutputStream outputStream) {
+        Objects.requireNonNull(outputStream, "outputStream");
+        // The analysis and quantization run in one of the threads of the encoder, which must not wait for
+        // tasks queued behind it.
+        return PngEncoderAsyncEncoder.encode(getResolver(false), getFlushingStream(outputStream), compressionLevel,
+                multiThreadedCompressionEnabled, ancillaryChunks);
+    }
 
+    /**
+     * Encodes the image on demand, one PNG chunk at a time.
+     * <p>
+     * The chunks are the signature, the header chunks, every IDAT chunk and IEND. The image is encoded in the thread
+     * calling {@code hasNext} or {@code next}, and only as far as it takes to complete the next chunk, so the first
+     * chunks are available long before a large image has been compressed. Multithreaded compression runs ahead by
+     * a bounded number of segments. The iterator can be handed to a reactive stream, e.g. as a publisher emitting a
+     * chunk per requested item. An iteration abandoned before the end must be closed, so that the deflater
+     * borrowed for the image is given back.
+     *
+     * @throws NullPointerException if the image has not been set.
+     * @return an iterator over the chunks, which throws {@link UncheckedIOException} instead of IOException
+     */
+    public PngEncoderChunkIterator toChunks() {
+        return new PngEncoderChunkIterator(getResolver(multiThreadedCompressionEnabled), compressionLevel,
+                multiThreadedCompressionEnabled, ancillaryChunks);
+    }
+
+    private PngEncoderAsyncEncoder.Resolver getResolver(boolean multiThreadedAnalysisEnabled) {
+        if (rowSource != null) {
+            return () -> PngEncoderLogic.resolve(imageHeader, rowSource, isPredictorEncodingEnabled());
+        }
+        Objects.requireNonNull(bufferedImage, "bufferedImage");
+        return () -> PngEncoderLogic.resolve(getEncodableImage(), region, multiThreadedAnalysisEnabled,
+                isPredictorEncodingEnabled(), isPaletteReductionEnabled(), isLosslessReductionEnabled(), quantization);
+    }
+
+    /**
+     * Opens a writer which incrementally encodes an image from rows pushed by the caller.
+     * The image set on this PngEncoder, if any, is ignored.
+     * <p>
+     * The caller can produce the next rows while the previous ones are compressed in other threads.
+     * Writing blocks when the compression falls behind, which bounds the memory use.
+     * The header of the PNG is written to {@code outputStream} before this method returns.
+     *
+     * @param outputStream destination of the encoded data, which is not closed by the writer
+     * @param imageHeader  the size and pixel layout of the image
+     * @throws UncheckedIOException instead of IOException
+     * @return a writer accepting the rows of the image
+     */
+    public PngEncoderRowWriter openWriter(OutputStream outputStream, PngEncoderImageHeader imageHeader) {
         try {
-            return PngEncoderLogic.encode(actualBufferedImage, outputStream, compressionLevel,
-                    multiThreadedCompressionEnabled, srgbRenderingIntent, physicalPixelDimensions,
+            return new PngEncoderRowWriter(getFlushingStream(outputStream), imageHeader, compressionLevel,
+                    multiThreadedCompressionEnabled, ancillaryChunks,
                     isPredictorEncodingEnabled());
         } catch (IOException e) {
             throw new UncheckedIOException(e);
@@ -180,6 +450,30 @@ public class PngEncoder {
         }
     }
 
+    /**
+     * Encodes the image and saves data into {@code filePath} through memory mappings of the file.
+     * <p>
+     * Meant for very large images, e.g. panoramas of a gigabyte or more, where the many small writes of
+     * {@link #toFile(Path)} add up. The file is mapped in windows starting with the size given by
+     * {@link #estimateEncodedSize()}. The windows are released and the file is truncated to the encoded size at
+     * the end.
+     *
+     * @param filePath destination file where the encoded data will be written
+     * @throws NullPointerException if the image has not been set.
+     * @throws UncheckedIOException instead of IOException
+     * @return number of bytes written, which may exceed {@code Integer.MAX_VALUE}
+     */
+    public long toFileMapped(Path filePath) {
+        final long estimatedSize = estimateEncodedSize();
+        try (PngEncoderMappedFileOutputStream outputStream = new PngEncoderMappedFileOutputStream(filePath, estimatedSize)) {
+            toStream(outputStream);
+            // The count of toStream is an int, the file may well be larger.
+            return outputStream.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Encodes the image and saves data into {@code file}.
      *
@@ -211,8 +505,130 @@ public class PngEncoder {
      * @return encoded data
      */
     public byte[] toBytes() {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(64 * 1024);
+        PngEncoderSegmentedOutputStream outputStream = new PngEncoderSegmentedOutputStream();
         toStream(outputStream);
         return outputStream.toByteArray();
     }
+
+    /**
+     * Encodes the image into a buffer owned by the caller, starting at its position.
+     * <p>
+     * Reusing the same buffer for images of the same size, e.g. the frames of a screen capture, avoids allocating
+     * a new output array for every image.
+     *
+     * @param dst destination of the encoded data, which may be a direct buffer
+     * @throws NullPointerException if the image has not been set.
+     * @throws BufferOverflowException if the encoded data does not fit into the remaining buffer. The position of
+     *                                 {@code dst} is left unchanged, the bytes after it are undefined.
+     * @return number of bytes written, by which the position of {@code dst} has advanced
+     */
+    public int toBuffer(ByteBuffer dst) {
+        final int position = dst.position();
+        try {
+            return toStream(new PngEncoderByteBufferOutputStream(dst));
+        } catch (BufferOverflowException e) {
+            dst.position(position);
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes the image into an array owned by the caller, see {@link #toBuffer(ByteBuffer)}.
+     *
+     * @param dst destination of the encoded data
+     * @param off where in {@code dst} the encoded data starts
+     * @throws NullPointerException if the image has not been set.
+     * @throws BufferOverflowException if the encoded data does not fit into {@code dst} after {@code off}.
+     * @return number of bytes written
+     */
+    public int toArray(byte[] dst, int off) {
+        return toBuffer(ByteBuffer.wrap(dst, off, dst.length - off));
+    }
+
+    /**
+     * Returns an upper bound of the size of any image of this size and pixel layout, when encoded without ancillary
+     * chunks such as sRGB or pHYs. A buffer of this size can be reused with {@link #toBuffer(ByteBuffer)} for all
+     * such images.
+     *
+     * @param imageHeader the size and pixel layout of the images
+     * @return the most bytes any of the images is encoded to
+     */
+    public static long maxEncodedSize(PngEncoderImageHeader imageHeader) {
+        try {
+            return PngEncoderLogic.getMaxEncodedSize(imageHeader.toEncodingMetaInfo(), imageHeader.getWidth(),
+                    imageHeader.getHeight(), PngEncoderAncillaryChunks.NONE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns an upper bound of the size of the image with the settings of this encoder, without encoding it.
+     * Only the size and pixel layout of the image are looked at, not its pixels, so the actual file is usually much
+     * smaller.
+     *
+     * @throws NullPointerException if the image has not been set.
+     * @throws IllegalArgumentException if the region is not within the image.
+     * @return the most bytes the image is encoded to
+     */
+    public long estimateEncodedSize() {
+        try {
+            if (rowSource != null) {
+                return PngEncoderLogic.getMaxEncodedSize(imageHeader.toEncodingMetaInfo(), imageHeader.getWidth(),
+                        imageHeader.getHeight(), ancillaryChunks);
+            }
+            Objects.requireNonNull(bufferedImage, "bufferedImage");
+            final BufferedImage actualBufferedImage = getEncodableImage();
+            Rectangle actualRegion = region;
+            if (actualRegion == null) {
+                actualRegion = new Rectangle(0, 0, actualBufferedImage.getWidth(), actualBufferedImage.getHeight());
+            } else {
+                PngEncoderVerificationUtil.verifyRegion(actualRegion, actualBufferedImage.getWidth(),
+                        actualBufferedImage.getHeight());
+            }
+            final PngEncoderEncodingPlan plan = PngEncoderEncodingPlan.of(actualBufferedImage, actualRegion.x,
+                    actualRegion.width);
+            return PngEncoderLogic.getMaxEncodedSize(plan.metaInfo, actualRegion.width, actualRegion.height,
+                    ancillaryChunks);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes the image and returns data as a single {@code ByteBuffer}.
+     * The data is only copied into the buffer if it did not fit into the first block it was written to.
+     *
+     * @throws NullPointerException if the image has not been set.
+     * @return encoded data
+     */
+    public ByteBuffer toByteBuffer() {
+        PngEncoderSegmentedOutputStream outputStream = new PngEncoderSegmentedOutputStream();
+        toStream(outputStream);
+        return outputStream.toByteBuffer();
+    }
+
+    /**
+     * Encodes the image and returns data as the buffers it was written to, in order, without ever copying it.
+     * This suits channels with gathering writes, e.g. {@link java.nio.channels.GatheringByteChannel}.
+     *
+     * @throws NullPointerException if the image has not been set.
+     * @return encoded data
+     */
+    public List<ByteBuffer> toByteBuffers() {
+        PngEncoderSegmentedOutputStream outputStream = new PngEncoderSegmentedOutputStream();
+        toStream(outputStream);
+        return outputStream.toByteBuffers();
+    }
+
+    /**
+     * Encodes the image without blocking the calling thread, see {@link #toStreamAsync(OutputStream)}.
+     *
+     * @throws NullPointerException if the image has not been set.
+     * @return a future of the encoded data
+     */
+    public CompletableFuture<byte[]> toBytesAsync() {
+        PngEncoderSegmentedOutputStream outputStream = new PngEncoderSegmentedOutputStream();
+        return toStreamAsync(outputStream).thenApply(count -> outputStream.toByteArray());
+    }
 }
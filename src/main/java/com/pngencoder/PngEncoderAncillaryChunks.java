@@ -0,0 +1,66 @@
+package com.pngencoder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * The chunks between IHDR and the image data which only depend on the configuration of the PngEncoder, and not on
+ * the image. They are built once when the configuration changes, so encoding many small images with one PngEncoder
+ * only has to write the finished bytes.
+ */
+class PngEncoderAncillaryChunks {
+    static final PngEncoderAncillaryChunks NONE = new PngEncoderAncillaryChunks(null, null);
+
+    final PngEncoderSrgbRenderingIntent srgbRenderingIntent;
+    final PngEncoderPhysicalPixelDimensions physicalPixelDimensions;
+    private final byte[] chunks;
+    private final byte[] chunksWithoutSrgb;
+
+    private PngEncoderAncillaryChunks(PngEncoderSrgbRenderingIntent srgbRenderingIntent,
+            PngEncoderPhysicalPixelDimensions physicalPixelDimensions) {
+        this.srgbRenderingIntent = srgbRenderingIntent;
+        this.physicalPixelDimensions = physicalPixelDimensions;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (srgbRenderingIntent != null) {
+            writeChunk(out, "sRGB", new byte[]{srgbRenderingIntent.getValue()});
+            writeChunk(out, "gAMA", PngEncoderLogic.GAMA_SRGB_VALUE);
+            writeChunk(out, "cHRM", PngEncoderLogic.CHRM_SRGB_VALUE);
+        }
+        int srgbLength = out.size();
+        if (physicalPixelDimensions != null) {
+            writeChunk(out, "pHYs", PngEncoderLogic.getPhysicalPixelDimensions(physicalPixelDimensions));
+        }
+        this.chunks = out.toByteArray();
+        this.chunksWithoutSrgb = srgbLength == 0 ? chunks : Arrays.copyOfRange(chunks, srgbLength, chunks.length);
+    }
+
+    private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data) {
+        byte[] chunk = PngEncoderLogic.asChunk(type, data);
+        out.write(chunk, 0, chunk.length);
+    }
+
+    PngEncoderAncillaryChunks withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent srgbRenderingIntent) {
+        return of(srgbRenderingIntent, physicalPixelDimensions);
+    }
+
+    PngEncoderAncillaryChunks withPhysicalPixelDimensions(PngEncoderPhysicalPixelDimensions physicalPixelDimensions) {
+        return of(srgbRenderingIntent, physicalPixelDimensions);
+    }
+
+    private static PngEncoderAncillaryChunks of(PngEncoderSrgbRenderingIntent srgbRenderingIntent,
+            PngEncoderPhysicalPixelDimensions physicalPixelDimensions) {
+        if (srgbRenderingIntent == null && physicalPixelDimensions == null) {
+            return NONE;
+        }
+        return new PngEncoderAncillaryChunks(srgbRenderingIntent, physicalPixelDimensions);
+    }
+
+    /**
+     * Returns the chunks in the order they are written. An image with a color profile gets an iCCP chunk instead
+     * of the sRGB, gAMA and cHRM chunks.
+     */
+    byte[] get(boolean hasColorProfile) {
+        return hasColorProfile ? chunksWithoutSrgb : chunks;
+    }
+}
@@ -0,0 +1,132 @@
+package com.pngencoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Encodes an image without blocking the calling thread, and without parking any thread while segments are compressed.
+ * <p>
+ * All work runs in the threads of {@link PngEncoderDeflaterExecutorService}. The rows are streamed in slices of about
+ * one segment. When enough segments are waiting to be written, the slice task ends instead of waiting, and the next
+ * slice is streamed by a new task once the oldest segment has been written. The segments are written to the output
+ * stream by the threads which finish compressing them, in order.
+ */
+class PngEncoderAsyncEncoder {
+    /**
+     * Resolves the image in a thread of the deflater executor, then encodes it.
+     */
+    interface Resolver {
+        PngEncoderLogic.ResolvedImage resolve() throws IOException;
+    }
+
+    /**
+     * @return a future of the number of bytes written
+     */
+    static CompletableFuture<Integer> encode(Resolver resolver, OutputStream outputStream, int compressionLevel,
+            boolean multiThreadedCompressionEnabled, PngEncoderAncillaryChunks ancillaryChunks) {
+        final Executor executor = PngEncoderDeflaterExecutorService.getInstance();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return resolver.resolve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor).thenCompose(image -> {
+            try {
+                final long estimatedBytes = (long) image.metaInfo.rowByteSize * image.height;
+                final int segmentMaxLengthOriginal = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginal(estimatedBytes);
+                if (estimatedBytes <= segmentMaxLengthOriginal || !multiThreadedCompressionEnabled) {
+                    // Compressed in this thread, there are no segments to wait for.
+                    return CompletableFuture.completedFuture(PngEncoderLogic.encode(image, outputStream,
+                            compressionLevel, false, ancillaryChunks));
+                }
+                return new PngEncoderAsyncEncoder(image, outputStream, compressionLevel, segmentMaxLengthOriginal,
+                        ancillaryChunks, executor).start();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private final PngEncoderLogic.ResolvedImage image;
+    private final Executor executor;
+    private final PngEncoderCountingOutputStream countingOutputStream;
+    private final PngEncoderDeflaterOutputStream deflaterOutputStream;
+    private final PngEncoderScanlineUtil.SliceLineConsumer sliceLineConsumer;
+    private final int heightPerSlice;
+    private final CompletableFuture<Integer> result;
+    // The next row to stream, relative to the start of the image.
+    private int y;
+
+    private PngEncoderAsyncEncoder(PngEncoderLogic.ResolvedImage image, OutputStream outputStream,
+            int compressionLevel, int segmentMaxLengthOriginal, PngEncoderAncillaryChunks ancillaryChunks,
+            Executor executor) throws IOException {
+        Objects.requireNonNull(outputStream, "outputStream");
+        this.image = image;
+        this.executor = executor;
+        this.countingOutputStream = new PngEncoderCountingOutputStream(outputStream);
+        PngEncoderLogic.writeHeaderChunks(countingOutputStream, image.width, image.height, image.metaInfo,
+                ancillaryChunks);
+        this.deflaterOutputStream = new PngEncoderDeflaterOutputStream(
+                new PngEncoderIdatChunksOutputStream(countingOutputStream), compressionLevel, segmentMaxLengthOriginal,
+                new PngEncoderDeflaterBufferPool(PngEncoderDeflaterOutputStream.getSegmentMaxLengthDeflated(segmentMaxLengthOriginal)),
+                true);
+        this.sliceLineConsumer = new PngEncoderScanlineUtil.SliceLineConsumer(
+                PngEncoderLogic.getLineConsumer(image.metaInfo, deflaterOutputStream, image.usePredictor),
+                image.metaInfo.rowByteSize);
+        this.heightPerSlice = Math.max(1, segmentMaxLengthOriginal / image.metaInfo.rowByteSize);
+        this.result = new CompletableFuture<>();
+    }
+
+    private CompletableFuture<Integer> start() {
+        streamSlices();
+        return result;
+    }
+
+    /**
+     * Streams slices until the image is done or too many segments are waiting, and then returns.
+     */
+    private void streamSlices() {
+        try {
+            while (y < image.height) {
+                final CompletableFuture<Void> queueRoom = deflaterOutputStream.getQueueRoom();
+                if (queueRoom != null) {
+                    queueRoom.whenComplete((v, e) -> {
+                        if (e != null) {
+                            result.completeExceptionally(e);
+                        } else {
+                            executor.execute(this::streamSlices);
+                        }
+                    });
+                    return;
+                }
+                final int heightToStream = Math.min(heightPerSlice, image.height - y);
+                sliceLineConsumer.startSlice(heightToStream);
+                PngEncoderScanlineUtil.stream(image.extractor, image.yStart + y, heightToStream, sliceLineConsumer);
+                y += heightToStream;
+            }
+            deflaterOutputStream.finishAsync().whenComplete((v, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    countingOutputStream.write(PngEncoderLogic.FILE_ENDING);
+                    countingOutputStream.flush();
+                    result.complete(countingOutputStream.getCount());
+                } catch (IOException ioException) {
+                    result.completeExceptionally(new UncheckedIOException(ioException));
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(new UncheckedIOException(e));
+        } catch (Throwable e) {
+            // E.g. a row source which failed. The future has to complete in any case, nobody else would.
+            result.completeExceptionally(e);
+        }
+    }
+}
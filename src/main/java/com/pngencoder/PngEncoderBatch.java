@@ -0,0 +1,213 @@
+package com.pngencoder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Encodes many images with the settings of one PngEncoder, keeping all cores busy.
+ * <p>
+ * Small images are compressed in a single thread each, so encoding thousands of them one after another would use
+ * a single core. The batch encodes several images at the same time instead: small images as one task each, large
+ * images in segments just like {@link PngEncoder#toStreamAsync(OutputStream)}. All tasks share the threads of the
+ * encoder, which take the next task as soon as they are done with one, whatever its size.
+ * <p>
+ * Only a bounded number of images is in progress at any time, so a lazily produced stream of images is never
+ * held in memory as a whole. The results do not refer to the items, an image can be garbage collected as soon as
+ * it has been encoded.
+ */
+public class PngEncoderBatch {
+    // Enough images in progress for every thread to find a task when it is done with one.
+    static final int MAX_IMAGES_IN_PROGRESS = PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS * 2;
+
+    private final PngEncoder encoder;
+
+    /**
+     * @param encoder the settings every image is encoded with. Its image, if any, is ignored.
+     */
+    public PngEncoderBatch(PngEncoder encoder) {
+        this.encoder = Objects.requireNonNull(encoder, "encoder");
+    }
+
+    /**
+     * Encodes the items and waits until all of them are done.
+     * A failed item does not stop the other items.
+     *
+     * @return the results in the order of the items
+     */
+    public List<Result> encode(Iterable<Item> items) {
+        return encode(items.iterator());
+    }
+
+    /**
+     * Encodes the items and waits until all of them are done. The stream is consumed as images complete.
+     *
+     * @return the results in the order of the items
+     */
+    public List<Result> encode(Stream<Item> items) {
+        return encode(items.iterator());
+    }
+
+    private List<Result> encode(Iterator<Item> items) {
+        final Semaphore inProgress = new Semaphore(MAX_IMAGES_IN_PROGRESS);
+        final List<CompletableFuture<Result>> futures = new ArrayList<>();
+        while (items.hasNext()) {
+            final Item item = Objects.requireNonNull(items.next(), "item");
+            inProgress.acquireUninterruptibly();
+            CompletableFuture<Result> future = encode(item, futures.size());
+            future.whenComplete((result, e) -> inProgress.release());
+            futures.add(future);
+        }
+
+        final List<Result> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<Result> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    private CompletableFuture<Result> encode(Item item, int index) {
+        final PngEncoderSegmentedOutputStream bytes;
+        final OutputStream outputStream;
+        // Only the destination is needed once the image is encoded, not the item holding it.
+        final boolean toFile = item.filePath != null;
+        try {
+            if (toFile) {
+                bytes = null;
+                outputStream = Files.newOutputStream(item.filePath);
+            } else if (item.outputStream != null) {
+                bytes = null;
+                outputStream = item.outputStream;
+            } else {
+                bytes = new PngEncoderSegmentedOutputStream();
+                outputStream = bytes;
+            }
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(new Result(index, 0, null, new UncheckedIOException(e)));
+        }
+
+        CompletableFuture<Integer> future;
+        try {
+            future = encoder.withBufferedImage(item.bufferedImage).toStreamAsync(outputStream);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return future.handle((byteCount, e) -> {
+            Throwable exception = e instanceof CompletionException ? e.getCause() : e;
+            if (toFile) {
+                try {
+                    outputStream.close();
+                } catch (IOException closeException) {
+                    if (exception == null) {
+                        exception = new UncheckedIOException(closeException);
+                    }
+                }
+            }
+            if (exception != null) {
+                return new Result(index, 0, null, exception);
+            }
+            return new Result(index, byteCount, bytes == null ? null : bytes.toByteArray(), null);
+        });
+    }
+
+    /**
+     * An image of the batch and where it is written to.
+     */
+    public static final class Item {
+        private final BufferedImage bufferedImage;
+        private final OutputStream outputStream;
+        private final Path filePath;
+
+        private Item(BufferedImage bufferedImage, OutputStream outputStream, Path filePath) {
+            this.bufferedImage = Objects.requireNonNull(bufferedImage, "bufferedImage");
+            this.outputStream = outputStream;
+            this.filePath = filePath;
+        }
+
+        /**
+         * The encoded image is available from {@link Result#getBytes()}.
+         */
+        public static Item toBytes(BufferedImage bufferedImage) {
+            return new Item(bufferedImage, null, null);
+        }
+
+        /**
+         * The encoded image is written to {@code outputStream}, which is not closed.
+         */
+        public static Item toStream(BufferedImage bufferedImage, OutputStream outputStream) {
+            return new Item(bufferedImage, Objects.requireNonNull(outputStream, "outputStream"), null);
+        }
+
+        /**
+         * The encoded image is saved into {@code filePath}.
+         */
+        public static Item toFile(BufferedImage bufferedImage, Path filePath) {
+            return new Item(bufferedImage, null, Objects.requireNonNull(filePath, "filePath"));
+        }
+
+        public BufferedImage getBufferedImage() {
+            return bufferedImage;
+        }
+    }
+
+    /**
+     * The outcome of encoding one item. It does not refer to the item, so that its image can be garbage collected.
+     */
+    public static final class Result {
+        private final int index;
+        private final int byteCount;
+        private final byte[] bytes;
+        private final Throwable exception;
+
+        private Result(int index, int byteCount, byte[] bytes, Throwable exception) {
+            this.index = index;
+            this.byteCount = byteCount;
+            this.bytes = bytes;
+            this.exception = exception;
+        }
+
+        /**
+         * @return the position of the item among the items of the batch, starting at 0
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public boolean isSuccessful() {
+            return exception == null;
+        }
+
+        /**
+         * @return the number of bytes written, or 0 if the item failed
+         */
+        public int getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * @return the encoded image of an item created with {@link Item#toBytes(BufferedImage)}, otherwise null
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return why the item failed, e.g. an {@link UncheckedIOException}, or null if it succeeded
+         */
+        public Throwable getException() {
+            return exception;
+        }
+    }
+}
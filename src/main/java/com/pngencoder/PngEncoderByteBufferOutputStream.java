@@ -0,0 +1,35 @@
+package com.pngencoder;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Writes into a buffer owned by the caller, which is never grown or replaced.
+ * <p>
+ * A write which does not fit into the remaining buffer throws {@link BufferOverflowException}, which stops the encode.
+ */
+class PngEncoderByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+
+    PngEncoderByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = Objects.requireNonNull(buffer, "buffer");
+    }
+
+    @Override
+    public void write(int b) {
+        if (!buffer.hasRemaining()) {
+            throw new BufferOverflowException();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (buffer.remaining() < len) {
+            throw new BufferOverflowException();
+        }
+        buffer.put(b, off, len);
+    }
+}
@@ -0,0 +1,60 @@
+package com.pngencoder;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Flushes the underlying stream whenever the signature or a chunk of the PNG has been written completely.
+ * <p>
+ * The chunks are recognized from their length fields, so this works for every way an image is encoded, whether the
+ * chunks are written at once or in pieces by several threads one after another.
+ */
+class PngEncoderChunkFlushingOutputStream extends FilterOutputStream {
+    private final byte[] lengthBytes = new byte[4];
+    // Bytes left of the signature or the chunk being written.
+    private long remaining;
+    // The bytes of the length of the next chunk which have been written, or -1 while within a chunk.
+    private int lengthCount;
+
+    PngEncoderChunkFlushingOutputStream(OutputStream out) {
+        super(Objects.requireNonNull(out, "out"));
+        this.remaining = PngEncoderLogic.FILE_BEGINNING.length;
+        this.lengthCount = -1;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        boolean chunkCompleted = false;
+        final int end = off + len;
+        while (off < end) {
+            if (lengthCount < 0) {
+                final int skipCount = (int) Math.min(remaining, end - off);
+                off += skipCount;
+                remaining -= skipCount;
+                if (remaining == 0) {
+                    chunkCompleted = true;
+                    lengthCount = 0;
+                }
+            } else {
+                lengthBytes[lengthCount++] = b[off++];
+                if (lengthCount == lengthBytes.length) {
+                    // The type and the CRC follow the data.
+                    remaining = (((lengthBytes[0] & 0xFFL) << 24) | ((lengthBytes[1] & 0xFF) << 16)
+                            | ((lengthBytes[2] & 0xFF) << 8) | (lengthBytes[3] & 0xFF)) + 8;
+                    lengthCount = -1;
+                }
+            }
+        }
+        if (chunkCompleted) {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.pngencoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes an image on demand, one PNG chunk at a time: the signature, the header chunks, every IDAT chunk and IEND.
+ * <p>
+ * The image is streamed in slices by the thread asking for the next chunk, only as many slices as it takes to
+ * complete a chunk. With multithreaded compression the segments queued for compression run ahead of that,
+ * but never further than the queue of the deflater output stream allows.
+ * <p>
+ * Obtained from {@link PngEncoder#toChunks()}. An iteration abandoned before the end must be closed, which gives
+ * back the resources held for the rest of the image and stops its compression. Closing it after the last chunk,
+ * or after a failure, does nothing.
+ */
+public class PngEncoderChunkIterator implements Iterator<ByteBuffer>, AutoCloseable {
+    private final PngEncoderAsyncEncoder.Resolver resolver;
+    private final int compressionLevel;
+    private final boolean multiThreadedCompressionEnabled;
+    private final PngEncoderAncillaryChunks ancillaryChunks;
+    private final ChunkOutputStream chunkOutputStream;
+    private PngEncoderLogic.ResolvedImage image;
+    private OutputStream deflaterOutputStream;
+    // Borrowed from PngEncoderDeflaterPool when the image is compressed in a single stream, otherwise null.
+    private Deflater deflater;
+    private PngEncoderScanlineUtil.SliceLineConsumer sliceLineConsumer;
+    private int heightPerSlice;
+    // The next row to stream, relative to the start of the image.
+    private int y;
+    private boolean finished;
+
+    PngEncoderChunkIterator(PngEncoderAsyncEncoder.Resolver resolver, int compressionLevel,
+            boolean multiThreadedCompressionEnabled, PngEncoderAncillaryChunks ancillaryChunks) {
+        this.resolver = resolver;
+        this.compressionLevel = compressionLevel;
+        this.multiThreadedCompressionEnabled = multiThreadedCompressionEnabled;
+        this.ancillaryChunks = ancillaryChunks;
+        this.chunkOutputStream = new ChunkOutputStream();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (chunkOutputStream.chunks.isEmpty() && !finished) {
+                encodeMore();
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        }
+        return !chunkOutputStream.chunks.isEmpty();
+    }
+
+    @Override
+    public ByteBuffer next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunkOutputStream.chunks.poll();
+    }
+
+    /**
+     * Ends the iteration, giving back the deflater borrowed for the image. The chunks not taken yet are dropped.
+     * With multithreaded compression the segments still waiting in the executor are skipped, and the ones being
+     * compressed are not written.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        chunkOutputStream.chunks.clear();
+        if (deflater != null) {
+            PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+            deflater = null;
+        } else if (deflaterOutputStream instanceof PngEncoderDeflaterOutputStream) {
+            ((PngEncoderDeflaterOutputStream) deflaterOutputStream).abandon();
+        }
+    }
+
+    private void encodeMore() throws IOException {
+        if (image == null) {
+            start();
+        } else if (y < image.height) {
+            final int heightToStream = Math.min(heightPerSlice, image.height - y);
+            sliceLineConsumer.startSlice(heightToStream);
+            PngEncoderScanlineUtil.stream(image.extractor, image.yStart + y, heightToStream, sliceLineConsumer);
+            y += heightToStream;
+        } else {
+            finish();
+        }
+    }
+
+    private void start() throws IOException {
+        image = resolver.resolve();
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = image.metaInfo;
+        final long estimatedBytes = (long) metaInfo.rowByteSize * image.height;
+        if (PngEncoderSmallImageEncoder.isSmallImage(metaInfo, image.height)) {
+            PngEncoderLogic.encode(image, chunkOutputStream, compressionLevel, false, ancillaryChunks);
+            finished = true;
+            return;
+        }
+
+        PngEncoderLogic.writeHeaderChunks(chunkOutputStream, image.width, image.height, metaInfo, ancillaryChunks);
+        final PngEncoderIdatChunksOutputStream idatChunksOutputStream = new PngEncoderIdatChunksOutputStream(chunkOutputStream);
+        final int segmentMaxLengthOriginal = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginal(estimatedBytes);
+        if (estimatedBytes <= segmentMaxLengthOriginal || !multiThreadedCompressionEnabled) {
+            deflater = PngEncoderDeflaterPool.borrow(compressionLevel);
+            deflaterOutputStream = new DeflaterOutputStream(idatChunksOutputStream, deflater);
+            // About one IDAT chunk per slice.
+            heightPerSlice = Math.max(1, PngEncoderIdatChunksOutputStream.DEFAULT_BUFFER_LENGTH / metaInfo.rowByteSize);
+        } else {
+            deflaterOutputStream = new PngEncoderDeflaterOutputStream(idatChunksOutputStream, compressionLevel,
+                    segmentMaxLengthOriginal);
+            heightPerSlice = Math.max(1, segmentMaxLengthOriginal / metaInfo.rowByteSize);
+        }
+        sliceLineConsumer = new PngEncoderScanlineUtil.SliceLineConsumer(
+                PngEncoderLogic.getLineConsumer(metaInfo, deflaterOutputStream, image.usePredictor),
+                metaInfo.rowByteSize);
+    }
+
+    private void finish() throws IOException {
+        finished = true;
+        if (deflater == null) {
+            ((PngEncoderDeflaterOutputStream) deflaterOutputStream).finish();
+        } else {
+            try {
+                ((DeflaterOutputStream) deflaterOutputStream).finish();
+                deflaterOutputStream.flush();
+            } finally {
+                PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+                deflater = null;
+            }
+        }
+        chunkOutputStream.write(PngEncoderLogic.FILE_ENDING);
+    }
+
+    /**
+     * Cuts the bytes written to it into the signature and the chunks of the file.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private final Queue<ByteBuffer> chunks = new ArrayDeque<>();
+        private boolean signatureDone;
+        // The chunk being written. First only its length and type, then the whole chunk when the length is known.
+        private byte[] chunk = new byte[PngEncoderLogic.FILE_BEGINNING.length];
+        private int count;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                final int toCopyCount = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, toCopyCount);
+                count += toCopyCount;
+                off += toCopyCount;
+                len -= toCopyCount;
+                if (count == chunk.length) {
+                    chunkFilled();
+                }
+            }
+        }
+
+        private void chunkFilled() {
+            if (signatureDone && chunk.length == 8) {
+                // Length and type are known, now the data and the CRC follow.
+                final int length = ByteBuffer.wrap(chunk).getInt();
+                chunk = Arrays.copyOf(chunk, 8 + length + 4);
+                return;
+            }
+            signatureDone = true;
+            chunks.offer(ByteBuffer.wrap(chunk));
+            chunk = new byte[8];
+            count = 0;
+        }
+    }
+}
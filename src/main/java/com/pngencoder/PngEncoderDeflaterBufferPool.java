@@ -1,7 +1,7 @@
 package com.pngencoder;
 
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 class PngEncoderDeflaterBufferPool {
     private final int bufferMaxLength;
@@ -9,7 +9,9 @@ class PngEncoderDeflaterBufferPool {
 
     PngEncoderDeflaterBufferPool(int bufferMaxLength) {
         this.bufferMaxLength = bufferMaxLength;
-        this.buffers = new LinkedList<>();
+        // Buffers are given back by the threads compressing the segments, and by the threads writing them when the
+        // stream is non-blocking.
+        this.buffers = new ConcurrentLinkedQueue<>();
     }
 
     public int getBufferMaxLength() {
@@ -0,0 +1,59 @@
+package com.pngencoder;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A segment task which is run by whichever thread claims it first: a thread of the executor, or the thread writing
+ * the segments while it waits for them.
+ * <p>
+ * A task still waiting in the executor means all of its threads are busy, possibly with the encodes of others.
+ * Compressing the segment in the waiting thread then adds no latency, and the executor skips the task later on.
+ */
+class PngEncoderDeflaterClaimableTask implements Runnable {
+    private final PngEncoderDeflaterSegmentTask task;
+    private final AtomicBoolean claimed;
+    private final CompletableFuture<PngEncoderDeflaterSegmentResult> future;
+
+    PngEncoderDeflaterClaimableTask(PngEncoderDeflaterSegmentTask task) {
+        this.task = Objects.requireNonNull(task, "task");
+        this.claimed = new AtomicBoolean();
+        this.future = new CompletableFuture<>();
+    }
+
+    @Override
+    public void run() {
+        tryRun();
+    }
+
+    /**
+     * Runs the task in this thread, unless another thread has claimed it.
+     *
+     * @return true if the task was run by this call
+     */
+    boolean tryRun() {
+        if (!claimed.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            future.complete(task.get());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the task from running, unless a thread has claimed it already.
+     */
+    void cancel() {
+        if (claimed.compareAndSet(false, true)) {
+            future.cancel(false);
+        }
+    }
+
+    CompletableFuture<PngEncoderDeflaterSegmentResult> getFuture() {
+        return future;
+    }
+}
@@ -2,6 +2,7 @@ package com.pngencoder;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class PngEncoderDeflaterExecutorService {
     public static int NUM_THREADS_IS_AVAILABLE_PROCESSORS = Runtime.getRuntime().availableProcessors();
@@ -10,10 +11,57 @@ class PngEncoderDeflaterExecutorService {
                 NUM_THREADS_IS_AVAILABLE_PROCESSORS,
                 PngEncoderDeflaterExecutorServiceThreadFactory.getInstance());
     }
+    // The segment tasks of all streams which have been submitted and not finished yet. A task claimed by the
+    // writing thread stays counted until a thread of the executor takes it from the queue and skips it. The async,
+    // analysis and quantization tasks also take threads without being counted, so a thread being free is only
+    // an estimate.
+    private static final AtomicInteger SEGMENT_TASK_COUNT = new AtomicInteger();
+
     static ExecutorService getInstance() {
         return Holder.INSTANCE;
     }
 
+    /**
+     * Submits a segment task only if a thread is likely free for it, so that it rarely waits behind the segment
+     * tasks of other streams.
+     *
+     * @return false if every thread is busy with segment tasks, and the task has not been submitted
+     */
+    static boolean tryExecuteSegmentTask(Runnable task) {
+        int count;
+        do {
+            count = SEGMENT_TASK_COUNT.get();
+            if (count >= NUM_THREADS_IS_AVAILABLE_PROCESSORS) {
+                return false;
+            }
+        } while (!SEGMENT_TASK_COUNT.compareAndSet(count, count + 1));
+        execute(task);
+        return true;
+    }
+
+    /**
+     * Submits a segment task, even if all threads are busy.
+     */
+    static void executeSegmentTask(Runnable task) {
+        SEGMENT_TASK_COUNT.incrementAndGet();
+        execute(task);
+    }
+
+    private static void execute(Runnable task) {
+        try {
+            getInstance().execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    SEGMENT_TASK_COUNT.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            SEGMENT_TASK_COUNT.decrementAndGet();
+            throw e;
+        }
+    }
+
     private PngEncoderDeflaterExecutorService() {
     }
 }
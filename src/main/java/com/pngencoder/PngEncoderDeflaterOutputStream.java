@@ -3,8 +3,11 @@ package com.pngencoder;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -18,6 +21,11 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
     // A value of 3 seems to keep all threads busy.
     static final int COUNT_MAX_QUEUED_TASKS = PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS * 3;
 
+    // The maximum amount of segments of a blocking stream which are being compressed or wait to be written.
+    // A blocking stream only hands segments to free threads, so most of these are finished segments waiting for a
+    // slow one before them. Those only keep their deflated buffer, which is why there can be more of them.
+    static final int COUNT_MAX_UNWRITTEN_SEGMENTS = COUNT_MAX_QUEUED_TASKS * 2;
+
     // Enforces writing to underlying stream in main thread.
     // Multiplied so that not all work is finished before flush to underlying stream.
     static final int COUNT_MAX_TOTAL_SEGMENTS = COUNT_MAX_QUEUED_TASKS * 3;
@@ -32,31 +40,79 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
     // A lower value would better parallelize images but increase the size overhead.
     static final int SEGMENT_MAX_LENGTH_ORIGINAL_MIN = 128 * 1024;
 
-    public static int getSegmentMaxLengthOriginal(int totalOriginalBytesLength) {
-        return Math.max(totalOriginalBytesLength / COUNT_MAX_TOTAL_SEGMENTS, SEGMENT_MAX_LENGTH_ORIGINAL_MIN);
+    // Our maximum segment length.
+    // Bounds the memory held by queued segments when encoding huge images, e.g. from a row source.
+    // The size overhead of this many segments is negligible.
+    static final int SEGMENT_MAX_LENGTH_ORIGINAL_MAX = 4 * 1024 * 1024;
+
+    public static int getSegmentMaxLengthOriginal(long totalOriginalBytesLength) {
+        long segmentMaxLengthOriginal = Math.max(totalOriginalBytesLength / COUNT_MAX_TOTAL_SEGMENTS, SEGMENT_MAX_LENGTH_ORIGINAL_MIN);
+        return (int) Math.min(segmentMaxLengthOriginal, SEGMENT_MAX_LENGTH_ORIGINAL_MAX);
     }
 
     public static int getSegmentMaxLengthDeflated(int segmentMaxLengthOriginal) {
         return segmentMaxLengthOriginal + (segmentMaxLengthOriginal >> 3);
     }
 
+    /**
+     * The most segments data of this length can be split into, whichever way it is compressed.
+     */
+    static long getMaxSegmentCount(long totalOriginalBytesLength) {
+        return totalOriginalBytesLength / SEGMENT_MAX_LENGTH_ORIGINAL_MIN + 1;
+    }
+
+    /**
+     * An upper bound of the zlib stream compressed from data of this length, as a whole or in segments.
+     * <p>
+     * Per segment this is the bound zlib gives for its default parameters, which is the size of the stored blocks
+     * incompressible data falls back to, plus the empty stored block ending a segment compressed with SYNC_FLUSH.
+     * It is much tighter than {@link #getSegmentMaxLengthDeflated(int)}, which only sizes the buffers.
+     */
+    static long getMaxLengthDeflated(long totalOriginalBytesLength) {
+        final long n = totalOriginalBytesLength;
+        // The 2 byte zlib header and the 4 byte adler32 checksum.
+        final long zlibWrapperLength = 6;
+        // 7 bytes for the block header and end of block code, 5 bytes for the empty stored block of a sync flush.
+        final long segmentOverheadLength = 7 + 5;
+        return zlibWrapperLength + n + (n >> 12) + (n >> 14) + (n >> 25)
+                + getMaxSegmentCount(n) * segmentOverheadLength;
+    }
+
     private final PngEncoderDeflaterBufferPool pool;
     private final byte[] singleByte;
     private final int compressionLevel;
     private final int segmentMaxLengthOriginal;
-    private final ConcurrentLinkedQueue<CompletableFuture<PngEncoderDeflaterSegmentResult>> resultQueue;
+    // Only used when blocking. The segments in order, finished or not, which have not been written yet.
+    // Finished segments are kept until the ones before them are written.
+    private final ConcurrentLinkedQueue<PngEncoderDeflaterClaimableTask> resultQueue;
+    private final boolean nonBlocking;
+    // Only used when non-blocking. The segments are written when their tasks complete, each one after the one
+    // before it. The queue holds the writes which may not have happened yet, the last write is the end of the chain.
+    private final Queue<CompletableFuture<Void>> writeQueue;
+    private CompletableFuture<Void> lastWrite;
     private PngEncoderDeflaterBuffer originalSegment;
     private long adler32;
     private boolean finished;
     private boolean closed;
 
     PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, PngEncoderDeflaterBufferPool pool) throws IOException {
+        this(out, compressionLevel, segmentMaxLengthOriginal, pool, false);
+    }
+
+    /**
+     * @param nonBlocking if true, writing never waits for the segment tasks. The caller has to check
+     *                    {@link #getQueueRoom()} and finish with {@link #finishAsync()}.
+     */
+    PngEncoderDeflaterOutputStream(OutputStream out, int compressionLevel, int segmentMaxLengthOriginal, PngEncoderDeflaterBufferPool pool, boolean nonBlocking) throws IOException {
         super(Objects.requireNonNull(out, "out"));
         this.pool = Objects.requireNonNull(pool, "pool");
         this.singleByte = new byte[1];
         this.compressionLevel = compressionLevel;
         this.segmentMaxLengthOriginal = segmentMaxLengthOriginal;
         this.resultQueue = new ConcurrentLinkedQueue<>();
+        this.nonBlocking = nonBlocking;
+        this.writeQueue = new ArrayDeque<>();
+        this.lastWrite = CompletableFuture.completedFuture(null);
         this.originalSegment = pool.borrow();
         this.adler32 = 1;
         this.finished = false;
@@ -97,7 +153,12 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
             int freeBufCount = segmentMaxLengthOriginal - originalSegment.length;
             if (freeBufCount == 0) {
                 // Submit task if the buffer is full and there still is more to write.
-                joinUntilMaximumQueueSize(COUNT_MAX_QUEUED_TASKS - 1);
+                if (!nonBlocking) {
+                    // A slow segment only holds up the writing of the segments after it, not their compression.
+                    // It is only waited for when too many finished segments are waiting for it.
+                    joinCompleted();
+                    joinUntilMaximumQueueSize(COUNT_MAX_UNWRITTEN_SEGMENTS - 1);
+                }
                 submitTask(false);
             } else {
                 int toCopyCount = Math.min(len, freeBufCount);
@@ -124,6 +185,62 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Ends a blocking stream without writing the rest of it, also after {@link #finish()} failed. The segments
+     * still waiting in the executor are skipped, the ones being compressed run to completion but are not written.
+     */
+    void abandon() {
+        for (PngEncoderDeflaterClaimableTask task : resultQueue) {
+            task.cancel();
+        }
+        resultQueue.clear();
+        if (!this.finished) {
+            this.finished = true;
+            originalSegment.giveBack();
+        }
+    }
+
+    /**
+     * Submits the last segment without waiting for any of the segments.
+     *
+     * @return a future which completes when all segments and the checksum have been written
+     */
+    CompletableFuture<Void> finishAsync() {
+        if (this.finished) {
+            return lastWrite;
+        }
+        this.finished = true;
+        submitTask(true);
+        originalSegment.giveBack();
+        lastWrite = lastWrite.thenRun(() -> {
+            try {
+                out.write(ByteBuffer.allocate(4).putInt((int) adler32).array());
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return lastWrite;
+    }
+
+    /**
+     * Tells a non-blocking writer whether it may submit more segments.
+     *
+     * @return null if fewer than {@link #COUNT_MAX_QUEUED_TASKS} segments are waiting to be written, otherwise a
+     * future which completes when the oldest of them has been written. A failed write is returned as well.
+     */
+    CompletableFuture<Void> getQueueRoom() {
+        CompletableFuture<Void> oldest = writeQueue.peek();
+        while (oldest != null && oldest.isDone() && !oldest.isCompletedExceptionally()) {
+            writeQueue.poll();
+            oldest = writeQueue.peek();
+        }
+        if (oldest != null && (oldest.isCompletedExceptionally() || writeQueue.size() >= COUNT_MAX_QUEUED_TASKS)) {
+            return oldest;
+        }
+        return null;
+    }
+
     @Override
     public void close() throws IOException {
         if (this.closed) {
@@ -142,26 +259,79 @@ class PngEncoderDeflaterOutputStream extends FilterOutputStream {
     }
 
     void submitTask(PngEncoderDeflaterSegmentTask task) {
-        CompletableFuture<PngEncoderDeflaterSegmentResult> future = CompletableFuture.supplyAsync(task, PngEncoderDeflaterExecutorService.getInstance());
-        resultQueue.offer(future);
+        final PngEncoderDeflaterClaimableTask claimableTask = new PngEncoderDeflaterClaimableTask(task);
+        final CompletableFuture<PngEncoderDeflaterSegmentResult> future = claimableTask.getFuture();
+        if (nonBlocking) {
+            PngEncoderDeflaterExecutorService.executeSegmentTask(claimableTask);
+            // Written by whichever thread completes last, the task or the write of the segment before.
+            lastWrite = lastWrite.thenCombine(future, (previous, result) -> {
+                try {
+                    writeResult(result);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            writeQueue.offer(lastWrite);
+        } else {
+            resultQueue.offer(claimableTask);
+            if (!PngEncoderDeflaterExecutorService.tryExecuteSegmentTask(claimableTask)) {
+                // Every thread is busy compressing segments, of this image or others. Rather than queueing the
+                // segment behind them, this thread compresses it.
+                claimableTask.tryRun();
+            }
+        }
+    }
+
+    /**
+     * @return true if a segment of this stream was waiting in the executor and has been compressed in this thread
+     */
+    private boolean runWaitingTask() {
+        for (PngEncoderDeflaterClaimableTask task : resultQueue) {
+            if (task.tryRun()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the oldest segments as long as they are finished, without waiting for any of them.
+     */
+    void joinCompleted() throws IOException {
+        PngEncoderDeflaterClaimableTask oldest = resultQueue.peek();
+        while (oldest != null && oldest.getFuture().isDone()) {
+            joinOne();
+            oldest = resultQueue.peek();
+        }
     }
 
     void joinOne() throws IOException {
-        CompletableFuture<PngEncoderDeflaterSegmentResult> resultFuture = resultQueue.poll();
-        if (resultFuture != null) {
+        PngEncoderDeflaterClaimableTask task = resultQueue.poll();
+        if (task != null) {
+            // The segment is compressed in this thread if it still waits in the executor. Otherwise this thread
+            // helps with the segments after it until it is done.
+            if (!task.tryRun()) {
+                while (!task.getFuture().isDone() && runWaitingTask()) {
+                    // Keep helping.
+                }
+            }
             final PngEncoderDeflaterSegmentResult result;
             try {
-                result = resultFuture.join();
+                result = task.getFuture().join();
             } catch (RuntimeException e) {
                 throw new IOException("An async segment task failed.", e);
             }
-            try {
-                adler32 = result.getUpdatedAdler32(adler32);
-                result.getDeflatedSegment().write(out);
-            } finally {
-                result.getOriginalSegment().giveBack();
-                result.getDeflatedSegment().giveBack();
-            }
+            writeResult(result);
+        }
+    }
+
+    private void writeResult(PngEncoderDeflaterSegmentResult result) throws IOException {
+        try {
+            adler32 = result.getUpdatedAdler32(adler32);
+            result.getDeflatedSegment().write(out);
+        } finally {
+            result.getDeflatedSegment().giveBack();
         }
     }
 
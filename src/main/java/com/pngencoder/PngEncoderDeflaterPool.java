@@ -0,0 +1,46 @@
+package com.pngencoder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Zlib deflaters for images compressed in a single stream, which are borrowed for one image and given back.
+ * <p>
+ * A deflater holds a few hundred KB of native memory, which a dropped deflater only releases when it is finalized.
+ * So the pool keeps a bounded number of idle deflaters per compression level, and ends the ones beyond that.
+ */
+class PngEncoderDeflaterPool {
+    // Enough for every core to encode an image at the same compression level.
+    static final int MAX_IDLE_PER_LEVEL = Runtime.getRuntime().availableProcessors();
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayBlockingQueue<Deflater>[] IDLE = new ArrayBlockingQueue[11];
+
+    static {
+        for (int i = 0; i < IDLE.length; i++) {
+            IDLE[i] = new ArrayBlockingQueue<>(MAX_IDLE_PER_LEVEL);
+        }
+    }
+
+    private PngEncoderDeflaterPool() {
+    }
+
+    static Deflater borrow(int compressionLevel) {
+        Deflater deflater = IDLE[compressionLevel + 1].poll();
+        return deflater != null ? deflater : new Deflater(compressionLevel);
+    }
+
+    /**
+     * Gives back a deflater borrowed for {@code compressionLevel}. It must not be used afterwards.
+     */
+    static void giveBack(int compressionLevel, Deflater deflater) {
+        deflater.reset();
+        if (!IDLE[compressionLevel + 1].offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    static int idleCount(int compressionLevel) {
+        return IDLE[compressionLevel + 1].size();
+    }
+}
@@ -3,26 +3,19 @@ package com.pngencoder;
 import java.util.Objects;
 
 class PngEncoderDeflaterSegmentResult {
-    private final PngEncoderDeflaterBuffer originalSegment;
     private final PngEncoderDeflaterBuffer deflatedSegment;
     private final long originalSegmentAdler32;
     private final int originalSegmentLength;
 
     PngEncoderDeflaterSegmentResult(
-            PngEncoderDeflaterBuffer originalSegment,
             PngEncoderDeflaterBuffer deflatedSegment,
             long originalSegmentAdler32,
             int originalSegmentLength) {
-        this.originalSegment = Objects.requireNonNull(originalSegment, "originalSegment");
         this.deflatedSegment = Objects.requireNonNull(deflatedSegment, "deflatedSegment");
         this.originalSegmentAdler32 = originalSegmentAdler32;
         this.originalSegmentLength = originalSegmentLength;
     }
 
-    public PngEncoderDeflaterBuffer getOriginalSegment() {
-        return originalSegment;
-    }
-
     public PngEncoderDeflaterBuffer getDeflatedSegment() {
         return deflatedSegment;
     }
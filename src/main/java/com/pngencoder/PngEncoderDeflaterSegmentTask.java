@@ -27,8 +27,10 @@ class PngEncoderDeflaterSegmentTask implements Supplier<PngEncoderDeflaterSegmen
         final int originalSegmentLength = originalSegment.length;
 
         deflate(originalSegment, deflatedSegment, compressionLevel, lastSegment);
+        // A finished segment may wait a while to be written, only its deflated bytes are kept until then.
+        originalSegment.giveBack();
 
-        return new PngEncoderDeflaterSegmentResult(originalSegment, deflatedSegment, originalSegmentAdler32, originalSegmentLength);
+        return new PngEncoderDeflaterSegmentResult(deflatedSegment, originalSegmentAdler32, originalSegmentLength);
     }
 
     static void deflate(PngEncoderDeflaterBuffer originalSegment, PngEncoderDeflaterBuffer deflatedSegment, int compressionLevel, boolean lastSegment) {
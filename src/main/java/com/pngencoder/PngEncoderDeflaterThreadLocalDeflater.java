@@ -11,22 +11,34 @@ import java.util.zip.Deflater;
 class PngEncoderDeflaterThreadLocalDeflater {
     private static final ThreadLocal<PngEncoderDeflaterThreadLocalDeflater> THREAD_LOCAL = ThreadLocal.withInitial(PngEncoderDeflaterThreadLocalDeflater::new);
 
+    /**
+     * Returns a deflater producing raw deflate data, without the zlib header and checksum.
+     */
     static Deflater getInstance(int compressionLevel) {
-        return THREAD_LOCAL.get().getDeflater(compressionLevel);
+        return THREAD_LOCAL.get().getDeflater(compressionLevel, true);
+    }
+
+    /**
+     * Returns a deflater producing a complete zlib stream, e.g. for the image data of a PNG in one piece.
+     */
+    static Deflater getZlibInstance(int compressionLevel) {
+        return THREAD_LOCAL.get().getDeflater(compressionLevel, false);
     }
 
     private final Deflater[] deflaters;
+    private final Deflater[] zlibDeflaters;
 
     private PngEncoderDeflaterThreadLocalDeflater() {
         this.deflaters = new Deflater[11];
+        this.zlibDeflaters = new Deflater[11];
     }
 
-    private Deflater getDeflater(int compressionLevel) {
-        Deflater deflater = this.deflaters[compressionLevel + 1];
+    private Deflater getDeflater(int compressionLevel, boolean nowrap) {
+        Deflater[] deflaters = nowrap ? this.deflaters : this.zlibDeflaters;
+        Deflater deflater = deflaters[compressionLevel + 1];
         if (deflater == null) {
-            boolean nowrap = true;
             deflater = new Deflater(compressionLevel, nowrap);
-            this.deflaters[compressionLevel + 1] = deflater;
+            deflaters[compressionLevel + 1] = deflater;
         }
         deflater.reset();
         return deflater;
@@ -0,0 +1,196 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractScanlineExtractor;
+import com.pngencoder.PngEncoderScanlineUtil.EncodingMetaInfo;
+import com.pngencoder.PngEncoderScanlineUtil.ExtractorKind;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything decided about how the rows of an image are encoded: the extractor streaming them, and the channel
+ * layout, bit depth and color profile of the rows.
+ * <p>
+ * A plan is computed once per image. All slices of the image are streamed with it, no matter in which thread. The
+ * decisions only depend on the layout of the raster and on the color model, so they are cached for repeated
+ * encodes of images with the same format.
+ */
+class PngEncoderEncodingPlan {
+    // Applications tend to encode images in a handful of formats. Should there be more, the cache just starts over.
+    private static final int LAYOUT_CACHE_MAX_SIZE = 64;
+    private static final Map<LayoutKey, Layout> LAYOUT_CACHE = new ConcurrentHashMap<>();
+
+    final EncodingMetaInfo metaInfo;
+    final AbstractScanlineExtractor extractor;
+
+    private PngEncoderEncodingPlan(EncodingMetaInfo metaInfo, AbstractScanlineExtractor extractor) {
+        this.metaInfo = metaInfo;
+        this.extractor = extractor;
+    }
+
+    /**
+     * Get the plan for encoding the rows of the region starting at {@code xStart} with the given width.
+     */
+    static PngEncoderEncodingPlan of(BufferedImage bufferedImage, int xStart, int width) {
+        Layout layout = getLayout(bufferedImage);
+        EncodingMetaInfo metaInfo = layout.metaInfo.forWidth(width);
+        if (layout.extractorKind == ExtractorKind.BYTE_INDEXED || layout.extractorKind == ExtractorKind.BYTE_PACKED_INDEXED) {
+            // The colors differ from image to image, so the palette is no part of the cached layout.
+            metaInfo.palette = PngEncoderPalette.of((IndexColorModel) bufferedImage.getColorModel(), metaInfo.bitsPerChannel);
+        }
+        if (layout.hasColorProfile) {
+            // Images read from files each have their own profile instance, so the profile is no part of the
+            // cached layout either.
+            metaInfo.colorProfile = ((ICC_ColorSpace) bufferedImage.getColorModel().getColorSpace()).getProfile();
+        }
+        AbstractScanlineExtractor extractor = PngEncoderScanlineUtil.getExtractor(bufferedImage, layout.extractorKind,
+                xStart, width, metaInfo.rowByteSize);
+        return new PngEncoderEncodingPlan(metaInfo, extractor);
+    }
+
+    /**
+     * Get the plan for encoding the rows of an 8 bit RGB or RGBA image as indices into the given palette, which
+     * contains all colors of the rows.
+     */
+    PngEncoderEncodingPlan withPalette(PngEncoderPalette palette) {
+        assert metaInfo.bitsPerChannel == 8 && (metaInfo.channels == 3 || metaInfo.channels == 4);
+        final int width = (metaInfo.rowByteSize - 1) / metaInfo.bytesPerPixel;
+        EncodingMetaInfo indexedMetaInfo = metaInfo.forWidth(width);
+        indexedMetaInfo.palette = palette;
+        indexedMetaInfo.channels = 1;
+        indexedMetaInfo.bitsPerChannel = palette.getBitDepth();
+        indexedMetaInfo.bytesPerPixel = 1;
+        indexedMetaInfo.hasAlpha = false;
+        indexedMetaInfo = indexedMetaInfo.forWidth(width);
+        return new PngEncoderEncodingPlan(indexedMetaInfo,
+                palette.indexing(extractor, metaInfo.channels, width, indexedMetaInfo.rowByteSize));
+    }
+
+    /**
+     * Get the plan for encoding the rows of an 8 or 16 bit image without the channels and bits which the analysis of
+     * its pixels found to carry no information.
+     *
+     * @return this plan if nothing can be left out
+     */
+    PngEncoderEncodingPlan withLosslessReduction(PngEncoderImageAnalysis analysis) {
+        final int[] channels = analysis.getNeededChannels(metaInfo);
+        final int bitsPerChannel = analysis.isEightBit() ? 8 : metaInfo.bitsPerChannel;
+        if (channels.length == metaInfo.channels && bitsPerChannel == metaInfo.bitsPerChannel) {
+            return this;
+        }
+        final int width = (metaInfo.rowByteSize - 1) / metaInfo.bytesPerPixel;
+        EncodingMetaInfo reducedMetaInfo = metaInfo.forWidth(width);
+        reducedMetaInfo.channels = channels.length;
+        reducedMetaInfo.bitsPerChannel = bitsPerChannel;
+        reducedMetaInfo.bytesPerPixel = channels.length * bitsPerChannel / 8;
+        reducedMetaInfo.hasAlpha = channels.length == 2 || channels.length == 4;
+        if (channels.length <= 2) {
+            reducedMetaInfo.colorSpaceType = EncodingMetaInfo.ColorSpaceType.Gray;
+        }
+        reducedMetaInfo.transparentColor = analysis.getTrns(metaInfo, channels, bitsPerChannel);
+        reducedMetaInfo = reducedMetaInfo.forWidth(width);
+        return new PngEncoderEncodingPlan(reducedMetaInfo, PngEncoderImageAnalysis.reducing(extractor, metaInfo,
+                channels, bitsPerChannel, width, reducedMetaInfo.rowByteSize));
+    }
+
+    private static Layout getLayout(BufferedImage bufferedImage) {
+        LayoutKey key = new LayoutKey(bufferedImage);
+        Layout layout = LAYOUT_CACHE.get(key);
+        if (layout == null) {
+            ExtractorKind extractorKind = PngEncoderScanlineUtil.getExtractorKind(bufferedImage);
+            layout = new Layout(extractorKind, PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage, extractorKind));
+            if (LAYOUT_CACHE.size() >= LAYOUT_CACHE_MAX_SIZE) {
+                LAYOUT_CACHE.clear();
+            }
+            LAYOUT_CACHE.put(key, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * The decisions which only depend on the format of the image. The row size is decided per image.
+     */
+    private static final class Layout {
+        private final ExtractorKind extractorKind;
+        // Without the color profile, which is taken from each image.
+        private final EncodingMetaInfo metaInfo;
+        private final boolean hasColorProfile;
+
+        private Layout(ExtractorKind extractorKind, EncodingMetaInfo metaInfo) {
+            this.extractorKind = extractorKind;
+            this.metaInfo = metaInfo;
+            // Not every extractor keeps the profile, e.g. the fallback converts the pixels to sRGB.
+            this.hasColorProfile = metaInfo.colorProfile != null;
+            this.metaInfo.colorProfile = null;
+        }
+    }
+
+    /**
+     * Everything about the format of an image which the layout depends on.
+     */
+    private static final class LayoutKey {
+        private final int imageType;
+        private final int colorSpaceType;
+        private final boolean isIccColorSpace;
+        private final int transparency;
+        private final Class<?> sampleModelClass;
+        private final Class<?> dataBufferClass;
+        private final int dataType;
+        private final int numBands;
+        private final int sampleSize;
+        private final boolean rgbOrRgbaInterleaved;
+
+        private LayoutKey(BufferedImage bufferedImage) {
+            SampleModel sampleModel = bufferedImage.getSampleModel();
+            this.imageType = bufferedImage.getType();
+            // The layout only depends on the kind of color space, not on the instance. Holding the color space
+            // would keep its profile alive, and would miss the cache for images with equal profiles.
+            ColorSpace colorSpace = bufferedImage.getColorModel().getColorSpace();
+            this.colorSpaceType = colorSpace.getType();
+            this.isIccColorSpace = !colorSpace.isCS_sRGB() && colorSpace instanceof ICC_ColorSpace;
+            this.transparency = bufferedImage.getTransparency();
+            this.sampleModelClass = sampleModel.getClass();
+            this.dataBufferClass = bufferedImage.getRaster().getDataBuffer().getClass();
+            this.dataType = sampleModel.getDataType();
+            this.numBands = sampleModel.getNumBands();
+            this.sampleSize = sampleModel.getSampleSize(0);
+            // The order of the samples decides between the 16 bit RGB(A) and the generic extractors.
+            this.rgbOrRgbaInterleaved = sampleModel instanceof PixelInterleavedSampleModel
+                    && PngEncoderScanlineUtil.isRgbOrRgbaInterleaved((PixelInterleavedSampleModel) sampleModel);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LayoutKey)) {
+                return false;
+            }
+            LayoutKey that = (LayoutKey) o;
+            return imageType == that.imageType
+                    && colorSpaceType == that.colorSpaceType
+                    && isIccColorSpace == that.isIccColorSpace
+                    && transparency == that.transparency
+                    && sampleModelClass == that.sampleModelClass
+                    && dataBufferClass == that.dataBufferClass
+                    && dataType == that.dataType
+                    && numBands == that.numBands
+                    && sampleSize == that.sampleSize
+                    && rgbOrRgbaInterleaved == that.rgbOrRgbaInterleaved;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageType, colorSpaceType, isIccColorSpace, transparency, sampleModelClass,
+                    dataBufferClass, dataType, numBands, sampleSize, rgbOrRgbaInterleaved);
+        }
+    }
+}
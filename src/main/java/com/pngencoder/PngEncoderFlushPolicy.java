@@ -0,0 +1,20 @@
+package com.pngencoder;
+
+/**
+ * When the encoder flushes the output stream it writes to.
+ *
+ * @see PngEncoder#withFlushPolicy(PngEncoderFlushPolicy)
+ */
+public enum PngEncoderFlushPolicy {
+    /**
+     * The output stream is flushed once, when the image is complete. This is the default.
+     */
+    AT_END,
+
+    /**
+     * The output stream is flushed after every write which completes a chunk, i.e. after the header chunks and after
+     * every IDAT chunk, so the bytes go out at the rate they are compressed. Use this when streaming images to a
+     * client which can start decoding before the whole image has arrived, e.g. an HTTP response.
+     */
+    EVERY_CHUNK
+}
@@ -0,0 +1,87 @@
+package com.pngencoder;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The finished iCCP chunks, including length, type and CRC, of the color profiles encoded last.
+ * <p>
+ * Compressing a profile of a few hundred KB takes longer than encoding a small image, and usually all images
+ * have one of very few profiles. ICC_Profile does not override equals(), and images read from files each have
+ * their own instance, so the chunks are found by the content of the profile. The least recently used chunks
+ * are dropped when the profiles and chunks together take more than {@code maxBytes}.
+ */
+class PngEncoderIccpChunkCache {
+    // Room for a handful of the larger printer profiles.
+    static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final PngEncoderIccpChunkCache INSTANCE = new PngEncoderIccpChunkCache(DEFAULT_MAX_BYTES);
+
+    static PngEncoderIccpChunkCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final int maxBytes;
+    private final LinkedHashMap<ProfileKey, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    PngEncoderIccpChunkCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the chunk of the profile with the given data, or null if it is not cached.
+     */
+    synchronized byte[] get(byte[] profileData) {
+        return chunks.get(new ProfileKey(profileData));
+    }
+
+    synchronized void put(byte[] profileData, byte[] chunk) {
+        final long weight = (long) profileData.length + chunk.length;
+        if (weight > maxBytes) {
+            return;
+        }
+        final byte[] replaced = chunks.put(new ProfileKey(profileData), chunk);
+        bytes += replaced == null ? weight : chunk.length - replaced.length;
+
+        final Iterator<Map.Entry<ProfileKey, byte[]>> leastRecentlyUsed = chunks.entrySet().iterator();
+        while (bytes > maxBytes) {
+            Map.Entry<ProfileKey, byte[]> entry = leastRecentlyUsed.next();
+            bytes -= (long) entry.getKey().data.length + entry.getValue().length;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    synchronized int size() {
+        return chunks.size();
+    }
+
+    private static final class ProfileKey {
+        private final byte[] data;
+        private final int hashCode;
+
+        private ProfileKey(byte[] data) {
+            this.data = data;
+            this.hashCode = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ProfileKey)) {
+                return false;
+            }
+            ProfileKey that = (ProfileKey) o;
+            return hashCode == that.hashCode && Arrays.equals(data, that.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -13,6 +13,17 @@ class PngEncoderIdatChunksOutputStream extends FilterOutputStream {
     // 12 / (32 * 1024) = 0.00037 meaning the size overhead is just 0.037% which should be negligible.
     static final int DEFAULT_BUFFER_LENGTH = 32 * 1024;
 
+    /**
+     * An upper bound of the length of the IDAT chunks holding {@code dataLength} bytes, written in any pieces.
+     * <p>
+     * A chunk is only cut short when the next write does not fit into the buffer, so any two chunks in a row hold
+     * more than a full buffer, except where the stream was flushed.
+     */
+    static long getMaxLengthWithChunks(long dataLength, long flushCount) {
+        final long maxChunkCount = 2 * (dataLength / DEFAULT_BUFFER_LENGTH) + flushCount + 2;
+        return dataLength + maxChunkCount * 12;
+    }
+
     private final CRC32 crc;
     private final byte[] buf;
     private int count;
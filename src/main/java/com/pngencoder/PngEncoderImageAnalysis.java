@@ -0,0 +1,427 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.AbstractScanlineExtractor;
+import com.pngencoder.PngEncoderScanlineUtil.EncodingMetaInfo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Finds out which channels and bits of the rows of an image carry no information, by looking at every pixel.
+ * <p>
+ * An image without any translucent pixel does not need its alpha channel. Neither does an image whose alpha only
+ * masks out pixels of one color, which is never used by opaque pixels: a tRNS chunk naming that color does the
+ * same. An image in which every pixel is gray needs one color channel instead of three. A 16 bit image whose
+ * samples are 8 bit samples scaled up exactly, i.e. the low byte of every sample repeats its high byte, can be
+ * stored with 8 bits per sample. Large images are analyzed in row bands in parallel.
+ */
+class PngEncoderImageAnalysis {
+    // Smaller bands are not worth handing over to another thread.
+    private static final int BAND_MIN_BYTES = 256 * 1024;
+
+    // How many rows are analyzed before checking whether there is anything left to find.
+    private static final int ANALYZE_ROWS_PER_CHECK = 16;
+
+    private final int yStart;
+    private boolean opaque;
+    private boolean gray;
+    private boolean eightBit;
+    private boolean singleTransparentColor;
+    // The color samples of the transparent pixels, once one has been found.
+    private byte[] transparentColor;
+    // The rows up to the first transparent pixel. Opaque pixels in them were not compared to the transparent color.
+    private int uncheckedRows;
+
+    private PngEncoderImageAnalysis(EncodingMetaInfo metaInfo, int yStart) {
+        this.yStart = yStart;
+        this.opaque = metaInfo.hasAlpha;
+        this.gray = metaInfo.channels >= 3;
+        this.eightBit = metaInfo.bitsPerChannel == 16;
+        this.singleTransparentColor = metaInfo.hasAlpha;
+    }
+
+    /**
+     * Analyzes the rows of an 8 or 16 bit image, which are not palette indices.
+     */
+    static PngEncoderImageAnalysis analyze(AbstractScanlineExtractor extractor, EncodingMetaInfo metaInfo,
+            int yStart, int height, boolean multiThreaded) throws IOException {
+        assert metaInfo.palette == null && (metaInfo.bitsPerChannel == 8 || metaInfo.bitsPerChannel == 16);
+        int bandHeight = height;
+        if (multiThreaded) {
+            final int threads = PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS;
+            final int bandMinHeight = Math.max(1, BAND_MIN_BYTES / metaInfo.rowByteSize);
+            bandHeight = Math.max(bandMinHeight, (height + threads - 1) / threads);
+        }
+        final int bandCount = Math.max(1, (height + bandHeight - 1) / bandHeight);
+        final int[] bandStarts = new int[bandCount];
+        final int[] bandHeights = new int[bandCount];
+        for (int band = 0; band < bandCount; band++) {
+            bandStarts[band] = yStart + band * bandHeight;
+            bandHeights[band] = Math.min(bandHeight, height - band * bandHeight);
+        }
+
+        final List<PngEncoderImageAnalysis> bands = analyzeBands(bandStarts, bandHeights, (bandStart, rows) ->
+                analyzeBand(new PngEncoderImageAnalysis(metaInfo, bandStart), extractor, metaInfo, rows));
+        final PngEncoderImageAnalysis analysis = bands.get(0);
+        for (int band = 1; band < bandCount; band++) {
+            analysis.merge(bands.get(band));
+        }
+
+        if (analysis.getTransparentColor() != null) {
+            // Every band compared its opaque pixels to the transparent color after finding its first transparent
+            // pixel. The rows before it still have to be compared, now that the color is known.
+            final byte[] transparentColor = analysis.transparentColor;
+            for (int band = 0; band < bandCount; band++) {
+                bandHeights[band] = bands.get(band).uncheckedRows;
+            }
+            final List<PngEncoderImageAnalysis> checks = analyzeBands(bandStarts, bandHeights, (bandStart, rows) ->
+                    analyzeBand(forTransparentColor(metaInfo, bandStart, transparentColor), extractor, metaInfo, rows));
+            for (PngEncoderImageAnalysis check : checks) {
+                analysis.singleTransparentColor &= check.singleTransparentColor;
+            }
+        }
+        return analysis;
+    }
+
+    /**
+     * @return true if no pixel is translucent
+     */
+    boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * @return true if the red, green and blue samples of every pixel are the same
+     */
+    boolean isGray() {
+        return gray;
+    }
+
+    /**
+     * @return true if every 16 bit sample is an 8 bit sample scaled up, i.e. its low byte is the same as its high byte
+     */
+    boolean isEightBit() {
+        return eightBit;
+    }
+
+    /**
+     * @return the color samples shared by all transparent pixels, if every pixel is either fully transparent or
+     * fully opaque and no opaque pixel has this color. Otherwise null, also when there are no transparent pixels.
+     */
+    byte[] getTransparentColor() {
+        return singleTransparentColor && !opaque ? transparentColor : null;
+    }
+
+    /**
+     * The channels of the analyzed rows which are needed to store them without any loss.
+     * Gray is not an option for images with a color profile, the profile is made for color samples.
+     *
+     * @return the indices of the needed channels in a pixel of the analyzed rows
+     */
+    int[] getNeededChannels(EncodingMetaInfo metaInfo) {
+        final boolean dropColor = gray && metaInfo.colorProfile == null;
+        final boolean dropAlpha = opaque || getTransparentColor() != null;
+        switch (metaInfo.channels) {
+            case 4:
+                if (dropColor) {
+                    return dropAlpha ? new int[]{0} : new int[]{0, 3};
+                }
+                return dropAlpha ? new int[]{0, 1, 2} : new int[]{0, 1, 2, 3};
+            case 3:
+                return dropColor ? new int[]{0} : new int[]{0, 1, 2};
+            case 2:
+                return dropAlpha ? new int[]{0} : new int[]{0, 1};
+            default:
+                return new int[]{0};
+        }
+    }
+
+    /**
+     * The tRNS chunk of a gray or RGB image has a 16 bit value for every color sample, also for 8 bit images.
+     *
+     * @param channels the needed channels, see getNeededChannels()
+     * @return the content of the tRNS chunk for the reduced rows, or null if the alpha channel is needed or
+     * there is no transparent pixel
+     */
+    byte[] getTrns(EncodingMetaInfo metaInfo, int[] channels, int bitsPerChannel) {
+        final byte[] color = getTransparentColor();
+        if (color == null || channels.length == 2 || channels.length == 4) {
+            return null;
+        }
+        final int sourceBytesPerSample = metaInfo.bitsPerChannel / 8;
+        final byte[] trns = new byte[channels.length * 2];
+        for (int c = 0; c < channels.length; c++) {
+            final int offset = channels[c] * sourceBytesPerSample;
+            if (bitsPerChannel == 16) {
+                trns[c * 2] = color[offset];
+                trns[c * 2 + 1] = color[offset + 1];
+            } else {
+                // The high byte of a 16 bit sample is the 8 bit sample.
+                trns[c * 2 + 1] = color[offset];
+            }
+        }
+        return trns;
+    }
+
+    /**
+     * Creates an extractor which streams the rows of the source extractor with only the given channels, and only the
+     * high byte of every sample if {@code bitsPerChannel} is 8 while the source rows have 16 bits per sample.
+     *
+     * @param rowByteSize the size of the reduced rows, see EncodingMetaInfo.forWidth()
+     */
+    static AbstractScanlineExtractor reducing(AbstractScanlineExtractor source, EncodingMetaInfo sourceMetaInfo,
+            int[] channels, int bitsPerChannel, int width, int rowByteSize) {
+        return new AbstractScanlineExtractor(rowByteSize) {
+            @Override
+            void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                // The rows of this context have the size of the reduced rows. The source rows need a context of their own.
+                try (PngEncoderScanlineContext sourceContext = PngEncoderScanlineContext.open(source)) {
+                    sourceContext.stream(yStart, heightToStream, new ReducingLineConsumer(sourceMetaInfo, channels,
+                            bitsPerChannel, width, context.currLine, context.prevLine, consumer));
+                }
+            }
+        };
+    }
+
+    /**
+     * @return an analysis which only compares the opaque pixels to an already known transparent color
+     */
+    private static PngEncoderImageAnalysis forTransparentColor(EncodingMetaInfo metaInfo, int yStart, byte[] transparentColor) {
+        PngEncoderImageAnalysis analysis = new PngEncoderImageAnalysis(metaInfo, yStart);
+        analysis.opaque = false;
+        analysis.gray = false;
+        analysis.eightBit = false;
+        analysis.transparentColor = transparentColor;
+        return analysis;
+    }
+
+    /**
+     * Runs the band analyzer for every band, the first one in this thread and all others in the executor.
+     */
+    private static List<PngEncoderImageAnalysis> analyzeBands(int[] bandStarts, int[] bandHeights,
+            BandAnalyzer bandAnalyzer) throws IOException {
+        final List<CompletableFuture<PngEncoderImageAnalysis>> futures = new ArrayList<>();
+        for (int band = 1; band < bandStarts.length; band++) {
+            final int bandStart = bandStarts[band];
+            final int bandHeight = bandHeights[band];
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return bandAnalyzer.analyze(bandStart, bandHeight);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, PngEncoderDeflaterExecutorService.getInstance()));
+        }
+
+        // This thread takes the first band, instead of just waiting for the others.
+        final List<PngEncoderImageAnalysis> bands = new ArrayList<>(bandStarts.length);
+        bands.add(bandAnalyzer.analyze(bandStarts[0], bandHeights[0]));
+        for (CompletableFuture<PngEncoderImageAnalysis> future : futures) {
+            try {
+                bands.add(future.join());
+            } catch (RuntimeException e) {
+                throw new IOException("An async analysis task failed.", e);
+            }
+        }
+        return bands;
+    }
+
+    private static PngEncoderImageAnalysis analyzeBand(PngEncoderImageAnalysis analysis,
+            AbstractScanlineExtractor extractor, EncodingMetaInfo metaInfo, int height) throws IOException {
+        AnalyzingLineConsumer analyzer = new AnalyzingLineConsumer(analysis, metaInfo);
+        try (PngEncoderScanlineContext context = PngEncoderScanlineContext.open(extractor)) {
+            for (int y = 0; y < height && analysis.hasAnythingLeftToFind(); y += ANALYZE_ROWS_PER_CHECK) {
+                context.stream(analysis.yStart + y, Math.min(ANALYZE_ROWS_PER_CHECK, height - y), analyzer);
+            }
+        }
+        return analysis;
+    }
+
+    private boolean hasAnythingLeftToFind() {
+        return opaque || gray || eightBit || singleTransparentColor;
+    }
+
+    private void merge(PngEncoderImageAnalysis other) {
+        opaque &= other.opaque;
+        gray &= other.gray;
+        eightBit &= other.eightBit;
+        singleTransparentColor &= other.singleTransparentColor;
+        if (transparentColor == null) {
+            transparentColor = other.transparentColor;
+        } else if (other.transparentColor != null && !Arrays.equals(transparentColor, other.transparentColor)) {
+            singleTransparentColor = false;
+        }
+    }
+
+    private interface BandAnalyzer {
+        PngEncoderImageAnalysis analyze(int bandStart, int bandHeight) throws IOException;
+    }
+
+    /**
+     * Checks every row for what the analysis did not rule out yet.
+     */
+    private static final class AnalyzingLineConsumer extends AbstractPNGLineConsumer {
+        private final PngEncoderImageAnalysis analysis;
+        private final int bytesPerPixel;
+        private final int bytesPerSample;
+        private final int alphaOffset;
+
+        AnalyzingLineConsumer(PngEncoderImageAnalysis analysis, EncodingMetaInfo metaInfo) {
+            this.analysis = analysis;
+            this.bytesPerPixel = metaInfo.bytesPerPixel;
+            this.bytesPerSample = metaInfo.bitsPerChannel / 8;
+            this.alphaOffset = (metaInfo.channels - 1) * bytesPerSample;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) {
+            final PngEncoderImageAnalysis analysis = this.analysis;
+            if (analysis.opaque) {
+                analysis.opaque = isOpaque(currRow);
+            }
+            if (analysis.gray) {
+                analysis.gray = isGray(currRow);
+            }
+            if (analysis.eightBit) {
+                analysis.eightBit = isEightBit(currRow);
+            }
+            if (analysis.singleTransparentColor) {
+                if (analysis.transparentColor == null) {
+                    analysis.uncheckedRows++;
+                }
+                analysis.singleTransparentColor = hasSingleTransparentColor(currRow);
+            }
+        }
+
+        private boolean isOpaque(byte[] row) {
+            final int bytesPerPixel = this.bytesPerPixel;
+            // All bits of an opaque alpha sample are set, no matter if it has 8 or 16 bits.
+            for (int i = 1 + alphaOffset; i < row.length; i += bytesPerPixel) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    if (row[i + b] != -1) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private boolean isGray(byte[] row) {
+            final int bytesPerPixel = this.bytesPerPixel;
+            final int bytesPerSample = this.bytesPerSample;
+            for (int i = 1; i < row.length; i += bytesPerPixel) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    final byte red = row[i + b];
+                    if (row[i + bytesPerSample + b] != red || row[i + 2 * bytesPerSample + b] != red) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static boolean isEightBit(byte[] row) {
+            for (int i = 1; i < row.length; i += 2) {
+                if (row[i] != row[i + 1]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean hasSingleTransparentColor(byte[] row) {
+            final int bytesPerPixel = this.bytesPerPixel;
+            final int alphaOffset = this.alphaOffset;
+            byte[] transparentColor = analysis.transparentColor;
+            for (int i = 1; i < row.length; i += bytesPerPixel) {
+                // The bytes of a 16 bit alpha sample have to be the same as well, 0x00 or 0xFF.
+                final byte alpha = row[i + alphaOffset];
+                if (bytesPerSample == 2 && row[i + alphaOffset + 1] != alpha) {
+                    return false;
+                }
+                if (alpha == 0) {
+                    if (transparentColor == null) {
+                        transparentColor = Arrays.copyOfRange(row, i, i + alphaOffset);
+                        analysis.transparentColor = transparentColor;
+                    } else if (!isColor(row, i, transparentColor)) {
+                        return false;
+                    }
+                } else if (alpha != -1) {
+                    return false;
+                } else if (transparentColor != null && isColor(row, i, transparentColor)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isColor(byte[] row, int offset, byte[] color) {
+            for (int b = 0; b < color.length; b++) {
+                if (row[offset + b] != color[b]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies the needed channels of every row, and passes the reduced rows on.
+     */
+    private static final class ReducingLineConsumer extends AbstractPNGLineConsumer {
+        private final int[] channelOffsets;
+        private final int sourceBytesPerPixel;
+        private final int bytesPerSample;
+        private final int width;
+        private final AbstractPNGLineConsumer consumer;
+        private byte[] currLine;
+        private byte[] prevLine;
+
+        ReducingLineConsumer(EncodingMetaInfo sourceMetaInfo, int[] channels, int bitsPerChannel, int width,
+                byte[] currLine, byte[] prevLine, AbstractPNGLineConsumer consumer) {
+            final int sourceBytesPerSample = sourceMetaInfo.bitsPerChannel / 8;
+            this.channelOffsets = new int[channels.length];
+            for (int c = 0; c < channels.length; c++) {
+                // The high byte comes first, so it is also the byte to keep when going from 16 to 8 bits.
+                this.channelOffsets[c] = channels[c] * sourceBytesPerSample;
+            }
+            this.sourceBytesPerPixel = sourceMetaInfo.bytesPerPixel;
+            this.bytesPerSample = bitsPerChannel / 8;
+            this.width = width;
+            this.currLine = currLine;
+            this.prevLine = prevLine;
+            this.consumer = consumer;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) throws IOException {
+            final int[] channelOffsets = this.channelOffsets;
+            final int sourceBytesPerPixel = this.sourceBytesPerPixel;
+            final int bytesPerSample = this.bytesPerSample;
+            final byte[] line = currLine;
+
+            int writePtr = 1;
+            int readPtr = 1;
+            for (int x = 0; x < width; x++) {
+                for (int channelOffset : channelOffsets) {
+                    for (int b = 0; b < bytesPerSample; b++) {
+                        line[writePtr++] = currRow[readPtr + channelOffset + b];
+                    }
+                }
+                readPtr += sourceBytesPerPixel;
+            }
+
+            consumer.consume(line, prevLine);
+            {
+                byte[] b = currLine;
+                currLine = prevLine;
+                prevLine = b;
+            }
+        }
+    }
+}
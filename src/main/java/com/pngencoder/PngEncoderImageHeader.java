@@ -0,0 +1,118 @@
+package com.pngencoder;
+
+/**
+ * Describes the size and pixel layout of an image which is not supplied as a {@link java.awt.image.BufferedImage}.
+ * <p>
+ * Rows are laid out the way PNG stores them, without the leading filter type byte:
+ * gray, gray followed by alpha, R G B or R G B A. With 16 bits per channel every sample
+ * is stored big endian, most significant byte first.
+ * <p>
+ * Use one of the static methods to create a header and {@link #withBitsPerChannel(int)} for 16 bit images.
+ */
+public class PngEncoderImageHeader {
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final int bitsPerChannel;
+
+    private PngEncoderImageHeader(int width, int height, int channels, int bitsPerChannel) {
+        this.width = PngEncoderVerificationUtil.verifyImageDimension("width", width);
+        this.height = PngEncoderVerificationUtil.verifyImageDimension("height", height);
+        this.channels = channels;
+        this.bitsPerChannel = PngEncoderVerificationUtil.verifyBitsPerChannel(bitsPerChannel);
+        PngEncoderVerificationUtil.verifyRowWidth(width, channels * (bitsPerChannel / 8));
+    }
+
+    /**
+     * Creates a header for an 8 bit gray image.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @return a new PngEncoderImageHeader
+     */
+    public static PngEncoderImageHeader gray(int width, int height) {
+        return new PngEncoderImageHeader(width, height, 1, 8);
+    }
+
+    /**
+     * Creates a header for an 8 bit gray image with alpha.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @return a new PngEncoderImageHeader
+     */
+    public static PngEncoderImageHeader grayAlpha(int width, int height) {
+        return new PngEncoderImageHeader(width, height, 2, 8);
+    }
+
+    /**
+     * Creates a header for an 8 bit RGB image.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @return a new PngEncoderImageHeader
+     */
+    public static PngEncoderImageHeader rgb(int width, int height) {
+        return new PngEncoderImageHeader(width, height, 3, 8);
+    }
+
+    /**
+     * Creates a header for an 8 bit RGB image with alpha.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @return a new PngEncoderImageHeader
+     */
+    public static PngEncoderImageHeader rgba(int width, int height) {
+        return new PngEncoderImageHeader(width, height, 4, 8);
+    }
+
+    /**
+     * Returns a new PngEncoderImageHeader which has the same configuration as this one except {@code bitsPerChannel}.
+     *
+     * @param bitsPerChannel bits per channel (must be 8 or 16)
+     * @return a new PngEncoderImageHeader
+     */
+    public PngEncoderImageHeader withBitsPerChannel(int bitsPerChannel) {
+        return new PngEncoderImageHeader(width, height, channels, bitsPerChannel);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 1 (gray), 2 (gray with alpha), 3 (rgb) or 4 (rgb with alpha)
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitsPerChannel() {
+        return bitsPerChannel;
+    }
+
+    /**
+     * @return the number of bytes a single row consists of
+     */
+    public int getBytesPerRow() {
+        return width * channels * (bitsPerChannel / 8);
+    }
+
+    PngEncoderScanlineUtil.EncodingMetaInfo toEncodingMetaInfo() {
+        PngEncoderScanlineUtil.EncodingMetaInfo info = new PngEncoderScanlineUtil.EncodingMetaInfo();
+        info.channels = channels;
+        info.bitsPerChannel = bitsPerChannel;
+        info.bytesPerPixel = channels * (bitsPerChannel / 8);
+        info.hasAlpha = channels == 2 || channels == 4;
+        info.colorSpaceType = channels <= 2 ?
+                PngEncoderScanlineUtil.EncodingMetaInfo.ColorSpaceType.Gray :
+                PngEncoderScanlineUtil.EncodingMetaInfo.ColorSpaceType.Rgb;
+        info.rowByteSize = 1 + getBytesPerRow();
+        return info;
+    }
+}
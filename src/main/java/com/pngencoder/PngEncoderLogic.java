@@ -2,6 +2,7 @@ package com.pngencoder;
 
 import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
 
+import java.awt.Rectangle;
 import java.awt.color.ICC_Profile;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
@@ -28,6 +29,7 @@ class PngEncoderLogic {
 
     static final byte IHDR_COLOR_TYPE_GREY = 0;
     static final byte IHDR_COLOR_TYPE_RGB = 2;
+    static final byte IHDR_COLOR_TYPE_PALETTE = 3;
     static final byte IHDR_COLOR_TYPE_GREY_ALPHA = 4;
     static final byte IHDR_COLOR_TYPE_RGBA = 6;
     static final byte IHDR_COMPRESSION_METHOD = 0;
@@ -52,79 +54,161 @@ class PngEncoderLogic {
             .putInt(6000)
             .array();
 
+    // The PLTE and tRNS chunks of 256 colors, which palette reduction or quantization may add to an image.
+    static final int PALETTE_CHUNKS_MAX_LENGTH = 12 + 256 * 3 + 12 + 256;
+
     private PngEncoderLogic() {
     }
 
-    static int encode(BufferedImage bufferedImage, OutputStream outputStream, int compressionLevel,
-            boolean multiThreadedCompressionEnabled, PngEncoderSrgbRenderingIntent srgbRenderingIntent,
-            PngEncoderPhysicalPixelDimensions physicalPixelDimensions, boolean usePredictor) throws IOException {
-        Objects.requireNonNull(bufferedImage, "bufferedImage");
-        Objects.requireNonNull(outputStream, "outputStream");
-
-        PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage);
-        final int width = bufferedImage.getWidth();
-        final int height = bufferedImage.getHeight();
-        final PngEncoderCountingOutputStream countingOutputStream = new PngEncoderCountingOutputStream(outputStream);
+    /**
+     * An upper bound of the size of the file, whichever way the rows are compressed and whether or not the image is
+     * reduced on the way. The rows of a reduced image are never longer than the ones described by {@code metaInfo}.
+     */
+    static long getMaxEncodedSize(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, int width, int height,
+            PngEncoderAncillaryChunks ancillaryChunks) throws IOException {
+        final long headerChunksLength = asChunk("IHDR", getIhdrHeader(width, height, metaInfo)).length
+                + ancillaryChunks.get(metaInfo.colorProfile != null).length
+                + (metaInfo.colorProfile == null ? 0 : getIccpChunk(metaInfo.colorProfile).length)
+                + PALETTE_CHUNKS_MAX_LENGTH;
+        final long originalLength = (long) metaInfo.rowByteSize * height;
+        final long deflatedLength = PngEncoderDeflaterOutputStream.getMaxLengthDeflated(originalLength);
+        // The segments of the multithreaded deflater and the end of the image data each may flush the IDAT chunks.
+        final long flushCount = PngEncoderDeflaterOutputStream.getMaxSegmentCount(originalLength) + 1;
+        return FILE_BEGINNING.length + headerChunksLength
+                + PngEncoderIdatChunksOutputStream.getMaxLengthWithChunks(deflatedLength, flushCount)
+                + FILE_ENDING.length;
+    }
 
-        countingOutputStream.write(FILE_BEGINNING);
+    static int encode(BufferedImage bufferedImage, Rectangle region, OutputStream outputStream, int compressionLevel,
+            boolean multiThreadedCompressionEnabled, PngEncoderAncillaryChunks ancillaryChunks, boolean usePredictor,
+            boolean usePaletteReduction, boolean useLosslessReduction, PngEncoderQuantization quantization)
+            throws IOException {
+        final ResolvedImage image = resolve(bufferedImage, region, multiThreadedCompressionEnabled, usePredictor,
+                usePaletteReduction, useLosslessReduction, quantization);
+        return encode(image, outputStream, compressionLevel, multiThreadedCompressionEnabled, ancillaryChunks);
+    }
 
-        final byte[] ihdr = getIhdrHeader(width, height, metaInfo);
-        final byte[] ihdrChunk = asChunk("IHDR", ihdr);
-        countingOutputStream.write(ihdrChunk);
+    /**
+     * Resolves the rows to encode, after the optional palette, lossless reduction or quantization.
+     */
+    static ResolvedImage resolve(BufferedImage bufferedImage, Rectangle region, boolean multiThreadedCompressionEnabled,
+            boolean usePredictor, boolean usePaletteReduction, boolean useLosslessReduction,
+            PngEncoderQuantization quantization) throws IOException {
+        Objects.requireNonNull(bufferedImage, "bufferedImage");
 
-        if (srgbRenderingIntent != null && metaInfo.colorProfile == null) {
-            outputStream.write(asChunk("sRGB", new byte[]{srgbRenderingIntent.getValue()}));
-            outputStream.write(asChunk("gAMA", GAMA_SRGB_VALUE));
-            outputStream.write(asChunk("cHRM", CHRM_SRGB_VALUE));
+        if (region == null) {
+            region = new Rectangle(0, 0, bufferedImage.getWidth(), bufferedImage.getHeight());
+        } else {
+            PngEncoderVerificationUtil.verifyRegion(region, bufferedImage.getWidth(), bufferedImage.getHeight());
         }
 
-        if (physicalPixelDimensions != null) {
-            outputStream.write(asChunk("pHYs", getPhysicalPixelDimensions(physicalPixelDimensions)));
+        final int width = region.width;
+        final int height = region.height;
+        // Resolved once, all slices of the image are streamed with it.
+        final PngEncoderEncodingPlan unreducedPlan = PngEncoderEncodingPlan.of(bufferedImage, region.x, width);
+        PngEncoderEncodingPlan plan = unreducedPlan;
+        if (quantization != null && isPaletteCandidate(plan.metaInfo)) {
+            // Quantizing is lossy, images with few enough colors are better off with their exact palette.
+            PngEncoderPalette palette = PngEncoderPalette.collect(plan.extractor, plan.metaInfo.channels, region.y, height);
+            if (palette != null && palette.size() <= quantization.getMaxColors()) {
+                plan = plan.withPalette(palette);
+            } else {
+                BufferedImage indexedImage = PngEncoderQuantizer.quantize(plan.extractor, plan.metaInfo.channels,
+                        width, region.y, height, quantization, multiThreadedCompressionEnabled);
+                // From here on the indexed image is encoded, as a whole.
+                region = new Rectangle(0, 0, width, height);
+                plan = PngEncoderEncodingPlan.of(indexedImage, 0, width);
+                plan.metaInfo.colorProfile = unreducedPlan.metaInfo.colorProfile;
+            }
+            usePredictor = false;
+        } else if (useLosslessReduction && plan.metaInfo.palette == null) {
+            PngEncoderImageAnalysis analysis = PngEncoderImageAnalysis.analyze(plan.extractor, plan.metaInfo, region.y,
+                    height, multiThreadedCompressionEnabled);
+            plan = plan.withLosslessReduction(analysis);
         }
+        // The colors are collected with the alpha channel when the reduced rows rely on a transparent color.
+        final PngEncoderEncodingPlan palettePlan = plan.metaInfo.transparentColor == null ? plan : unreducedPlan;
+        if (usePaletteReduction && isPaletteCandidate(plan.metaInfo) && isPaletteCandidate(palettePlan.metaInfo)) {
+            PngEncoderPalette palette = PngEncoderPalette.collect(palettePlan.extractor, palettePlan.metaInfo.channels,
+                    region.y, height);
+            if (palette != null) {
+                plan = palettePlan.withPalette(palette);
+                // Filter type none is recommended for palette images, the differences of indices mean nothing.
+                // https://www.w3.org/TR/PNG-Encoders.html#E.Filter-selection
+                usePredictor = false;
+            }
+        }
+        return new ResolvedImage(plan.extractor, plan.metaInfo, region.y, width, height, usePredictor);
+    }
 
-        if (metaInfo.colorProfile != null) {
-            byte[] iCCP = getICCP(metaInfo.colorProfile);
-            outputStream.write(asChunk("iCCP", iCCP));
+    /**
+     * Resolves the rows of a row source, which are pulled from it one at a time, from top to bottom.
+     */
+    static ResolvedImage resolve(PngEncoderImageHeader imageHeader, PngEncoderRowSource rowSource,
+            boolean usePredictor) {
+        Objects.requireNonNull(rowSource, "rowSource");
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = imageHeader.toEncodingMetaInfo();
+        return new ResolvedImage(getRowSourceExtractor(imageHeader, rowSource, metaInfo), metaInfo, 0,
+                imageHeader.getWidth(), imageHeader.getHeight(), usePredictor);
+    }
+
+    static int encode(ResolvedImage image, OutputStream outputStream, int compressionLevel,
+            boolean multiThreadedCompressionEnabled, PngEncoderAncillaryChunks ancillaryChunks) throws IOException {
+        Objects.requireNonNull(outputStream, "outputStream");
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = image.metaInfo;
+        final PngEncoderScanlineUtil.AbstractScanlineExtractor extractor = image.extractor;
+        final int width = image.width;
+        final int height = image.height;
+        final boolean usePredictor = image.usePredictor;
+        // Only the rows of the region are used from here on, the extractor already knows the columns.
+        final Rectangle region = new Rectangle(0, image.yStart, width, height);
+        if (PngEncoderSmallImageEncoder.isSmallImage(metaInfo, height)) {
+            return PngEncoderSmallImageEncoder.encode(extractor, image.yStart, width, height, metaInfo,
+                    ancillaryChunks, compressionLevel, usePredictor, outputStream);
         }
 
+        final PngEncoderCountingOutputStream countingOutputStream = new PngEncoderCountingOutputStream(outputStream);
+
+        writeHeaderChunks(countingOutputStream, width, height, metaInfo, ancillaryChunks);
+
         PngEncoderIdatChunksOutputStream idatChunksOutputStream = new PngEncoderIdatChunksOutputStream(
                 countingOutputStream);
-        int estimatedBytes = metaInfo.rowByteSize * bufferedImage.getHeight();
+        long estimatedBytes = (long) metaInfo.rowByteSize * height;
         final int segmentMaxLengthOriginal = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginal(estimatedBytes);
         if (usePredictor) {
             if (estimatedBytes <= segmentMaxLengthOriginal || !multiThreadedCompressionEnabled) {
-                Deflater deflater = new Deflater(compressionLevel);
-                DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(idatChunksOutputStream, deflater);
-                PngEncoderPredictor.encodeImageSingleThreaded(bufferedImage,  metaInfo, deflaterOutputStream);
-                deflaterOutputStream.finish();
-                deflaterOutputStream.flush();
+                Deflater deflater = PngEncoderDeflaterPool.borrow(compressionLevel);
+                try {
+                    DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(idatChunksOutputStream, deflater);
+                    PngEncoderPredictor.encodeImageSingleThreaded(extractor, region, metaInfo, deflaterOutputStream);
+                    deflaterOutputStream.finish();
+                    deflaterOutputStream.flush();
+                } finally {
+                    PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+                }
             } else {
                 PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(
                         idatChunksOutputStream, compressionLevel, segmentMaxLengthOriginal);
-                PngEncoderPredictor.encodeImageMultiThreaded(bufferedImage, metaInfo, deflaterOutputStream);
+                PngEncoderPredictor.encodeImageMultiThreaded(extractor, region, metaInfo, deflaterOutputStream);
                 deflaterOutputStream.finish();
             }
         } else {
             if (estimatedBytes <= segmentMaxLengthOriginal || !multiThreadedCompressionEnabled) {
-                Deflater deflater = new Deflater(compressionLevel);
-                DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(idatChunksOutputStream, deflater);
-                PngEncoderScanlineUtil.stream(bufferedImage, 0, bufferedImage.getHeight(), new AbstractPNGLineConsumer() {
-                    @Override
-                    void consume(byte[] currRow, byte[] prevRow) throws IOException {
-                        deflaterOutputStream.write(currRow);
-                    }
-                });
-                deflaterOutputStream.finish();
-                deflaterOutputStream.flush();
+                Deflater deflater = PngEncoderDeflaterPool.borrow(compressionLevel);
+                try {
+                    DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(idatChunksOutputStream, deflater);
+                    PngEncoderScanlineUtil.stream(extractor, region.y, height,
+                            new PngEncoderScanlineUtil.OutputStreamPNGLineConsumer(deflaterOutputStream));
+                    deflaterOutputStream.finish();
+                    deflaterOutputStream.flush();
+                } finally {
+                    PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+                }
             } else {
                 PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(
                         idatChunksOutputStream, compressionLevel, segmentMaxLengthOriginal);
-                PngEncoderScanlineUtil.stream(bufferedImage, 0, bufferedImage.getHeight(), new AbstractPNGLineConsumer() {
-                    @Override
-                    void consume(byte[] currRow, byte[] prevRow) throws IOException {
-                        deflaterOutputStream.write(currRow);
-                    }
-                });
+                PngEncoderScanlineUtil.stream(extractor, region.y, height,
+                        new PngEncoderScanlineUtil.OutputStreamPNGLineConsumer(deflaterOutputStream));
                 deflaterOutputStream.finish();
             }
         }
@@ -135,7 +219,137 @@ class PngEncoderLogic {
         return countingOutputStream.getCount();
     }
 
-    private static byte[] getICCP(ICC_Profile colorProfile) throws IOException {
+    private static boolean isPaletteCandidate(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo) {
+        return metaInfo.palette == null && metaInfo.bitsPerChannel == 8
+                && (metaInfo.channels == 3 || metaInfo.channels == 4);
+    }
+
+    static int encode(PngEncoderImageHeader imageHeader, PngEncoderRowSource rowSource, OutputStream outputStream,
+            int compressionLevel, boolean multiThreadedCompressionEnabled, PngEncoderAncillaryChunks ancillaryChunks,
+            boolean usePredictor) throws IOException {
+        Objects.requireNonNull(rowSource, "rowSource");
+
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = imageHeader.toEncodingMetaInfo();
+        if (PngEncoderSmallImageEncoder.isSmallImage(metaInfo, imageHeader.getHeight())) {
+            return encode(resolve(imageHeader, rowSource, usePredictor), outputStream, compressionLevel,
+                    multiThreadedCompressionEnabled, ancillaryChunks);
+        }
+
+        // The rows are pulled one at a time in this thread. Memory use is bounded by the queued segments
+        // of the multithreaded deflater, never by the size of the image.
+        // A failing row source closes the writer before all rows are written, which releases its deflater.
+        try (PngEncoderRowWriter rowWriter = new PngEncoderRowWriter(outputStream, imageHeader, compressionLevel,
+                multiThreadedCompressionEnabled, ancillaryChunks, usePredictor)) {
+            byte[] row = new byte[imageHeader.getBytesPerRow()];
+            for (int y = 0; y < imageHeader.getHeight(); y++) {
+                rowSource.fillRow(y, row);
+                rowWriter.writeRow(row);
+            }
+            return rowWriter.finish();
+        }
+    }
+
+    /**
+     * Pulls the rows from the row source, so that small images from a row source are encoded just like small
+     * buffered images.
+     */
+    private static PngEncoderScanlineUtil.AbstractScanlineExtractor getRowSourceExtractor(
+            PngEncoderImageHeader imageHeader, PngEncoderRowSource rowSource,
+            PngEncoderScanlineUtil.EncodingMetaInfo metaInfo) {
+        final byte[] row = new byte[imageHeader.getBytesPerRow()];
+        return new PngEncoderScanlineUtil.AbstractScanlineExtractor(metaInfo.rowByteSize) {
+            @Override
+            void stream(PngEncoderScanlineContext context, int yStart, int heightToStream,
+                    AbstractPNGLineConsumer consumer) throws IOException {
+                byte[] currLine = context.currLine;
+                byte[] prevLine = context.prevLine;
+                for (int y = yStart; y < yStart + heightToStream; y++) {
+                    rowSource.fillRow(y, row);
+                    System.arraycopy(row, 0, currLine, 1, row.length);
+                    consumer.consume(currLine, prevLine);
+                    {
+                        byte[] b = currLine;
+                        currLine = prevLine;
+                        prevLine = b;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * The rows to encode and how to encode them, once the image has been analyzed.
+     */
+    static final class ResolvedImage {
+        final PngEncoderScanlineUtil.AbstractScanlineExtractor extractor;
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo;
+        final int yStart;
+        final int width;
+        final int height;
+        final boolean usePredictor;
+
+        ResolvedImage(PngEncoderScanlineUtil.AbstractScanlineExtractor extractor,
+                PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, int yStart, int width, int height,
+                boolean usePredictor) {
+            this.extractor = extractor;
+            this.metaInfo = metaInfo;
+            this.yStart = yStart;
+            this.width = width;
+            this.height = height;
+            this.usePredictor = usePredictor;
+        }
+    }
+
+    static AbstractPNGLineConsumer getLineConsumer(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo,
+            OutputStream outputStream, boolean usePredictor) {
+        if (usePredictor) {
+            return new PngEncoderPredictor(metaInfo, outputStream);
+        }
+        return new PngEncoderScanlineUtil.OutputStreamPNGLineConsumer(outputStream);
+    }
+
+    static void writeHeaderChunks(OutputStream outputStream, int width, int height,
+            PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, PngEncoderAncillaryChunks ancillaryChunks)
+            throws IOException {
+        outputStream.write(FILE_BEGINNING);
+
+        final byte[] ihdr = getIhdrHeader(width, height, metaInfo);
+        final byte[] ihdrChunk = asChunk("IHDR", ihdr);
+        outputStream.write(ihdrChunk);
+
+        // The sRGB, gAMA, cHRM and pHYs chunks were built when the PngEncoder was configured.
+        outputStream.write(ancillaryChunks.get(metaInfo.colorProfile != null));
+
+        if (metaInfo.colorProfile != null) {
+            outputStream.write(getIccpChunk(metaInfo.colorProfile));
+        }
+
+        // The palette has to follow the color space chunks, and the transparency the palette.
+        if (metaInfo.palette != null) {
+            outputStream.write(asChunk("PLTE", metaInfo.palette.getPlte()));
+            byte[] tRNS = metaInfo.palette.getTrns();
+            if (tRNS != null) {
+                outputStream.write(asChunk("tRNS", tRNS));
+            }
+        }
+        if (metaInfo.transparentColor != null) {
+            outputStream.write(asChunk("tRNS", metaInfo.transparentColor));
+        }
+    }
+
+    private static byte[] getIccpChunk(ICC_Profile colorProfile) throws IOException {
+        // getData() returns a copy, so the cache can keep it as key.
+        byte[] profileData = colorProfile.getData();
+        PngEncoderIccpChunkCache cache = PngEncoderIccpChunkCache.getInstance();
+        byte[] chunk = cache.get(profileData);
+        if (chunk == null) {
+            chunk = asChunk("iCCP", getICCP(colorProfile, profileData));
+            cache.put(profileData, chunk);
+        }
+        return chunk;
+    }
+
+    private static byte[] getICCP(ICC_Profile colorProfile, byte[] profileData) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
         // Write the profile name
@@ -150,7 +364,7 @@ class PngEncoderLogic {
 
         // ICC Profile Data
         try (DeflaterOutputStream compressStream = new DeflaterOutputStream(out)) {
-            compressStream.write(colorProfile.getData());
+            compressStream.write(profileData);
         }
         return out.toByteArray();
     }
@@ -196,13 +410,17 @@ class PngEncoderLogic {
         buffer.putInt(width);
         buffer.putInt(height);
         buffer.put((byte) metaInfo.bitsPerChannel);
-        switch (metaInfo.colorSpaceType) {
-            case Rgb:
-                buffer.put(metaInfo.hasAlpha ? IHDR_COLOR_TYPE_RGBA : IHDR_COLOR_TYPE_RGB);
-                break;
-            case Gray:
-                buffer.put(metaInfo.hasAlpha ? IHDR_COLOR_TYPE_GREY_ALPHA : IHDR_COLOR_TYPE_GREY);
-                break;
+        if (metaInfo.palette != null) {
+            buffer.put(IHDR_COLOR_TYPE_PALETTE);
+        } else {
+            switch (metaInfo.colorSpaceType) {
+                case Rgb:
+                    buffer.put(metaInfo.hasAlpha ? IHDR_COLOR_TYPE_RGBA : IHDR_COLOR_TYPE_RGB);
+                    break;
+                case Gray:
+                    buffer.put(metaInfo.hasAlpha ? IHDR_COLOR_TYPE_GREY_ALPHA : IHDR_COLOR_TYPE_GREY);
+                    break;
+            }
         }
         buffer.put(IHDR_COMPRESSION_METHOD);
         buffer.put(IHDR_FILTER_METHOD);
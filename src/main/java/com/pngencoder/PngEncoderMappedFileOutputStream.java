@@ -0,0 +1,168 @@
+package com.pngencoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Writes a file through memory mappings instead of system calls, for images of hundreds of megabytes and more.
+ * <p>
+ * The file is mapped in windows, each one starting where the one before ends. A large write, such as a deflated
+ * segment, is copied straight into the mapping. Mapping a window grows the file, so it is truncated to the bytes
+ * actually written when the stream is closed.
+ * <p>
+ * Mappings are normally only released by the garbage collector, and some platforms, e.g. Windows, refuse to truncate
+ * a file while it is mapped. So every window is released explicitly once it is full or the stream is closed, the
+ * way memory mapping libraries do. A released window is never accessed again.
+ */
+class PngEncoderMappedFileOutputStream extends OutputStream {
+    // Windows grow from this length, unless the expected length of the file is larger.
+    static final int MIN_WINDOW_LENGTH = 1024 * 1024;
+
+    // Mappings are only released by the garbage collector, so the windows of a huge file stay moderately sized.
+    static final int MAX_WINDOW_LENGTH = 256 * 1024 * 1024;
+
+    // Null if mappings can only be released by the garbage collector.
+    private static final Consumer<MappedByteBuffer> UNMAPPER = getUnmapper();
+
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long count;
+    private boolean closed;
+
+    /**
+     * @param expectedLength the length of the first window, e.g. the estimated size of the file
+     */
+    PngEncoderMappedFileOutputStream(Path filePath, long expectedLength) throws IOException {
+        this.channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(MIN_WINDOW_LENGTH, Math.min(expectedLength, MAX_WINDOW_LENGTH)));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!window.hasRemaining()) {
+            mapNextWindow();
+        }
+        window.put((byte) b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            if (!window.hasRemaining()) {
+                mapNextWindow();
+            }
+            final int toCopyCount = Math.min(len, window.remaining());
+            window.put(b, off, toCopyCount);
+            count += toCopyCount;
+            off += toCopyCount;
+            len -= toCopyCount;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Maps a window twice as large as the one before, up to {@link #MAX_WINDOW_LENGTH}.
+     */
+    private void mapNextWindow() throws IOException {
+        final int length = (int) Math.min((long) window.capacity() * 2, MAX_WINDOW_LENGTH);
+        windowStart += window.capacity();
+        final MappedByteBuffer fullWindow = window;
+        window = null;
+        unmap(fullWindow);
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, length);
+    }
+
+    long size() {
+        return count;
+    }
+
+    /**
+     * Does nothing, the written bytes are visible to readers of the file as soon as they are in the mapping.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            final MappedByteBuffer lastWindow = window;
+            window = null;
+            if (lastWindow != null) {
+                unmap(lastWindow);
+            }
+            channel.truncate(count);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Releases the mapping right away. If the platform offers no way to do so, the garbage collector releases it.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER != null) {
+            UNMAPPER.accept(buffer);
+        }
+    }
+
+    private static Consumer<MappedByteBuffer> getUnmapper() {
+        try {
+            // Java 9 and later.
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8, where the buffer has a cleaner of its own.
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not release the mapping of the file.", e);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.AbstractScanlineExtractor;
+
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The palette of an indexed (color type 3) image, with a lookup of the palette index of a color.
+ * <p>
+ * The colors are stored as ARGB ints. The lookup is a primitive open addressing hash table, so neither
+ * collecting the colors of an image nor indexing its pixels allocates anything per pixel.
+ */
+class PngEncoderPalette {
+    // A PNG palette can not have more entries.
+    static final int MAX_SIZE = 256;
+
+    // Power of two, so that the table is never more than half full.
+    private static final int TABLE_SIZE = 2 * MAX_SIZE;
+    private static final int TABLE_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(TABLE_SIZE);
+
+    // How many rows are collected before checking whether there are too many colors already.
+    private static final int COLLECT_ROWS_PER_CHECK = 16;
+
+    private final int[] tableColors = new int[TABLE_SIZE];
+    private final int[] tableIndices = new int[TABLE_SIZE];
+    private final int[] colors = new int[MAX_SIZE];
+    private int size;
+
+    private PngEncoderPalette() {
+        Arrays.fill(tableIndices, -1);
+    }
+
+    /**
+     * Collects the distinct colors of the rows of an 8 bit RGB or RGBA image.
+     *
+     * @return the palette of the rows, or null if they have more than {@link #MAX_SIZE} colors
+     */
+    static PngEncoderPalette collect(AbstractScanlineExtractor extractor, int channels, int yStart, int height) throws IOException {
+        assert channels == 3 || channels == 4;
+        ColorCollector collector = new ColorCollector(new PngEncoderPalette(), channels);
+        try (PngEncoderScanlineContext context = PngEncoderScanlineContext.open(extractor)) {
+            for (int y = 0; y < height; y += COLLECT_ROWS_PER_CHECK) {
+                context.stream(yStart + y, Math.min(COLLECT_ROWS_PER_CHECK, height - y), collector);
+                if (collector.overflow) {
+                    return null;
+                }
+            }
+        }
+        collector.palette.sortTranslucentFirst();
+        return collector.palette;
+    }
+
+    /**
+     * @return the palette with the given ARGB colors, in that order
+     */
+    static PngEncoderPalette of(int[] argbColors) {
+        if (argbColors.length > MAX_SIZE) {
+            String message = String.format("A palette can have at most %d colors, but got %d.", MAX_SIZE, argbColors.length);
+            throw new IllegalArgumentException(message);
+        }
+        PngEncoderPalette palette = new PngEncoderPalette();
+        for (int argb : argbColors) {
+            palette.colors[palette.size++] = argb;
+        }
+        palette.rebuildTable();
+        return palette;
+    }
+
+    /**
+     * @return the palette of the color model, limited to the entries which can be addressed with {@code bitDepth} bits
+     */
+    static PngEncoderPalette of(IndexColorModel colorModel, int bitDepth) {
+        int[] argbColors = new int[Math.min(colorModel.getMapSize(), 1 << bitDepth)];
+        for (int i = 0; i < argbColors.length; i++) {
+            argbColors[i] = colorModel.getRGB(i);
+        }
+        return of(argbColors);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getColor(int index) {
+        return colors[index];
+    }
+
+    /**
+     * @return the smallest bit depth which can address all entries
+     */
+    int getBitDepth() {
+        if (size <= 2) {
+            return 1;
+        }
+        if (size <= 4) {
+            return 2;
+        }
+        if (size <= 16) {
+            return 4;
+        }
+        return 8;
+    }
+
+    /**
+     * @return the index of the color, or -1 if it is not in the palette
+     */
+    int indexOf(int argb) {
+        int slot = slot(argb);
+        while (tableIndices[slot] != -1) {
+            if (tableColors[slot] == argb) {
+                return tableIndices[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the content of the PLTE chunk
+     */
+    byte[] getPlte() {
+        byte[] plte = new byte[size * 3];
+        for (int i = 0; i < size; i++) {
+            plte[i * 3] = (byte) (colors[i] >> 16);
+            plte[i * 3 + 1] = (byte) (colors[i] >> 8);
+            plte[i * 3 + 2] = (byte) colors[i];
+        }
+        return plte;
+    }
+
+    /**
+     * The tRNS chunk only needs to go up to the last entry which is not fully opaque.
+     *
+     * @return the content of the tRNS chunk, or null if all entries are opaque
+     */
+    byte[] getTrns() {
+        int length = size;
+        while (length > 0 && (colors[length - 1] >>> 24) == 0xFF) {
+            length--;
+        }
+        if (length == 0) {
+            return null;
+        }
+        byte[] trns = new byte[length];
+        for (int i = 0; i < length; i++) {
+            trns[i] = (byte) (colors[i] >>> 24);
+        }
+        return trns;
+    }
+
+    /**
+     * Creates an extractor which streams the rows of an 8 bit RGB or RGBA extractor as rows of palette indices.
+     * The palette must contain all colors of the image.
+     *
+     * @param rowByteSize the size of the index rows, see EncodingMetaInfo.forWidth()
+     */
+    AbstractScanlineExtractor indexing(AbstractScanlineExtractor source, int channels, int width, int rowByteSize) {
+        final int bitDepth = getBitDepth();
+        return new AbstractScanlineExtractor(rowByteSize) {
+            @Override
+            void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                // The rows of this context have the size of the index rows. The source rows need a context of their own.
+                try (PngEncoderScanlineContext sourceContext = PngEncoderScanlineContext.open(source)) {
+                    sourceContext.stream(yStart, heightToStream, new IndexingLineConsumer(PngEncoderPalette.this,
+                            channels, width, bitDepth, context.currLine, context.prevLine, consumer));
+                }
+            }
+        };
+    }
+
+    private boolean add(int argb) {
+        int slot = slot(argb);
+        while (tableIndices[slot] != -1) {
+            if (tableColors[slot] == argb) {
+                return true;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        if (size == MAX_SIZE) {
+            return false;
+        }
+        tableColors[slot] = argb;
+        tableIndices[slot] = size;
+        colors[size++] = argb;
+        return true;
+    }
+
+    /**
+     * Orders the entries which are not fully opaque first, so that the tRNS chunk can be as short as possible.
+     */
+    private void sortTranslucentFirst() {
+        int opaqueStart = 0;
+        for (int i = 0; i < size; i++) {
+            if ((colors[i] >>> 24) != 0xFF) {
+                int color = colors[i];
+                colors[i] = colors[opaqueStart];
+                colors[opaqueStart++] = color;
+            }
+        }
+        rebuildTable();
+    }
+
+    private void rebuildTable() {
+        Arrays.fill(tableIndices, -1);
+        for (int i = 0; i < size; i++) {
+            int slot = slot(colors[i]);
+            while (tableIndices[slot] != -1 && tableColors[slot] != colors[i]) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            // For duplicate colors the first entry wins.
+            if (tableIndices[slot] == -1) {
+                tableColors[slot] = colors[i];
+                tableIndices[slot] = i;
+            }
+        }
+    }
+
+    private static int slot(int argb) {
+        // Fibonacci hashing, the high bits of the product are well mixed.
+        return (argb * 0x9E3779B9) >>> TABLE_SHIFT;
+    }
+
+    private static int getColor(byte[] row, int offset, int channels) {
+        int alpha = channels == 4 ? row[offset + 3] & 0xFF : 0xFF;
+        return alpha << 24 | (row[offset] & 0xFF) << 16 | (row[offset + 1] & 0xFF) << 8 | (row[offset + 2] & 0xFF);
+    }
+
+    /**
+     * Adds the colors of every row to the palette, until there are too many of them.
+     */
+    private static final class ColorCollector extends AbstractPNGLineConsumer {
+        private final PngEncoderPalette palette;
+        private final int channels;
+        private boolean overflow;
+
+        ColorCollector(PngEncoderPalette palette, int channels) {
+            this.palette = palette;
+            this.channels = channels;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) {
+            if (overflow) {
+                return;
+            }
+            final int channels = this.channels;
+            final PngEncoderPalette palette = this.palette;
+            // Neighbouring pixels very often have the same color.
+            int lastColor = getColor(currRow, 1, channels);
+            if (!palette.add(lastColor)) {
+                overflow = true;
+                return;
+            }
+            for (int i = 1 + channels; i < currRow.length; i += channels) {
+                int color = getColor(currRow, i, channels);
+                if (color != lastColor) {
+                    if (!palette.add(color)) {
+                        overflow = true;
+                        return;
+                    }
+                    lastColor = color;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the colors of every row by their packed palette indices, and passes the index rows on.
+     */
+    private static final class IndexingLineConsumer extends AbstractPNGLineConsumer {
+        private final PngEncoderPalette palette;
+        private final int channels;
+        private final int width;
+        private final int bitDepth;
+        private final AbstractPNGLineConsumer consumer;
+        private byte[] currLine;
+        private byte[] prevLine;
+
+        IndexingLineConsumer(PngEncoderPalette palette, int channels, int width, int bitDepth, byte[] currLine,
+                byte[] prevLine, AbstractPNGLineConsumer consumer) {
+            this.palette = palette;
+            this.channels = channels;
+            this.width = width;
+            this.bitDepth = bitDepth;
+            this.currLine = currLine;
+            this.prevLine = prevLine;
+            this.consumer = consumer;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) throws IOException {
+            final int channels = this.channels;
+            final int bitDepth = this.bitDepth;
+            final PngEncoderPalette palette = this.palette;
+            final byte[] line = currLine;
+
+            int lastColor = getColor(currRow, 1, channels);
+            int lastIndex = palette.indexOf(lastColor);
+            int packed = 0;
+            int packedBits = 0;
+            int writePtr = 1;
+            int readPtr = 1;
+            for (int x = 0; x < width; x++) {
+                int color = getColor(currRow, readPtr, channels);
+                readPtr += channels;
+                if (color != lastColor) {
+                    lastColor = color;
+                    lastIndex = palette.indexOf(color);
+                    assert lastIndex >= 0;
+                }
+                packed = (packed << bitDepth) | lastIndex;
+                packedBits += bitDepth;
+                if (packedBits == 8) {
+                    line[writePtr++] = (byte) packed;
+                    packed = 0;
+                    packedBits = 0;
+                }
+            }
+            if (packedBits > 0) {
+                // The last byte of the row is padded with zero bits.
+                line[writePtr] = (byte) (packed << (8 - packedBits));
+            }
+
+            consumer.consume(line, prevLine);
+            {
+                byte[] b = currLine;
+                currLine = prevLine;
+                prevLine = b;
+            }
+        }
+    }
+}
@@ -1,160 +1,185 @@
 package com.pngencoder;
 
 import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.AbstractScanlineExtractor;
 
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-class PngEncoderPredictor {
-    private PngEncoderPredictor() {
-    }
-
-    static void encodeImageMultiThreaded(BufferedImage image, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, OutputStream out) throws IOException {
+class PngEncoderPredictor extends AbstractPNGLineConsumer {
+    static void encodeImageMultiThreaded(AbstractScanlineExtractor extractor, Rectangle region, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, OutputStream out) throws IOException {
 
-        int height = image.getHeight();
+        int height = region.height;
         int heightPerSlice = Math.max(10, PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN / metaInfo.rowByteSize) + 1;
 
         /*
          * Encode the image in slices, so that we can stream some image rows into the CPU cache, and then
          * get them distributed to the ZIP threads without thrashing the cache to much.
+         *
+         * The scanline context, the predictor and its row buffers are shared by all slices. The predictor gets the
+         * last row of the previous slice as previous row of the first row of a slice.
          */
         ByteArrayOutputStream outBytes = new ByteArrayOutputStream(heightPerSlice * metaInfo.rowByteSize);
-        for (int y = 0; y < height; y += heightPerSlice) {
-            int heightToProcess = Math.min(heightPerSlice, height - y);
-            new PngEncoderPredictor().encodeImage(image, y, heightToProcess, metaInfo, outBytes);
-            outBytes.writeTo(out);
-            outBytes.reset();
+        PngEncoderScanlineUtil.SliceLineConsumer sliceLineConsumer = new PngEncoderScanlineUtil.SliceLineConsumer(
+                new PngEncoderPredictor(metaInfo, outBytes), metaInfo.rowByteSize);
+        try (PngEncoderScanlineContext context = PngEncoderScanlineContext.open(extractor)) {
+            for (int y = 0; y < height; y += heightPerSlice) {
+                int heightToProcess = Math.min(heightPerSlice, height - y);
+                sliceLineConsumer.startSlice(heightToProcess);
+                context.stream(region.y + y, heightToProcess, sliceLineConsumer);
+                outBytes.writeTo(out);
+                outBytes.reset();
+            }
         }
     }
 
-    static void encodeImageSingleThreaded(BufferedImage image, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, OutputStream outputStream) throws IOException {
-        new PngEncoderPredictor().encodeImage(image, 0, image.getHeight(), metaInfo, outputStream);
+    static void encodeImageSingleThreaded(AbstractScanlineExtractor extractor, Rectangle region, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, OutputStream outputStream) throws IOException {
+        PngEncoderScanlineUtil.stream(extractor, region.y, region.height, new PngEncoderPredictor(metaInfo, outputStream));
     }
 
-    private byte[] dataRawRowSub;
-    private byte[] dataRawRowUp;
-    private byte[] dataRawRowAverage;
-    private byte[] dataRawRowPaeth;
-
-    private void encodeImage(BufferedImage image, int yStart, int height, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, OutputStream outputStream) throws IOException {
-        dataRawRowSub = new byte[metaInfo.rowByteSize];
-        dataRawRowUp = new byte[metaInfo.rowByteSize];
-        dataRawRowAverage = new byte[metaInfo.rowByteSize];
-        dataRawRowPaeth = new byte[metaInfo.rowByteSize];
+    private final int bpp;
+    private final OutputStream outputStream;
+    private final byte[] dataRawRowSub;
+    private final byte[] dataRawRowUp;
+    private final byte[] dataRawRowAverage;
+    private final byte[] dataRawRowPaeth;
+
+    /**
+     * Creates a line consumer which predictor encodes every row it consumes and writes it to {@code outputStream}.
+     */
+    PngEncoderPredictor(PngEncoderScanlineUtil.EncodingMetaInfo metaInfo, OutputStream outputStream) {
+        this.bpp = metaInfo.bytesPerPixel;
+        this.outputStream = outputStream;
+        this.dataRawRowSub = new byte[metaInfo.rowByteSize];
+        this.dataRawRowUp = new byte[metaInfo.rowByteSize];
+        this.dataRawRowAverage = new byte[metaInfo.rowByteSize];
+        this.dataRawRowPaeth = new byte[metaInfo.rowByteSize];
 
         dataRawRowSub[0] = 1;
         dataRawRowUp[0] = 2;
         dataRawRowAverage[0] = 3;
         dataRawRowPaeth[0] = 4;
+    }
 
-        boolean redoFirstRow = yStart > 0;
-        PngEncoderScanlineUtil.stream(image, redoFirstRow ? (yStart - 1) : yStart, height + (redoFirstRow ? 1 : 0), new AbstractPNGLineConsumer() {
-            boolean skipFirstRow = redoFirstRow;
+    @Override
+    void consume(byte[] currRow, byte[] prevRow) throws IOException {
+        int bpp = this.bpp;
+        @SuppressWarnings("UnnecessaryLocalVariable")
+        byte[] dataRawRowNone = currRow;
+        byte[] dataRawRowSub = this.dataRawRowSub;
+        byte[] dataRawRowUp = this.dataRawRowUp;
+        byte[] dataRawRowAverage = this.dataRawRowAverage;
+        byte[] dataRawRowPaeth = this.dataRawRowPaeth;
+
+        // c | b
+        // -----
+        // a | x
+        //
+        // x => current pixel
+        int bLen = currRow.length;
+        assert currRow.length == prevRow.length;
+        assert currRow[0] == 0;
+        assert prevRow[0] == 0;
+
+        long estCompressSum = 0;        // Marker 0 for no predictor
+        long estCompressSumSub = 1;     // Marker 1 for sub predictor
+        long estCompressSumUp = 2;      // Marker 2 for up preditor
+        long estCompressSumAvg = 3;     // Marker 3 for average predictor
+        long estCompressSumPaeth = 4;   // Marker 4 for paeth predictor
 
-            @Override
-            void consume(byte[] currRow, byte[] prevRow) throws IOException {
-                if (skipFirstRow) {
-                    skipFirstRow = false;
-                    return;
-                }
+        /*
+         * The bytes of the first pixel have no left neighbour, so a and c are 0 for them. The filters work on
+         * bytes and not on samples, so a is the same byte of the previous pixel for 16 bit samples as well.
+         * Handling the first pixel in its own loop keeps the check out of the loop over the rest of the row.
+         */
+        int firstPixelEnd = Math.min(bpp + 1, bLen);
+        for (int i = 1; i < firstPixelEnd; i++) {
+            int x = currRow[i] & 0xFF;
+            int b = prevRow[i] & 0xFF;
+
+            // With a = c = 0 the paeth predictor is always b, and the average predictor is b / 2.
+            byte bSub = (byte) x;
+            byte bUp = (byte) (x - b);
+            byte bAverage = (byte) (x - (b / 2));
+
+            dataRawRowSub[i] = bSub;
+            dataRawRowUp[i] = bUp;
+            dataRawRowAverage[i] = bAverage;
+            dataRawRowPaeth[i] = bUp;
+
+            estCompressSum += Math.abs(x);
+            estCompressSumSub += Math.abs(bSub);
+            estCompressSumUp += Math.abs(bUp);
+            estCompressSumAvg += Math.abs(bAverage);
+            estCompressSumPaeth += Math.abs(bUp);
+        }
 
-                int bpp = metaInfo.bytesPerPixel;
-                @SuppressWarnings("UnnecessaryLocalVariable")
-                byte[] dataRawRowNone = currRow;
-                byte[] dataRawRowSub = PngEncoderPredictor.this.dataRawRowSub;
-                byte[] dataRawRowUp = PngEncoderPredictor.this.dataRawRowUp;
-                byte[] dataRawRowAverage = PngEncoderPredictor.this.dataRawRowAverage;
-                byte[] dataRawRowPaeth = PngEncoderPredictor.this.dataRawRowPaeth;
-
-                // c | b
-                // -----
-                // a | x
-                //
-                // x => current pixel
-                int bLen = currRow.length;
-                assert currRow.length == prevRow.length;
-                assert currRow[0] == 0;
-                assert prevRow[0] == 0;
-
-                long estCompressSum = 0;        // Marker 0 for no predictor
-                long estCompressSumSub = 1;     // Marker 1 for sub predictor
-                long estCompressSumUp = 2;      // Marker 2 for up preditor
-                long estCompressSumAvg = 3;     // Marker 3 for average predictor
-                long estCompressSumPaeth = 4;   // Marker 4 for paeth predictor
-
-                int a = 0;
-                int c = 0;
-                for (int i = 1; i < bLen; i++) {
-                    int x = currRow[i] & 0xFF;
-                    int b = prevRow[i] & 0xFF;
-                    if (i > bpp) {
-                        int prevPixelByte = i - bpp;
-                        a = currRow[prevPixelByte] & 0xFF;
-                        c = prevRow[prevPixelByte] & 0xFF;
-                    }
-
-                    /*
-                     * PNG Filters, see https://www.w3.org/TR/PNG-Filters.html
-                     */
-                    byte bSub = (byte) (x - a);
-                    byte bUp = (byte) (x - b);
-                    byte bAverage = (byte) (x - ((b + a) / 2));
-                    byte bPaeth;
-                    {
-                        int p = a + b - c;
-                        int pa = Math.abs(p - a);
-                        int pb = Math.abs(p - b);
-                        int pc = Math.abs(p - c);
-                        final int pr;
-                        if (pa <= pb && pa <= pc) {
-                            pr = a;
-                        } else if (pb <= pc) {
-                            pr = b;
-                        } else {
-                            pr = c;
-                        }
-
-                        int r = x - pr;
-                        bPaeth = (byte) r;
-                    }
-
-                    dataRawRowSub[i] = bSub;
-                    dataRawRowUp[i] = bUp;
-                    dataRawRowAverage[i] = bAverage;
-                    dataRawRowPaeth[i] = bPaeth;
-
-                    estCompressSum += Math.abs(x);
-                    estCompressSumSub += Math.abs(bSub);
-                    estCompressSumUp += Math.abs(bUp);
-                    estCompressSumAvg += Math.abs(bAverage);
-                    estCompressSumPaeth += Math.abs(bPaeth);
+        for (int i = firstPixelEnd; i < bLen; i++) {
+            int x = currRow[i] & 0xFF;
+            int b = prevRow[i] & 0xFF;
+            int a = currRow[i - bpp] & 0xFF;
+            int c = prevRow[i - bpp] & 0xFF;
+
+            /*
+             * PNG Filters, see https://www.w3.org/TR/PNG-Filters.html
+             */
+            byte bSub = (byte) (x - a);
+            byte bUp = (byte) (x - b);
+            byte bAverage = (byte) (x - ((b + a) / 2));
+            byte bPaeth;
+            {
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                final int pr;
+                if (pa <= pb && pa <= pc) {
+                    pr = a;
+                } else if (pb <= pc) {
+                    pr = b;
+                } else {
+                    pr = c;
                 }
 
-                /*
-                 * Choose which row to write
-                 * https://www.w3.org/TR/PNG-Encoders.html#E.Filter-selection
-                 */
-                byte[] rowToWrite = dataRawRowNone;
-                if (estCompressSum > estCompressSumSub) {
-                    rowToWrite = dataRawRowSub;
-                    estCompressSum = estCompressSumSub;
-                }
-                if (estCompressSum > estCompressSumUp) {
-                    rowToWrite = dataRawRowUp;
-                    estCompressSum = estCompressSumUp;
-                }
-                if (estCompressSum > estCompressSumAvg) {
-                    rowToWrite = dataRawRowAverage;
-                    estCompressSum = estCompressSumAvg;
-                }
-                if (estCompressSum > estCompressSumPaeth) {
-                    rowToWrite = dataRawRowPaeth;
-                }
-
-                outputStream.write(rowToWrite);
+                int r = x - pr;
+                bPaeth = (byte) r;
             }
-        });
+
+            dataRawRowSub[i] = bSub;
+            dataRawRowUp[i] = bUp;
+            dataRawRowAverage[i] = bAverage;
+            dataRawRowPaeth[i] = bPaeth;
+
+            estCompressSum += Math.abs(x);
+            estCompressSumSub += Math.abs(bSub);
+            estCompressSumUp += Math.abs(bUp);
+            estCompressSumAvg += Math.abs(bAverage);
+            estCompressSumPaeth += Math.abs(bPaeth);
+        }
+
+        /*
+         * Choose which row to write
+         * https://www.w3.org/TR/PNG-Encoders.html#E.Filter-selection
+         */
+        byte[] rowToWrite = dataRawRowNone;
+        if (estCompressSum > estCompressSumSub) {
+            rowToWrite = dataRawRowSub;
+            estCompressSum = estCompressSumSub;
+        }
+        if (estCompressSum > estCompressSumUp) {
+            rowToWrite = dataRawRowUp;
+            estCompressSum = estCompressSumUp;
+        }
+        if (estCompressSum > estCompressSumAvg) {
+            rowToWrite = dataRawRowAverage;
+            estCompressSum = estCompressSumAvg;
+        }
+        if (estCompressSum > estCompressSumPaeth) {
+            rowToWrite = dataRawRowPaeth;
+        }
+
+        outputStream.write(rowToWrite);
     }
 }
@@ -0,0 +1,45 @@
+package com.pngencoder;
+
+/**
+ * Represents a lossy reduction of the colors of an image to a palette.
+ *
+ * Use {@link #colors(int)} to create a quantization, and {@link #withDithering(boolean)} to spread the error of
+ * every pixel to its neighbours, which hides the banding of smooth gradients.
+ */
+public class PngEncoderQuantization {
+    private final int maxColors;
+    private final boolean ditheringEnabled;
+
+    private PngEncoderQuantization(int maxColors, boolean ditheringEnabled) {
+        this.maxColors = PngEncoderVerificationUtil.verifyQuantizationColors(maxColors);
+        this.ditheringEnabled = ditheringEnabled;
+    }
+
+    /**
+     * Creates a PngEncoderQuantization to a palette of at most {@code maxColors} colors, without dithering.
+     *
+     * @param maxColors the size of the palette, between 2 and 256 inclusive
+     */
+    public static PngEncoderQuantization colors(int maxColors) {
+        return new PngEncoderQuantization(maxColors, false);
+    }
+
+    /**
+     * Returns a new PngEncoderQuantization which has the same palette size as this one, with or without
+     * Floyd-Steinberg dithering.
+     *
+     * @param ditheringEnabled true if the error of every pixel should be spread to its neighbours
+     * @return a new PngEncoderQuantization
+     */
+    public PngEncoderQuantization withDithering(boolean ditheringEnabled) {
+        return new PngEncoderQuantization(maxColors, ditheringEnabled);
+    }
+
+    public int getMaxColors() {
+        return maxColors;
+    }
+
+    public boolean isDitheringEnabled() {
+        return ditheringEnabled;
+    }
+}
@@ -0,0 +1,422 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.AbstractScanlineExtractor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reduces the colors of an 8 bit RGB or RGBA image to a palette, and maps every pixel to an entry of it.
+ * <p>
+ * The palette is built by median cut on a sample of the pixels. The result is an indexed image, which is encoded
+ * like any other indexed image. The pixels are mapped in row bands in parallel, optionally with Floyd-Steinberg
+ * dithering within every band.
+ */
+class PngEncoderQuantizer {
+    // Enough pixels for a good palette, and few enough to cut it in a few milliseconds.
+    private static final int SAMPLE_MAX_COUNT = 1 << 16;
+
+    // The error of the last row of a band is not spread into the next band, so that the bands can be mapped in
+    // parallel. The fixed height keeps the result independent of the number of processors.
+    private static final int BAND_HEIGHT = 64;
+
+    // The nearest palette entry is looked up once per bin of colors with 5 bits per color sample and 4 bits of
+    // alpha, and then cached.
+    private static final int BIN_COLOR_BITS = 5;
+    private static final int BIN_ALPHA_BITS = 4;
+
+    private final int[] colors;
+    private final int channels;
+    private final short[] nearestOfBin;
+
+    private PngEncoderQuantizer(int[] colors, int channels) {
+        this.colors = colors;
+        this.channels = channels;
+        final int binBits = 3 * BIN_COLOR_BITS + (channels == 4 ? BIN_ALPHA_BITS : 0);
+        this.nearestOfBin = new short[1 << binBits];
+        Arrays.fill(nearestOfBin, (short) -1);
+    }
+
+    /**
+     * Quantizes the rows of an 8 bit RGB or RGBA extractor.
+     *
+     * @return an image of type TYPE_BYTE_INDEXED with the size of the rows
+     */
+    static BufferedImage quantize(AbstractScanlineExtractor extractor, int channels, int width, int yStart, int height,
+            PngEncoderQuantization quantization, boolean multiThreaded) throws IOException {
+        assert channels == 3 || channels == 4;
+        final int[] samples = sample(extractor, channels, width, yStart, height);
+        final PngEncoderQuantizer quantizer = new PngEncoderQuantizer(
+                cutPalette(samples, channels == 4, quantization.getMaxColors()), channels);
+
+        final BufferedImage indexedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+                quantizer.getColorModel());
+        final byte[] indices = ((DataBufferByte) indexedImage.getRaster().getDataBuffer()).getData();
+        final boolean dithering = quantization.isDitheringEnabled();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        // The first band comes last. This thread takes it, instead of just waiting for the others.
+        for (int bandStart = (height - 1) / BAND_HEIGHT * BAND_HEIGHT; bandStart >= 0; bandStart -= BAND_HEIGHT) {
+            final int bandHeight = Math.min(BAND_HEIGHT, height - bandStart);
+            if (multiThreaded && bandStart > 0) {
+                final int asyncBandStart = bandStart;
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        quantizer.mapBand(extractor, width, yStart, asyncBandStart, bandHeight, indices, dithering);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, PngEncoderDeflaterExecutorService.getInstance()));
+            } else {
+                quantizer.mapBand(extractor, width, yStart, bandStart, bandHeight, indices, dithering);
+            }
+        }
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (RuntimeException e) {
+                throw new IOException("An async quantization task failed.", e);
+            }
+        }
+        return indexedImage;
+    }
+
+    /**
+     * @return about {@link #SAMPLE_MAX_COUNT} ARGB colors, taken from a grid over the rows
+     */
+    private static int[] sample(AbstractScanlineExtractor extractor, int channels, int width, int yStart, int height) throws IOException {
+        final long pixels = (long) width * height;
+        final int step = (int) Math.max(1, Math.ceil(Math.sqrt((double) pixels / SAMPLE_MAX_COUNT)));
+        final int[] samples = new int[((width + step - 1) / step) * ((height + step - 1) / step)];
+        final int[] count = new int[1];
+        final AbstractPNGLineConsumer sampler = new AbstractPNGLineConsumer() {
+            @Override
+            void consume(byte[] currRow, byte[] prevRow) {
+                for (int x = 0; x < width; x += step) {
+                    samples[count[0]++] = getColor(currRow, 1 + x * channels, channels);
+                }
+            }
+        };
+        try (PngEncoderScanlineContext context = PngEncoderScanlineContext.open(extractor)) {
+            for (int y = 0; y < height; y += step) {
+                context.stream(yStart + y, 1, sampler);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Median cut: the box of samples with the widest range of one channel, weighted by the number of samples, is
+     * split at the median of that channel, until there are {@code maxColors} boxes. Every box becomes the average
+     * of its samples.
+     *
+     * @return the ARGB palette colors, translucent colors first
+     */
+    private static int[] cutPalette(int[] samples, boolean withAlpha, int maxColors) {
+        final int[] boxStarts = new int[maxColors];
+        final int[] boxEnds = new int[maxColors];
+        final int[] boxShifts = new int[maxColors];
+        final int[] boxRanges = new int[maxColors];
+        final int[] sorted = new int[samples.length];
+        int boxCount = 1;
+        boxEnds[0] = samples.length;
+        measureBox(samples, 0, samples.length, withAlpha, boxShifts, boxRanges, 0);
+
+        while (boxCount < maxColors) {
+            int box = -1;
+            long boxScore = 0;
+            for (int i = 0; i < boxCount; i++) {
+                long score = (long) boxRanges[i] * (boxEnds[i] - boxStarts[i]);
+                if (score > boxScore) {
+                    box = i;
+                    boxScore = score;
+                }
+            }
+            if (box < 0) {
+                // Every box has a single color.
+                break;
+            }
+            final int start = boxStarts[box];
+            final int end = boxEnds[box];
+            final int shift = boxShifts[box];
+            sortByChannel(samples, sorted, start, end, shift);
+            // Samples with the value of the median all go to the same side. The range of the box is not empty,
+            // so one of the sides has other values.
+            final int median = start + (end - start) / 2;
+            final int medianValue = (samples[median] >>> shift) & 0xFF;
+            int split = median;
+            while (split > start && ((samples[split - 1] >>> shift) & 0xFF) == medianValue) {
+                split--;
+            }
+            if (split == start) {
+                split = median;
+                while (((samples[split] >>> shift) & 0xFF) == medianValue) {
+                    split++;
+                }
+            }
+            boxEnds[box] = split;
+            boxStarts[boxCount] = split;
+            boxEnds[boxCount] = end;
+            measureBox(samples, start, split, withAlpha, boxShifts, boxRanges, box);
+            measureBox(samples, split, end, withAlpha, boxShifts, boxRanges, boxCount);
+            boxCount++;
+        }
+
+        final int[] colors = new int[boxCount];
+        int translucentCount = 0;
+        for (int i = 0; i < boxCount; i++) {
+            colors[i] = averageColor(samples, boxStarts[i], boxEnds[i]);
+            if ((colors[i] >>> 24) != 0xFF) {
+                // The tRNS chunk only needs to go up to the last translucent entry.
+                int color = colors[i];
+                colors[i] = colors[translucentCount];
+                colors[translucentCount++] = color;
+            }
+        }
+        return colors;
+    }
+
+    private static void measureBox(int[] samples, int start, int end, boolean withAlpha, int[] boxShifts,
+            int[] boxRanges, int box) {
+        int bestShift = 0;
+        int bestRange = 0;
+        for (int shift = withAlpha ? 24 : 16; shift >= 0; shift -= 8) {
+            int min = 0xFF;
+            int max = 0;
+            for (int i = start; i < end; i++) {
+                int value = (samples[i] >>> shift) & 0xFF;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > bestRange) {
+                bestShift = shift;
+                bestRange = max - min;
+            }
+        }
+        boxShifts[box] = bestShift;
+        boxRanges[box] = bestRange;
+    }
+
+    /**
+     * A counting sort, as there are only 256 values of a channel.
+     */
+    private static void sortByChannel(int[] samples, int[] sorted, int start, int end, int shift) {
+        final int[] offsets = new int[257];
+        for (int i = start; i < end; i++) {
+            offsets[((samples[i] >>> shift) & 0xFF) + 1]++;
+        }
+        for (int value = 0; value < 256; value++) {
+            offsets[value + 1] += offsets[value];
+        }
+        for (int i = start; i < end; i++) {
+            sorted[start + offsets[(samples[i] >>> shift) & 0xFF]++] = samples[i];
+        }
+        System.arraycopy(sorted, start, samples, start, end - start);
+    }
+
+    private static int averageColor(int[] samples, int start, int end) {
+        long a = 0;
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        for (int i = start; i < end; i++) {
+            a += samples[i] >>> 24;
+            r += (samples[i] >> 16) & 0xFF;
+            g += (samples[i] >> 8) & 0xFF;
+            b += samples[i] & 0xFF;
+        }
+        final int count = end - start;
+        final long half = count / 2;
+        return (int) ((a + half) / count) << 24 | (int) ((r + half) / count) << 16
+                | (int) ((g + half) / count) << 8 | (int) ((b + half) / count);
+    }
+
+    private static int getColor(byte[] row, int offset, int channels) {
+        int alpha = channels == 4 ? row[offset + 3] & 0xFF : 0xFF;
+        return alpha << 24 | (row[offset] & 0xFF) << 16 | (row[offset + 1] & 0xFF) << 8 | (row[offset + 2] & 0xFF);
+    }
+
+    private IndexColorModel getColorModel() {
+        final byte[] r = new byte[colors.length];
+        final byte[] g = new byte[colors.length];
+        final byte[] b = new byte[colors.length];
+        final byte[] a = new byte[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            a[i] = (byte) (colors[i] >>> 24);
+            r[i] = (byte) (colors[i] >> 16);
+            g[i] = (byte) (colors[i] >> 8);
+            b[i] = (byte) colors[i];
+        }
+        return new IndexColorModel(8, colors.length, r, g, b, a);
+    }
+
+    private void mapBand(AbstractScanlineExtractor extractor, int width, int yStart, int bandStart, int bandHeight,
+            byte[] indices, boolean dithering) throws IOException {
+        final AbstractPNGLineConsumer mapper = dithering
+                ? new DitheringLineConsumer(this, width, indices, bandStart * width)
+                : new MappingLineConsumer(this, width, indices, bandStart * width);
+        try (PngEncoderScanlineContext context = PngEncoderScanlineContext.open(extractor)) {
+            context.stream(yStart + bandStart, bandHeight, mapper);
+        }
+    }
+
+    /**
+     * Different threads may look up the same bin at the same time. They find the same entry, so the race is benign.
+     *
+     * @return the index of the palette entry nearest to the bin of the color
+     */
+    private int nearest(int a, int r, int g, int b) {
+        int bin = (r >> (8 - BIN_COLOR_BITS)) << (2 * BIN_COLOR_BITS)
+                | (g >> (8 - BIN_COLOR_BITS)) << BIN_COLOR_BITS
+                | (b >> (8 - BIN_COLOR_BITS));
+        if (channels == 4) {
+            bin |= (a >> (8 - BIN_ALPHA_BITS)) << (3 * BIN_COLOR_BITS);
+        }
+        int index = nearestOfBin[bin];
+        if (index < 0) {
+            index = searchNearest(a, r, g, b);
+            nearestOfBin[bin] = (short) index;
+        }
+        return index;
+    }
+
+    private int searchNearest(int a, int r, int g, int b) {
+        // The center of the bin. Opaque pixels stay opaque, the alpha bin of 255 is centered on 255.
+        final int colorRound = 1 << (7 - BIN_COLOR_BITS);
+        final int colorMask = 0xFF << (8 - BIN_COLOR_BITS) & 0xFF;
+        final int centerR = (r & colorMask) | colorRound;
+        final int centerG = (g & colorMask) | colorRound;
+        final int centerB = (b & colorMask) | colorRound;
+        final int alphaMask = 0xFF << (8 - BIN_ALPHA_BITS) & 0xFF;
+        final int centerA = channels == 4 ? ((a & alphaMask) == alphaMask ? 0xFF : (a & alphaMask) | (1 << (7 - BIN_ALPHA_BITS))) : 0xFF;
+
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < colors.length; i++) {
+            final int color = colors[i];
+            final int da = (color >>> 24) - centerA;
+            final int dr = ((color >> 16) & 0xFF) - centerR;
+            final int dg = ((color >> 8) & 0xFF) - centerG;
+            final int db = (color & 0xFF) - centerB;
+            // The color of a translucent pixel matters as much as it is visible.
+            final int distance = da * da * 0xFF + (dr * dr + dg * dg + db * db) * centerA;
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Maps every pixel to the nearest palette entry.
+     */
+    private static final class MappingLineConsumer extends AbstractPNGLineConsumer {
+        private final PngEncoderQuantizer quantizer;
+        private final int width;
+        private final byte[] indices;
+        private int indicesOffset;
+
+        MappingLineConsumer(PngEncoderQuantizer quantizer, int width, byte[] indices, int indicesOffset) {
+            this.quantizer = quantizer;
+            this.width = width;
+            this.indices = indices;
+            this.indicesOffset = indicesOffset;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) {
+            final PngEncoderQuantizer quantizer = this.quantizer;
+            final int channels = quantizer.channels;
+            final byte[] indices = this.indices;
+            int readPtr = 1;
+            int writePtr = indicesOffset;
+            for (int x = 0; x < width; x++) {
+                final int a = channels == 4 ? currRow[readPtr + 3] & 0xFF : 0xFF;
+                indices[writePtr++] = (byte) quantizer.nearest(a, currRow[readPtr] & 0xFF,
+                        currRow[readPtr + 1] & 0xFF, currRow[readPtr + 2] & 0xFF);
+                readPtr += channels;
+            }
+            indicesOffset = writePtr;
+        }
+    }
+
+    /**
+     * Maps every pixel plus the error spread to it to the nearest palette entry, and spreads the new error:
+     * 7/16 to the right, 3/16 to the lower left, 5/16 below and 1/16 to the lower right.
+     */
+    private static final class DitheringLineConsumer extends AbstractPNGLineConsumer {
+        private final PngEncoderQuantizer quantizer;
+        private final int width;
+        private final byte[] indices;
+        private int indicesOffset;
+        // The error spread to the pixels of the current and the next row, in sixteenths, per channel in ARGB
+        // order. One pixel of padding on both sides saves the checks at the edges.
+        private int[] currError;
+        private int[] nextError;
+
+        DitheringLineConsumer(PngEncoderQuantizer quantizer, int width, byte[] indices, int indicesOffset) {
+            this.quantizer = quantizer;
+            this.width = width;
+            this.indices = indices;
+            this.indicesOffset = indicesOffset;
+            this.currError = new int[(width + 2) * 4];
+            this.nextError = new int[(width + 2) * 4];
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) {
+            final PngEncoderQuantizer quantizer = this.quantizer;
+            final int channels = quantizer.channels;
+            final int[] colors = quantizer.colors;
+            final byte[] indices = this.indices;
+            final int[] currError = this.currError;
+            final int[] nextError = this.nextError;
+            int readPtr = 1;
+            int writePtr = indicesOffset;
+            for (int x = 0; x < width; x++) {
+                final int e = (x + 1) * 4;
+                final int a = channels == 4 ? clamp((currRow[readPtr + 3] & 0xFF) + (currError[e] + 8 >> 4)) : 0xFF;
+                final int r = clamp((currRow[readPtr] & 0xFF) + (currError[e + 1] + 8 >> 4));
+                final int g = clamp((currRow[readPtr + 1] & 0xFF) + (currError[e + 2] + 8 >> 4));
+                final int b = clamp((currRow[readPtr + 2] & 0xFF) + (currError[e + 3] + 8 >> 4));
+                final int index = quantizer.nearest(a, r, g, b);
+                indices[writePtr++] = (byte) index;
+                readPtr += channels;
+
+                // The error of the color is weighted by the alpha like the distance, the color of a transparent
+                // pixel can be anything.
+                final int color = colors[index];
+                spread(currError, nextError, e, 0, a - (color >>> 24));
+                spread(currError, nextError, e, 1, (r - ((color >> 16) & 0xFF)) * a / 0xFF);
+                spread(currError, nextError, e, 2, (g - ((color >> 8) & 0xFF)) * a / 0xFF);
+                spread(currError, nextError, e, 3, (b - (color & 0xFF)) * a / 0xFF);
+            }
+            indicesOffset = writePtr;
+            {
+                int[] b = this.currError;
+                this.currError = this.nextError;
+                this.nextError = b;
+                Arrays.fill(this.nextError, 0);
+            }
+        }
+
+        private static void spread(int[] currError, int[] nextError, int e, int channel, int error) {
+            currError[e + 4 + channel] += error * 7;
+            nextError[e - 4 + channel] += error * 3;
+            nextError[e + channel] += error * 5;
+            nextError[e + 4 + channel] += error;
+        }
+
+        private static int clamp(int value) {
+            return value < 0 ? 0 : Math.min(value, 0xFF);
+        }
+    }
+}
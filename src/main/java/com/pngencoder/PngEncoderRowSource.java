@@ -0,0 +1,28 @@
+package com.pngencoder;
+
+import java.io.IOException;
+
+/**
+ * Supplies the rows of an image on demand.
+ * <p>
+ * This makes it possible to encode images that never exist fully in memory, such as huge map tiles
+ * or stitched panoramas. Only a bounded number of rows and compressed segments are held at any time.
+ *
+ * @see PngEncoder#withRowSource(PngEncoderImageHeader, PngEncoderRowSource)
+ */
+@FunctionalInterface
+public interface PngEncoderRowSource {
+    /**
+     * Fills {@code row} with the samples of row {@code y}, laid out as described by {@link PngEncoderImageHeader}.
+     * <p>
+     * Every row is requested exactly once, from top to bottom, in the thread that invoked the encoder.
+     * With {@link PngEncoder#toStreamAsync(java.io.OutputStream)} the rows are requested by the threads of the
+     * encoder instead, one after another.
+     * The array is reused between calls.
+     *
+     * @param y   the row to fill, starting at 0
+     * @param row destination of {@link PngEncoderImageHeader#getBytesPerRow()} bytes
+     * @throws IOException if the row could not be produced
+     */
+    void fillRow(int y, byte[] row) throws IOException;
+}
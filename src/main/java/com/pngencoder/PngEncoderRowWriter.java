@@ -0,0 +1,191 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Incrementally encodes an image from rows pushed by the caller.
+ * <p>
+ * Obtained from {@link PngEncoder#openWriter(OutputStream, PngEncoderImageHeader)}. The rows are compressed in
+ * other threads while the caller produces the next ones. When the compression falls behind, the write methods
+ * block until a queued segment has been written to the output stream. This back-pressure bounds the memory use
+ * to a fixed number of queued segments, no matter the size of the image.
+ * <p>
+ * The output stream is not closed by this writer.
+ */
+public class PngEncoderRowWriter implements Closeable {
+    private final PngEncoderCountingOutputStream countingOutputStream;
+    private final OutputStream deflaterOutputStream;
+    // Borrowed from PngEncoderDeflaterPool when the image is compressed in a single stream, otherwise null.
+    private final Deflater deflater;
+    private final int compressionLevel;
+    private final AbstractPNGLineConsumer lineConsumer;
+    private final int height;
+    private final int bytesPerRow;
+    private byte[] currLine;
+    private byte[] prevLine;
+    private int y;
+    private int count;
+    private boolean finished;
+    // Set when the writer failed or was closed before all rows were written.
+    private boolean abandoned;
+
+    PngEncoderRowWriter(OutputStream outputStream, PngEncoderImageHeader imageHeader, int compressionLevel,
+            boolean multiThreadedCompressionEnabled, PngEncoderAncillaryChunks ancillaryChunks, boolean usePredictor)
+            throws IOException {
+        Objects.requireNonNull(outputStream, "outputStream");
+        Objects.requireNonNull(imageHeader, "imageHeader");
+
+        PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = imageHeader.toEncodingMetaInfo();
+        this.countingOutputStream = new PngEncoderCountingOutputStream(outputStream);
+        this.height = imageHeader.getHeight();
+        this.bytesPerRow = imageHeader.getBytesPerRow();
+        this.currLine = new byte[metaInfo.rowByteSize];
+        this.prevLine = new byte[metaInfo.rowByteSize];
+        this.compressionLevel = compressionLevel;
+
+        PngEncoderLogic.writeHeaderChunks(countingOutputStream, imageHeader.getWidth(), height, metaInfo,
+                ancillaryChunks);
+
+        PngEncoderIdatChunksOutputStream idatChunksOutputStream = new PngEncoderIdatChunksOutputStream(
+                countingOutputStream);
+        long estimatedBytes = (long) metaInfo.rowByteSize * height;
+        final int segmentMaxLengthOriginal = PngEncoderDeflaterOutputStream.getSegmentMaxLengthOriginal(estimatedBytes);
+        if (estimatedBytes <= segmentMaxLengthOriginal || !multiThreadedCompressionEnabled) {
+            this.deflater = PngEncoderDeflaterPool.borrow(compressionLevel);
+            this.deflaterOutputStream = new DeflaterOutputStream(idatChunksOutputStream, deflater);
+        } else {
+            this.deflater = null;
+            this.deflaterOutputStream = new PngEncoderDeflaterOutputStream(
+                    idatChunksOutputStream, compressionLevel, segmentMaxLengthOriginal);
+        }
+        this.lineConsumer = PngEncoderLogic.getLineConsumer(metaInfo, deflaterOutputStream, usePredictor);
+    }
+
+    /**
+     * Encodes the next row.
+     *
+     * @param row the samples of the row, laid out as described by {@link PngEncoderImageHeader}
+     * @throws IOException           if writing to the output stream failed
+     * @throws IllegalStateException if all rows have already been written
+     */
+    public void writeRow(byte[] row) throws IOException {
+        writeRows(row, 0, 1);
+    }
+
+    /**
+     * Encodes the next {@code rowCount} rows, which are stored one after the other in {@code rows}.
+     * Blocks while the compression is too far behind.
+     *
+     * @param rows     the samples of the rows, laid out as described by {@link PngEncoderImageHeader}
+     * @param offset   the offset of the first row in {@code rows}
+     * @param rowCount the number of rows to encode
+     * @throws IOException           if writing to the output stream failed
+     * @throws IllegalStateException if more rows than the image height would be written
+     */
+    public void writeRows(byte[] rows, int offset, int rowCount) throws IOException {
+        if (finished || abandoned) {
+            throw new IllegalStateException("The writer is already finished.");
+        }
+        if (rowCount > height - y) {
+            String message = String.format("Can not write %d rows, only %d of %d rows remain.", rowCount, height - y, height);
+            throw new IllegalStateException(message);
+        }
+        if (offset < 0 || rowCount < 0 || (long) offset + (long) rowCount * bytesPerRow > rows.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        for (int i = 0; i < rowCount; i++) {
+            System.arraycopy(rows, offset, currLine, 1, bytesPerRow);
+            offset += bytesPerRow;
+            lineConsumer.consume(currLine, prevLine);
+            {
+                byte[] b = currLine;
+                currLine = prevLine;
+                prevLine = b;
+            }
+        }
+        y += rowCount;
+    }
+
+    /**
+     * Waits for the compression to finish and completes the image.
+     * Does nothing if the writer is already finished.
+     *
+     * @return number of bytes written
+     * @throws IOException           if writing to the output stream failed
+     * @throws IllegalStateException if not all rows have been written, or the writer failed or was closed before
+     *                               all rows were written
+     */
+    public int finish() throws IOException {
+        if (abandoned) {
+            throw new IllegalStateException("The image is incomplete, the writer failed or was closed early.");
+        }
+        if (finished) {
+            return count;
+        }
+        if (y != height) {
+            String message = String.format("Only %d of %d rows have been written.", y, height);
+            throw new IllegalStateException(message);
+        }
+
+        try {
+            if (deflater == null) {
+                ((PngEncoderDeflaterOutputStream) deflaterOutputStream).finish();
+            } else {
+                ((DeflaterOutputStream) deflaterOutputStream).finish();
+                deflaterOutputStream.flush();
+            }
+            countingOutputStream.write(PngEncoderLogic.FILE_ENDING);
+
+            countingOutputStream.flush();
+        } catch (IOException | RuntimeException | Error e) {
+            abandon();
+            throw e;
+        }
+        finished = true;
+        if (deflater != null) {
+            PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+        }
+
+        count = countingOutputStream.getCount();
+        return count;
+    }
+
+    /**
+     * Completes the image like {@link #finish()} if all rows have been written. Otherwise the image is abandoned:
+     * the compression is stopped and the output stream is left with an incomplete image.
+     * Does nothing if the writer is already finished or abandoned. The output stream is not closed.
+     *
+     * @throws IOException if writing to the output stream failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (finished || abandoned) {
+            return;
+        }
+        if (y == height) {
+            finish();
+            return;
+        }
+        abandon();
+    }
+
+    /**
+     * Gives back the deflater, or stops the compression of the queued segments. Later calls to finish() throw.
+     */
+    private void abandon() {
+        abandoned = true;
+        if (deflater == null) {
+            ((PngEncoderDeflaterOutputStream) deflaterOutputStream).abandon();
+        } else {
+            PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.AbstractScanlineExtractor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * We save time by reusing the scanline state of a thread across encodes.
+ * <p>
+ * The context owns the row buffers and the extractor resolved for the image currently being encoded.
+ * Encoding images with the same row size over and over again does not allocate any row buffers.
+ */
+class PngEncoderScanlineContext implements AutoCloseable {
+    private static final ThreadLocal<PngEncoderScanlineContext> THREAD_LOCAL = ThreadLocal.withInitial(PngEncoderScanlineContext::new);
+
+    /**
+     * Opens the context of the current thread for streaming the rows of one image.
+     * Must be closed when the image has been streamed.
+     */
+    static PngEncoderScanlineContext open(AbstractScanlineExtractor extractor) {
+        PngEncoderScanlineContext context = THREAD_LOCAL.get();
+        while (context.extractor != null) {
+            // Already in use further up the stack of this thread, e.g. by an extractor streaming the rows of
+            // another extractor. The nested context is kept for reuse as well.
+            if (context.nested == null) {
+                context.nested = new PngEncoderScanlineContext();
+            }
+            context = context.nested;
+        }
+        context.extractor = extractor;
+        if (context.currLine.length != extractor.rowByteSize) {
+            context.currLine = new byte[extractor.rowByteSize];
+            context.prevLine = new byte[extractor.rowByteSize];
+        }
+        return context;
+    }
+
+    byte[] currLine;
+    byte[] prevLine;
+    private int[] elements;
+    private AbstractScanlineExtractor extractor;
+    private PngEncoderScanlineContext nested;
+
+    private PngEncoderScanlineContext() {
+        this.currLine = new byte[0];
+        this.prevLine = new byte[0];
+        this.elements = new int[0];
+    }
+
+    /**
+     * Stream rows of the image to a consumer, row by row.
+     * Can be called repeatedly, e.g. once per slice of the image.
+     */
+    void stream(int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+        // Both rows start out blank, the previous row must be all zeros for the first row.
+        currLine[0] = 0;
+        Arrays.fill(prevLine, (byte) 0);
+        extractor.stream(this, yStart, heightToStream, consumer);
+    }
+
+    /**
+     * @return a reused array of at least {@code length} elements
+     */
+    int[] getElements(int length) {
+        if (elements.length < length) {
+            elements = new int[length];
+        }
+        return elements;
+    }
+
+    @Override
+    public void close() {
+        extractor = null;
+    }
+}
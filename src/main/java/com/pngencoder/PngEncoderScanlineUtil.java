@@ -9,10 +9,14 @@ import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
 import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.io.OutputStream;
 
 class PngEncoderScanlineUtil {
     private PngEncoderScanlineUtil() {
@@ -62,6 +66,51 @@ class PngEncoderScanlineUtil {
         }
     }
 
+    /**
+     * Consumer writing every row as is, i.e. without predictor encoding, to an output stream.
+     */
+    static class OutputStreamPNGLineConsumer extends AbstractPNGLineConsumer {
+        private final OutputStream outputStream;
+
+        OutputStreamPNGLineConsumer(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) throws IOException {
+            outputStream.write(currRow);
+        }
+    }
+
+    /**
+     * Passes the rows on, with the last row of the previous slice as previous row of the first row of a slice.
+     * The slices may be streamed by different threads, each of which starts with a blank previous row.
+     */
+    static final class SliceLineConsumer extends AbstractPNGLineConsumer {
+        private final AbstractPNGLineConsumer consumer;
+        private final byte[] lastRow;
+        private int sliceHeight;
+        private int rowInSlice;
+
+        SliceLineConsumer(AbstractPNGLineConsumer consumer, int rowByteSize) {
+            this.consumer = consumer;
+            this.lastRow = new byte[rowByteSize];
+        }
+
+        void startSlice(int sliceHeight) {
+            this.sliceHeight = sliceHeight;
+            this.rowInSlice = 0;
+        }
+
+        @Override
+        void consume(byte[] currRow, byte[] prevRow) throws IOException {
+            consumer.consume(currRow, rowInSlice == 0 ? lastRow : prevRow);
+            if (++rowInSlice == sliceHeight) {
+                System.arraycopy(currRow, 0, lastRow, 0, currRow.length);
+            }
+        }
+    }
+
     /**
      * Metadata about how the image has to be encoded.
      */
@@ -71,11 +120,11 @@ class PngEncoderScanlineUtil {
          */
         int channels;
         /**
-         * Of how many bytes does a pixel have? This is needed for the predictor.
+         * Of how many bytes does a pixel have? This is needed for the predictor. At least 1.
          */
         int bytesPerPixel;
         /**
-         * Bits per channel, can be 8 or 16
+         * Bits per channel, can be 8 or 16. Or 1, 2, 4 or 8 when the rows consist of palette indices.
          */
         int bitsPerChannel = 8;
         /**
@@ -102,15 +151,177 @@ class PngEncoderScanlineUtil {
          * The kind of color space used in the image
          */
         ColorSpaceType colorSpaceType;
+
+        /**
+         * If not null the rows consist of indices into this palette, with bitsPerChannel bits per index.
+         */
+        PngEncoderPalette palette;
+
+        /**
+         * If not null, pixels with exactly these samples are fully transparent. It is the content of the tRNS chunk
+         * of a gray or RGB image without alpha channel, a 16 bit value per channel.
+         */
+        byte[] transparentColor;
+
+        /**
+         * @return a copy of this metadata for rows of the given width
+         */
+        EncodingMetaInfo forWidth(int width) {
+            EncodingMetaInfo info = new EncodingMetaInfo();
+            info.channels = channels;
+            info.bytesPerPixel = bytesPerPixel;
+            info.bitsPerChannel = bitsPerChannel;
+            info.hasAlpha = hasAlpha;
+            info.colorProfile = colorProfile;
+            info.colorSpaceType = colorSpaceType;
+            info.palette = palette;
+            info.transparentColor = transparentColor;
+            // Indices with less than 8 bits are packed into the bytes of the row.
+            info.rowByteSize = 1 + (int) (((long) channels * bitsPerChannel * width + 7) / 8);
+            return info;
+        }
+    }
+
+    /**
+     * The ways we know to extract the rows of an image. Each one has its own extractor.
+     */
+    enum ExtractorKind {
+        INT_RGB,
+        INT_ARGB,
+        INT_BGR,
+        THREE_BYTE_BGR,
+        FOUR_BYTE_ABGR,
+        BYTE_GRAY,
+        USHORT_GRAY,
+        BYTE_INDEXED,
+        BYTE_PACKED_INDEXED,
+        USHORT_RGB,
+        USHORT_RGBA,
+        USHORT_GENERIC_DATA_BUFFER_USHORT,
+        USHORT_GENERIC,
+        BYTE_GENERIC,
+        INT_GENERIC,
+        FALLBACK
     }
 
     /*
      * Get the encoding metadata
      */
     static EncodingMetaInfo getEncodingMetaInfo(BufferedImage bufferedImage) {
-        EncodingMetaInfo info = new EncodingMetaInfo();
-        int width = bufferedImage.getWidth();
+        return getEncodingMetaInfo(bufferedImage, bufferedImage.getWidth());
+    }
+
+    /*
+     * Get the encoding metadata for rows of the given width, e.g. of a region of the image
+     */
+    static EncodingMetaInfo getEncodingMetaInfo(BufferedImage bufferedImage, int width) {
+        return PngEncoderEncodingPlan.of(bufferedImage, 0, width).metaInfo;
+    }
+
+    /*
+     * Decide which extractor streams the rows of the image. This only depends on the layout of the raster and
+     * on the color space.
+     */
+    static ExtractorKind getExtractorKind(BufferedImage bufferedImage) {
+        /*
+         * Indexed images, e.g. TYPE_BYTE_INDEXED and TYPE_BYTE_BINARY, are written as palette images
+         * with the indices as they are.
+         */
+        final WritableRaster indexedRaster = bufferedImage.getRaster();
+        if (bufferedImage.getColorModel() instanceof IndexColorModel && indexedRaster.getDataBuffer() instanceof DataBufferByte
+                && indexedRaster.getNumBands() == 1) {
+            final SampleModel sampleModel = indexedRaster.getSampleModel();
+            if (sampleModel instanceof PixelInterleavedSampleModel
+                    && ((PixelInterleavedSampleModel) sampleModel).getPixelStride() == 1 && sampleModel.getSampleSize(0) == 8) {
+                return ExtractorKind.BYTE_INDEXED;
+            }
+            if (sampleModel instanceof MultiPixelPackedSampleModel) {
+                final int bits = ((MultiPixelPackedSampleModel) sampleModel).getPixelBitStride();
+                if (bits == 1 || bits == 2 || bits == 4 || bits == 8) {
+                    return ExtractorKind.BYTE_PACKED_INDEXED;
+                }
+            }
+        }
+
         final PngEncoderBufferedImageType type = PngEncoderBufferedImageType.valueOf(bufferedImage);
+        switch (type) {
+            case TYPE_INT_RGB:
+                return ExtractorKind.INT_RGB;
+            case TYPE_INT_ARGB:
+                return ExtractorKind.INT_ARGB;
+            // TODO: TYPE_INT_ARGB_PRE
+            case TYPE_INT_BGR:
+                return ExtractorKind.INT_BGR;
+            case TYPE_3BYTE_BGR:
+                return ExtractorKind.THREE_BYTE_BGR;
+            case TYPE_4BYTE_ABGR:
+                return ExtractorKind.FOUR_BYTE_ABGR;
+            // TODO: TYPE_4BYTE_ABGR_PRE
+            // TODO: TYPE_USHORT_565_RGB
+            // TODO: TYPE_USHORT_555_RGB
+            case TYPE_BYTE_GRAY:
+                return ExtractorKind.BYTE_GRAY;
+            case TYPE_USHORT_GRAY:
+                return ExtractorKind.USHORT_GRAY;
+            case TYPE_BYTE_INDEXED:
+                return ExtractorKind.FALLBACK;
+            default:
+                /*
+                 * We can only handle RGB and GRAY in png. CMYK etc. is not in the spec...
+                 */
+                final ColorSpace colorSpace = bufferedImage.getColorModel().getColorSpace();
+                if (!colorSpace.isCS_sRGB() && colorSpace instanceof ICC_ColorSpace
+                        && colorSpace.getType() != ColorSpace.TYPE_RGB && colorSpace.getType() != ColorSpace.TYPE_GRAY) {
+                    return ExtractorKind.FALLBACK;
+                }
+
+                final WritableRaster raster = bufferedImage.getRaster();
+                final boolean pixelInterleaved = raster.getSampleModel() instanceof PixelInterleavedSampleModel;
+                if (raster.getDataBuffer() instanceof DataBufferUShort && pixelInterleaved) {
+                    if (isRgbOrRgbaInterleaved((PixelInterleavedSampleModel) raster.getSampleModel())) {
+                        return raster.getNumBands() == 3 ? ExtractorKind.USHORT_RGB : ExtractorKind.USHORT_RGBA;
+                    }
+                    return ExtractorKind.USHORT_GENERIC_DATA_BUFFER_USHORT;
+                }
+                // Generic DataBuffer variants.
+                final int dataType = raster.getDataBuffer().getDataType();
+                if (dataType == DataBuffer.TYPE_USHORT && pixelInterleaved) {
+                    return ExtractorKind.USHORT_GENERIC;
+                }
+                if (dataType == DataBuffer.TYPE_BYTE && pixelInterleaved) {
+                    return ExtractorKind.BYTE_GENERIC;
+                }
+                if (dataType == DataBuffer.TYPE_INT && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                    return ExtractorKind.INT_GENERIC;
+                }
+                return ExtractorKind.FALLBACK;
+        }
+    }
+
+    /*
+     * True if every pixel is stored as R, G, B and optionally A, one sample after the other, in a single bank.
+     */
+    static boolean isRgbOrRgbaInterleaved(PixelInterleavedSampleModel sampleModel) {
+        final int numBands = sampleModel.getNumBands();
+        if ((numBands != 3 && numBands != 4) || sampleModel.getPixelStride() != numBands) {
+            return false;
+        }
+        final int[] bankIndices = sampleModel.getBankIndices();
+        final int[] bandOffsets = sampleModel.getBandOffsets();
+        for (int band = 0; band < numBands; band++) {
+            if (bankIndices[band] != 0 || bandOffsets[band] != band) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Get the encoding metadata of the rows produced by the given extractor. The row size is left at 0,
+     * see EncodingMetaInfo.forWidth().
+     */
+    static EncodingMetaInfo getEncodingMetaInfo(BufferedImage bufferedImage, ExtractorKind extractorKind) {
+        EncodingMetaInfo info = new EncodingMetaInfo();
         ColorSpace colorSpace = bufferedImage.getColorModel().getColorSpace();
 
         if (!colorSpace.isCS_sRGB() && colorSpace instanceof ICC_ColorSpace) {
@@ -121,86 +332,88 @@ class PngEncoderScanlineUtil {
                 EncodingMetaInfo.ColorSpaceType.Gray :
                 EncodingMetaInfo.ColorSpaceType.Rgb;
 
-        switch (type) {
-            case TYPE_INT_ARGB:
-            case TYPE_INT_ARGB_PRE:
-            case TYPE_4BYTE_ABGR:
-            case TYPE_4BYTE_ABGR_PRE:
+        switch (extractorKind) {
+            case INT_ARGB:
+            case FOUR_BYTE_ABGR:
                 info.channels = 4;
                 info.bytesPerPixel = 4;
                 info.hasAlpha = true;
                 break;
-            case TYPE_INT_BGR:
-            case TYPE_3BYTE_BGR:
-            case TYPE_USHORT_565_RGB:
-            case TYPE_USHORT_555_RGB:
-            case TYPE_INT_RGB:
+            case INT_RGB:
+            case INT_BGR:
+            case THREE_BYTE_BGR:
                 info.channels = 3;
                 info.bytesPerPixel = 3;
                 break;
-            case TYPE_BYTE_GRAY:
+            case BYTE_GRAY:
                 info.channels = 1;
                 info.bytesPerPixel = 1;
                 break;
-            case TYPE_USHORT_GRAY:
+            case USHORT_GRAY:
                 info.channels = 1;
                 info.bytesPerPixel = 2;
                 info.bitsPerChannel = 16;
                 break;
-            default:
-                info.hasAlpha = bufferedImage.getTransparency() != Transparency.OPAQUE; // TODO: This doesn't look right. What if the value is Transparency.BITMASK?
-
-                /*
-                 * Default sRGB byte encoding
-                 */
-                if (!info.hasAlpha) {
-                    info.channels = 3;
-                    info.bytesPerPixel = 3;
-                } else {
-                    info.channels = 4;
-                    info.bytesPerPixel = 4;
-                }
-
-                /*
-                 * We can only handle RGB and GRAY in png. CMYK etc. is not in the spec...
-                 */
-                final boolean needToFallBackTosRGB = !colorSpace.isCS_sRGB() && colorSpace instanceof ICC_ColorSpace && colorSpace.getType() != ColorSpace.TYPE_RGB && colorSpace.getType() != ColorSpace.TYPE_GRAY;
+            case BYTE_INDEXED:
+            case BYTE_PACKED_INDEXED:
+                // The palette is taken from the color model of every image, see PngEncoderEncodingPlan.
+                info.channels = 1;
+                info.bytesPerPixel = 1;
+                info.bitsPerChannel = bufferedImage.getSampleModel().getSampleSize(0);
+                info.colorProfile = null;
+                info.colorSpaceType = EncodingMetaInfo.ColorSpaceType.Rgb;
+                break;
+            case USHORT_RGB:
+            case USHORT_RGBA:
+            case USHORT_GENERIC_DATA_BUFFER_USHORT:
+            case USHORT_GENERIC:
                 /*
                  * When it is a UShort GRAY or RGB buffer we can write it as 16 bit image.
                  */
-                boolean canICCBeHandled = false;
-                if (!needToFallBackTosRGB && bufferedImage.getRaster().getDataBuffer().getDataType() == DataBuffer.TYPE_USHORT) {
-                    info.channels = bufferedImage.getRaster().getSampleModel().getNumBands();
-                    info.bytesPerPixel = info.channels * 2;
-                    info.bitsPerChannel = 16;
-                    canICCBeHandled = true;
-                }
+                info.channels = bufferedImage.getSampleModel().getNumBands();
+                info.bytesPerPixel = info.channels * 2;
+                info.bitsPerChannel = 16;
+                info.hasAlpha = info.channels == 2 || info.channels == 4;
+                break;
+            case BYTE_GENERIC:
+                info.channels = bufferedImage.getSampleModel().getNumBands();
+                info.bytesPerPixel = info.channels;
+                info.hasAlpha = info.channels == 2 || info.channels == 4;
+                // We don't handle the color profile of custom byte buffers
+                info.colorProfile = null;
+                break;
+            case INT_GENERIC:
+                info.channels = bufferedImage.getSampleModel().getNumBands();
+                info.bytesPerPixel = info.channels;
+                info.hasAlpha = info.channels == 2 || info.channels == 4;
                 /*
                  * Custom Int Buffers storing 8 bit RGB
                  */
-                if (!needToFallBackTosRGB && bufferedImage.getRaster().getDataBuffer().getDataType() == DataBuffer.TYPE_INT
-                        && bufferedImage.getSampleModel().getSampleSize(0) == 8) {
-                    canICCBeHandled = true;
+                if (bufferedImage.getSampleModel().getSampleSize(0) != 8) {
+                    info.colorProfile = null;
                 }
+                break;
+            case FALLBACK:
+                info.hasAlpha = bufferedImage.getTransparency() != Transparency.OPAQUE; // TODO: This doesn't look right. What if the value is Transparency.BITMASK?
 
                 /*
-                 * When we can not handle the data buffer we have to fall back to sRGB. So we should not include a color profile
+                 * Default sRGB byte encoding, as we convert the image using getRGB(). So we should not include a
+                 * color profile.
                  */
-                if (!canICCBeHandled) {
-                    info.colorProfile = null;
-                }
+                info.channels = info.hasAlpha ? 4 : 3;
+                info.bytesPerPixel = info.channels;
+                info.colorProfile = null;
+                info.colorSpaceType = EncodingMetaInfo.ColorSpaceType.Rgb;
                 break;
         }
-
-        info.rowByteSize = 1 + info.bytesPerPixel * width;
         return info;
     }
 
     static byte[] get(BufferedImage bufferedImage) throws IOException {
         final int height = bufferedImage.getHeight();
-        EncodingMetaInfo encodingMetaInfo = getEncodingMetaInfo(bufferedImage);
-        ByteBufferPNGLineConsumer consumer = new ByteBufferPNGLineConsumer(encodingMetaInfo.rowByteSize * height);
-        stream(bufferedImage, 0, height, consumer);
+        PngEncoderEncodingPlan plan = PngEncoderEncodingPlan.of(bufferedImage, 0, bufferedImage.getWidth());
+        ByteBufferPNGLineConsumer consumer = new ByteBufferPNGLineConsumer(plan.metaInfo.rowByteSize * height);
+        stream(plan.extractor, 0, height, consumer);
         return consumer.bytes;
     }
 
@@ -209,89 +422,213 @@ class PngEncoderScanlineUtil {
      */
     static void stream(BufferedImage bufferedImage, int yStart, int heightToStream, AbstractPNGLineConsumer consumer)
             throws IOException {
-        final int width = bufferedImage.getWidth();
-        final int imageHeight = bufferedImage.getHeight();
-        assert (heightToStream <= imageHeight - yStart);
+        stream(bufferedImage, 0, yStart, bufferedImage.getWidth(), heightToStream, consumer);
+    }
 
-        final PngEncoderBufferedImageType type = PngEncoderBufferedImageType.valueOf(bufferedImage);
+    /**
+     * Stream the rows of a region of the image to a consumer, row by row.
+     * The region is read in place, no subimage is created.
+     */
+    static void stream(BufferedImage bufferedImage, int xStart, int yStart, int width, int heightToStream,
+            AbstractPNGLineConsumer consumer) throws IOException {
+        stream(PngEncoderEncodingPlan.of(bufferedImage, xStart, width).extractor, yStart, heightToStream, consumer);
+    }
 
-        WritableRaster raster = bufferedImage.getRaster();
-        switch (type) {
-            case TYPE_INT_RGB:
-                getIntRgb(raster, yStart, width, heightToStream, consumer);
-                break;
-            case TYPE_INT_ARGB:
-                getIntArgb(raster, yStart, width, heightToStream, consumer);
-                break;
+    /**
+     * Stream rows to a consumer, row by row, using an already resolved extractor.
+     */
+    static void stream(AbstractScanlineExtractor extractor, int yStart, int heightToStream,
+            AbstractPNGLineConsumer consumer) throws IOException {
+        try (PngEncoderScanlineContext context = PngEncoderScanlineContext.open(extractor)) {
+            context.stream(yStart, heightToStream, consumer);
+        }
+    }
 
-            // TODO: TYPE_INT_ARGB_PRE
-            case TYPE_INT_BGR:
-                getIntBgr(raster, yStart, width, heightToStream, consumer);
-                break;
-            case TYPE_3BYTE_BGR:
-                get3ByteBgr(raster, yStart, width, heightToStream, consumer);
-                break;
-            case TYPE_4BYTE_ABGR:
-                get4ByteAbgr(raster, yStart, width, heightToStream, consumer);
-                break;
-            // TODO: TYPE_4BYTE_ABGR_PRE
-            // TODO: TYPE_USHORT_565_RGB
-            // TODO: TYPE_USHORT_555_RGB
-            case TYPE_BYTE_GRAY:
-                getByteGray(bufferedImage, yStart, width, heightToStream, consumer);
-                break;
-            case TYPE_USHORT_GRAY:
-                getUshortGray(bufferedImage, yStart, width, heightToStream, consumer);
-                break;
-            case TYPE_BYTE_INDEXED:
-                getFallback(bufferedImage, yStart, width, heightToStream, consumer);
-                break;
-            default:
-                if (raster.getDataBuffer() instanceof DataBufferUShort) {
-                    if (getUshortGenericDataBufferUShort(bufferedImage, yStart, width, heightToStream, consumer)) {
-                        break;
+    /**
+     * Extracts the rows of an image region as scanlines.
+     * <p>
+     * The extractor is resolved once per image as part of the {@link PngEncoderEncodingPlan}, so the image type
+     * does not have to be examined again for every slice which is streamed. It keeps no state of its own, the row
+     * buffers belong to the {@link PngEncoderScanlineContext} of the streaming thread.
+     * <p>
+     * This is a class and not an interface for the same performance reasons as {@link AbstractPNGLineConsumer}.
+     */
+    static abstract class AbstractScanlineExtractor {
+        /**
+         * Size of the rows passed to the consumer, including the 1 byte marker for the predictor.
+         */
+        final int rowByteSize;
+
+        AbstractScanlineExtractor(int rowByteSize) {
+            this.rowByteSize = rowByteSize;
+        }
+
+        /**
+         * Stream {@code heightToStream} rows starting at row {@code yStart} of the image to the consumer.
+         */
+        abstract void stream(PngEncoderScanlineContext context, int yStart, int heightToStream,
+                AbstractPNGLineConsumer consumer) throws IOException;
+    }
+
+    /**
+     * Create the extractor of the given kind for the rows of the region starting at {@code xStart} with the given width.
+     */
+    static AbstractScanlineExtractor getExtractor(BufferedImage bufferedImage, ExtractorKind extractorKind, int xStart, int width, int rowByteSize) {
+        assert (width <= bufferedImage.getWidth() - xStart);
+
+        final WritableRaster raster = bufferedImage.getRaster();
+        switch (extractorKind) {
+            case INT_RGB:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getIntRgb(raster, xStart, yStart, width, heightToStream, context, consumer);
                     }
-                }
-                // Generic DataBuffer variants.
-                if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_USHORT) {
-                    if (getUshortGeneric(bufferedImage, yStart, width, heightToStream, consumer)) {
-                        break;
+                };
+            case INT_ARGB:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getIntArgb(raster, xStart, yStart, width, heightToStream, context, consumer);
                     }
-                }
-                if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE) {
-                    if (getByteGeneric(bufferedImage, yStart, width, heightToStream, consumer)) {
-                        break;
+                };
+            case INT_BGR:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getIntBgr(raster, xStart, yStart, width, heightToStream, context, consumer);
                     }
-                }
-                if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_INT) {
-                    if (getIntGeneric(bufferedImage, yStart, width, heightToStream, consumer)) {
-                        break;
+                };
+            case THREE_BYTE_BGR:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        get3ByteBgr(raster, xStart, yStart, width, heightToStream, context, consumer);
                     }
-                }
-
-                getFallback(bufferedImage, yStart, width, heightToStream, consumer);
-                break;
+                };
+            case FOUR_BYTE_ABGR:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        get4ByteAbgr(raster, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case BYTE_GRAY:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getByteGray(bufferedImage, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case USHORT_GRAY:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getUshortGray(bufferedImage, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case USHORT_RGB:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getUshortRgb(raster, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case USHORT_RGBA:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getUshortRgba(raster, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case USHORT_GENERIC_DATA_BUFFER_USHORT:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getUshortGenericDataBufferUShort(bufferedImage, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case USHORT_GENERIC:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getUshortGeneric(bufferedImage, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case BYTE_GENERIC:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getByteGeneric(bufferedImage, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case INT_GENERIC:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getIntGeneric(bufferedImage, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case BYTE_INDEXED:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        // One index per byte, which is copied just like a gray value.
+                        getByteGray(bufferedImage, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case BYTE_PACKED_INDEXED:
+                return new AbstractScanlineExtractor(rowByteSize) {
+                    @Override
+                    void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                        getBytePacked(raster, xStart, yStart, width, heightToStream, context, consumer);
+                    }
+                };
+            case FALLBACK:
+                return getFallbackExtractor(bufferedImage, xStart, width, rowByteSize);
+            default:
+                throw new IllegalStateException("Unknown extractor " + extractorKind);
         }
     }
 
+    // The getRGB fallback converts this many pixels at a time at most, about 1 MB of ints.
+    static final int FALLBACK_BAND_MAX_PIXELS = 256 * 1024;
+
     /**
      * Fallback for unsupported types. We use getRGB, which will convert the image.
      */
-    private static void getFallback(BufferedImage bufferedImage, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
-        final int[] elements = bufferedImage.getRGB(0, yStart, width, heightToStream, null, 0, width);
-        if (bufferedImage.getTransparency() == Transparency.OPAQUE) {
-            getIntRgb(elements, yStart, width, heightToStream, consumer);
-        } else {
-            getIntArgb(elements, yStart, width, heightToStream, consumer);
-        }
+    private static AbstractScanlineExtractor getFallbackExtractor(BufferedImage bufferedImage, int xStart, int width, int rowByteSize) {
+        final boolean opaque = bufferedImage.getTransparency() == Transparency.OPAQUE;
+        return new AbstractScanlineExtractor(rowByteSize) {
+            @Override
+            void stream(PngEncoderScanlineContext context, int yStart, int heightToStream, AbstractPNGLineConsumer consumer) throws IOException {
+                // The rows are converted in bands, so that the array kept by the context stays small.
+                final int bandHeight = Math.max(1, FALLBACK_BAND_MAX_PIXELS / width);
+                for (int y = yStart; y < yStart + heightToStream; y += bandHeight) {
+                    final int height = Math.min(bandHeight, yStart + heightToStream - y);
+                    final int[] elements = bufferedImage.getRGB(xStart, y, width, height,
+                            context.getElements(width * height), 0, width);
+                    // The elements only contain the requested rows, so they start at row 0.
+                    if (opaque) {
+                        getIntRgb(elements, 0, width, height, context, consumer);
+                    } else {
+                        getIntArgb(elements, 0, width, height, context, consumer);
+                    }
+                    if (height % 2 == 1) {
+                        // The row buffers were swapped after every row, the last row has to be the previous one.
+                        byte[] b = context.currLine;
+                        context.currLine = context.prevLine;
+                        context.prevLine = b;
+                    }
+                }
+            }
+        };
     }
 
-    static void getIntRgb(int[] elements, int yStart, int width, int height, AbstractPNGLineConsumer consumer)
+    static void getIntRgb(int[] elements, int yStart, int width, int height, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
-        final int channels = 3;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         for (int y = yStart; y < yStart + height; y++) {
             int yOffset = y * width;
@@ -313,12 +650,10 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getIntArgb(int[] elements, int yStart, int width, int height, AbstractPNGLineConsumer consumer)
+    static void getIntArgb(int[] elements, int yStart, int width, int height, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
-        final int channels = 4;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         for (int y = yStart; y < yStart + height; y++) {
             int yOffset = y * width;
@@ -340,12 +675,10 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getIntRgb(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
-        final int channels = 3;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+    static void getIntRgb(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -357,7 +690,7 @@ class PngEncoderScanlineUtil {
             int[] rawInts = ((DataBufferInt) imageRaster.getDataBuffer()).getData();
 
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX();
+                    + (xStart - imageRaster.getSampleModelTranslateX());
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
                 int pixelEndPtr = linePtr + width;
@@ -384,12 +717,10 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getIntArgb(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
-        final int channels = 4;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+    static void getIntArgb(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -402,7 +733,7 @@ class PngEncoderScanlineUtil {
             int[] rawInts = ((DataBufferInt) imageRaster.getDataBuffer()).getData();
 
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX();
+                    + (xStart - imageRaster.getSampleModelTranslateX());
 
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
@@ -430,12 +761,10 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getIntBgr(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
-        final int channels = 3;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+    static void getIntBgr(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -447,7 +776,7 @@ class PngEncoderScanlineUtil {
             int[] rawInts = ((DataBufferInt) imageRaster.getDataBuffer()).getData();
 
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX();
+                    + (xStart - imageRaster.getSampleModelTranslateX());
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
 
@@ -473,12 +802,10 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void get3ByteBgr(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
-        final int channels = 3;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+    static void get3ByteBgr(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
         DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -488,7 +815,7 @@ class PngEncoderScanlineUtil {
 
             assert pixelStride == 3;
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX() * pixelStride;
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
 
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
@@ -514,12 +841,10 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void get4ByteAbgr(WritableRaster imageRaster, int yStart, int width, int heightToStream,
-            AbstractPNGLineConsumer consumer) throws IOException {
-        final int channels = 4;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+    static void get4ByteAbgr(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
         DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -529,7 +854,7 @@ class PngEncoderScanlineUtil {
 
             assert pixelStride == 4;
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX() * pixelStride;
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
                 int writePtr = 1;
@@ -556,14 +881,12 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getByteGray(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
+    static void getByteGray(BufferedImage image, int xStart, int yStart, int width, int heightToStream, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
-        final int channels = 1;
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
@@ -574,7 +897,7 @@ class PngEncoderScanlineUtil {
 
             assert pixelStride == 1;
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX() * pixelStride;
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
 
@@ -593,14 +916,65 @@ class PngEncoderScanlineUtil {
         }
     }
 
-    static void getUshortGray(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
+    /**
+     * Rows of 1, 2, 4 or 8 bit pixels packed into bytes, the leftmost pixel in the most significant bits.
+     * This is the layout of PNG as well, so the rows are copied. They only have to be shifted if the region
+     * does not start on a byte boundary.
+     */
+    static void getBytePacked(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
+
+        DataBufferByte dataBufferByte = (DataBufferByte) imageRaster.getDataBuffer();
+        if (imageRaster.getSampleModel() instanceof MultiPixelPackedSampleModel) {
+            MultiPixelPackedSampleModel sampleModel = (MultiPixelPackedSampleModel) imageRaster.getSampleModel();
+            byte[] rawBytes = dataBufferByte.getData();
+            int scanlineStride = sampleModel.getScanlineStride();
+            int pixelBitStride = sampleModel.getPixelBitStride();
+
+            int bitStart = (xStart - imageRaster.getSampleModelTranslateX()) * pixelBitStride + sampleModel.getDataBitOffset();
+            int shift = bitStart & 7;
+            int rowBits = width * pixelBitStride;
+            int rowBytes = (rowBits + 7) / 8;
+            // The unused bits at the end of the row are zeroed, so that they compress well.
+            int lastByteMask = 0xFF << ((8 - (rowBits & 7)) & 7);
+            // The last source byte holding a bit of the row, relative to the first one.
+            int lastSourceByte = (shift + rowBits - 1) / 8;
+
+            int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
+                    + dataBufferByte.getOffset() + bitStart / 8;
+            for (int y = 0; y < heightToStream; y++) {
+                if (shift == 0) {
+                    System.arraycopy(rawBytes, linePtr, currLine, 1, rowBytes);
+                } else {
+                    for (int i = 0; i < rowBytes; i++) {
+                        int high = rawBytes[linePtr + i] << shift;
+                        int low = i < lastSourceByte ? (rawBytes[linePtr + i + 1] & 0xFF) >>> (8 - shift) : 0;
+                        currLine[1 + i] = (byte) (high | low);
+                    }
+                }
+                currLine[rowBytes] &= (byte) lastByteMask;
+
+                linePtr += scanlineStride;
+                consumer.consume(currLine, prevLine);
+                {
+                    byte[] b = currLine;
+                    currLine = prevLine;
+                    prevLine = b;
+                }
+            }
+        } else {
+            throw new IllegalStateException("Packed indices must have a MultiPixelPackedSampleModel");
+        }
+    }
+
+    static void getUshortGray(BufferedImage image, int xStart, int yStart, int width, int heightToStream, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
-        final int channels = 1;
-        final int rowByteSize = 1 + channels * width * 2;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         DataBufferUShort dataBufferUShort = (DataBufferUShort) imageRaster.getDataBuffer();
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
@@ -611,7 +985,7 @@ class PngEncoderScanlineUtil {
 
             assert pixelStride == 1;
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX() * pixelStride;
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
                 int writePtr = 1;
@@ -635,16 +1009,107 @@ class PngEncoderScanlineUtil {
         }
     }
 
+    /**
+     * 16 bit RGB samples, e.g. of HDR or scientific images. The samples of a row follow each other in the
+     * same order as in the PNG row, so every sample is split into its high and low byte without looking
+     * at the channel.
+     */
+    static void getUshortRgb(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
+        DataBufferUShort dataBufferUShort = (DataBufferUShort) imageRaster.getDataBuffer();
+        if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
+            PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
+            short[] rawShorts = dataBufferUShort.getData();
+            int scanlineStride = sampleModel.getScanlineStride();
+            int pixelStride = sampleModel.getPixelStride();
+
+            assert pixelStride == 3;
+            int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
+            for (int y = 0; y < heightToStream; y++) {
+                int pixelPtr = linePtr;
+                int writePtr = 1;
+                for (int x = 0; x < width; x++) {
+                    short r = rawShorts[pixelPtr++];
+                    short g = rawShorts[pixelPtr++];
+                    short b = rawShorts[pixelPtr++];
+                    currLine[writePtr++] = (byte) (r >> 8);
+                    currLine[writePtr++] = (byte) r;
+                    currLine[writePtr++] = (byte) (g >> 8);
+                    currLine[writePtr++] = (byte) g;
+                    currLine[writePtr++] = (byte) (b >> 8);
+                    currLine[writePtr++] = (byte) b;
+                }
+                linePtr += scanlineStride;
+                consumer.consume(currLine, prevLine);
+                {
+                    byte[] b = currLine;
+                    currLine = prevLine;
+                    prevLine = b;
+                }
+            }
+        } else {
+            throw new IllegalStateException("16 bit RGB must have a PixelInterleavedSampleModel");
+        }
+    }
+
+    /**
+     * 16 bit RGBA samples, see {@link #getUshortRgb}.
+     */
+    static void getUshortRgba(WritableRaster imageRaster, int xStart, int yStart, int width, int heightToStream,
+            PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer) throws IOException {
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
+        DataBufferUShort dataBufferUShort = (DataBufferUShort) imageRaster.getDataBuffer();
+        if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
+            PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
+            short[] rawShorts = dataBufferUShort.getData();
+            int scanlineStride = sampleModel.getScanlineStride();
+            int pixelStride = sampleModel.getPixelStride();
 
-    static boolean getUshortGenericDataBufferUShort(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
+            assert pixelStride == 4;
+            int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
+            for (int y = 0; y < heightToStream; y++) {
+                int pixelPtr = linePtr;
+                int writePtr = 1;
+                for (int x = 0; x < width; x++) {
+                    short r = rawShorts[pixelPtr++];
+                    short g = rawShorts[pixelPtr++];
+                    short b = rawShorts[pixelPtr++];
+                    short a = rawShorts[pixelPtr++];
+                    currLine[writePtr++] = (byte) (r >> 8);
+                    currLine[writePtr++] = (byte) r;
+                    currLine[writePtr++] = (byte) (g >> 8);
+                    currLine[writePtr++] = (byte) g;
+                    currLine[writePtr++] = (byte) (b >> 8);
+                    currLine[writePtr++] = (byte) b;
+                    currLine[writePtr++] = (byte) (a >> 8);
+                    currLine[writePtr++] = (byte) a;
+                }
+                linePtr += scanlineStride;
+                consumer.consume(currLine, prevLine);
+                {
+                    byte[] b = currLine;
+                    currLine = prevLine;
+                    prevLine = b;
+                }
+            }
+        } else {
+            throw new IllegalStateException("16 bit RGBA must have a PixelInterleavedSampleModel");
+        }
+    }
+
+    static void getUshortGenericDataBufferUShort(BufferedImage image, int xStart, int yStart, int width, int heightToStream, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         DataBufferUShort dataBufferUShort = (DataBufferUShort) imageRaster.getDataBuffer();
         final int channels = imageRaster.getSampleModel().getNumBands();
-        final int rowByteSize = 1 + channels * width * 2;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -654,7 +1119,7 @@ class PngEncoderScanlineUtil {
             assert pixelStride == channels;
 
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX() * pixelStride;
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
                 int writePtr = 1;
@@ -675,19 +1140,18 @@ class PngEncoderScanlineUtil {
                     prevLine = b;
                 }
             }
-            return true;
+        } else {
+            throw new IllegalStateException("DataBufferUShort generic must have a PixelInterleavedSampleModel");
         }
-        return false;
     }
 
-    static boolean getUshortGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
+    static void getUshortGeneric(BufferedImage image, int xStart, int yStart, int width, int heightToStream, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         final int channels = imageRaster.getSampleModel().getNumBands();
-        final int rowByteSize = 1 + channels * width * 2;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -699,7 +1163,7 @@ class PngEncoderScanlineUtil {
             assert numBanks == 1;
 
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX() * pixelStride;
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
                 int writePtr = 1;
@@ -720,19 +1184,18 @@ class PngEncoderScanlineUtil {
                     prevLine = b;
                 }
             }
-            return true;
+        } else {
+            throw new IllegalStateException("UShort generic must have a PixelInterleavedSampleModel");
         }
-        return false;
     }
 
-    static boolean getByteGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
+    static void getByteGeneric(BufferedImage image, int xStart, int yStart, int width, int heightToStream, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
         final int channels = imageRaster.getSampleModel().getNumBands();
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         if (imageRaster.getSampleModel() instanceof PixelInterleavedSampleModel) {
             PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) imageRaster.getSampleModel();
@@ -744,7 +1207,7 @@ class PngEncoderScanlineUtil {
             assert numBanks == 1;
 
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX() * pixelStride;
+                    + (xStart - imageRaster.getSampleModelTranslateX()) * pixelStride;
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
                 int writePtr = 1;
@@ -762,20 +1225,18 @@ class PngEncoderScanlineUtil {
                     prevLine = b;
                 }
             }
-            return true;
+        } else {
+            throw new IllegalStateException("Byte generic must have a PixelInterleavedSampleModel");
         }
-        return false;
     }
 
 
-    static boolean getIntGeneric(BufferedImage image, int yStart, int width, int heightToStream, AbstractPNGLineConsumer consumer)
+    static void getIntGeneric(BufferedImage image, int xStart, int yStart, int width, int heightToStream, PngEncoderScanlineContext context, AbstractPNGLineConsumer consumer)
             throws IOException {
         WritableRaster imageRaster = image.getRaster();
 
-        final int channels = imageRaster.getSampleModel().getNumBands();
-        final int rowByteSize = 1 + channels * width;
-        byte[] currLine = new byte[rowByteSize];
-        byte[] prevLine = new byte[rowByteSize];
+        byte[] currLine = context.currLine;
+        byte[] prevLine = context.prevLine;
 
         if (imageRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
             SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) imageRaster.getSampleModel();
@@ -787,7 +1248,7 @@ class PngEncoderScanlineUtil {
             assert numBanks == 1;
 
             int linePtr = scanlineStride * (yStart - imageRaster.getSampleModelTranslateY())
-                    - imageRaster.getSampleModelTranslateX();
+                    + (xStart - imageRaster.getSampleModelTranslateX());
             for (int y = 0; y < heightToStream; y++) {
                 int pixelPtr = linePtr;
                 int writePtr = 1;
@@ -806,8 +1267,8 @@ class PngEncoderScanlineUtil {
                     prevLine = b;
                 }
             }
-            return true;
+        } else {
+            throw new IllegalStateException("Int generic must have a SinglePixelPackedSampleModel");
         }
-        return false;
     }
 }
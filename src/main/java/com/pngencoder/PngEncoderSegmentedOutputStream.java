@@ -0,0 +1,102 @@
+package com.pngencoder;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the encoded image in blocks which are never copied to grow, unlike a {@code ByteArrayOutputStream}.
+ * <p>
+ * The blocks can be handed out as they are, or copied once into an array of exactly the encoded size.
+ */
+class PngEncoderSegmentedOutputStream extends OutputStream {
+    // Small images waste little of their block, large images get few blocks.
+    static final int FIRST_BLOCK_LENGTH = 8 * 1024;
+    static final int MAX_BLOCK_LENGTH = 1024 * 1024;
+
+    private final List<byte[]> blocks = new ArrayList<>();
+    private byte[] block;
+    private int blockCount;
+    private int count;
+
+    @Override
+    public void write(int b) {
+        if (block == null || blockCount == block.length) {
+            addBlock(1);
+        }
+        block[blockCount++] = (byte) b;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (block == null || blockCount == block.length) {
+                addBlock(len);
+            }
+            final int toCopyCount = Math.min(len, block.length - blockCount);
+            System.arraycopy(b, off, block, blockCount, toCopyCount);
+            blockCount += toCopyCount;
+            count += toCopyCount;
+            off += toCopyCount;
+            len -= toCopyCount;
+        }
+    }
+
+    /**
+     * Adds a block twice as large as the one before, up to {@link #MAX_BLOCK_LENGTH}. A larger first write, e.g. a
+     * whole small image written at once, gets a block of exactly its size.
+     */
+    private void addBlock(int minLength) {
+        final int length = block == null ? FIRST_BLOCK_LENGTH : Math.min(block.length * 2, MAX_BLOCK_LENGTH);
+        block = new byte[blocks.isEmpty() ? Math.max(length, minLength) : length];
+        blockCount = 0;
+        blocks.add(block);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the bytes in an array of exactly their size, which is the only block if that one is full
+     */
+    byte[] toByteArray() {
+        if (blocks.size() == 1 && blockCount == block.length) {
+            return block;
+        }
+        final byte[] bytes = new byte[count];
+        int offset = 0;
+        for (byte[] b : blocks) {
+            final int length = Math.min(b.length, count - offset);
+            System.arraycopy(b, 0, bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the bytes in a single buffer, without copying them if they fit into one block
+     */
+    ByteBuffer toByteBuffer() {
+        if (blocks.size() <= 1) {
+            return block == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(block, 0, blockCount).slice();
+        }
+        return ByteBuffer.wrap(toByteArray());
+    }
+
+    /**
+     * @return the blocks holding the bytes, in order, without copying them
+     */
+    List<ByteBuffer> toByteBuffers() {
+        final List<ByteBuffer> buffers = new ArrayList<>(blocks.size());
+        for (byte[] b : blocks) {
+            buffers.add(ByteBuffer.wrap(b, 0, b == block ? blockCount : b.length).slice());
+        }
+        return buffers;
+    }
+}
@@ -0,0 +1,221 @@
+package com.pngencoder;
+
+import com.pngencoder.PngEncoderScanlineUtil.AbstractPNGLineConsumer;
+import com.pngencoder.PngEncoderScanlineUtil.AbstractScanlineExtractor;
+import com.pngencoder.PngEncoderScanlineUtil.EncodingMetaInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes small images, e.g. map tiles and icons, where the cost of setting up the streams of an encode is
+ * larger than the cost of the compression.
+ * <p>
+ * The whole file is built in one array which belongs to the thread and is reused, and written to the output
+ * stream at once. The rows are compressed straight into the IDAT chunks of that array, which have the same
+ * size as the ones of {@link PngEncoderIdatChunksOutputStream}. The deflater is the zlib variant of
+ * {@link PngEncoderDeflaterThreadLocalDeflater}.
+ * <p>
+ * An encode nested in another one of the same thread, e.g. from the row source or the output stream of the outer
+ * encode, gets an encoder of its own and a deflater from {@link PngEncoderDeflaterPool}.
+ */
+class PngEncoderSmallImageEncoder extends ByteArrayOutputStream {
+    // Images which the multithreaded deflater would compress as a single segment anyway, e.g. 128x128 RGBA
+    // tiles. Larger images are compressed faster in parallel.
+    static final int SMALL_IMAGE_MAX_BYTES = PngEncoderDeflaterOutputStream.SEGMENT_MAX_LENGTH_ORIGINAL_MIN;
+
+    // The file array of a thread is kept up to this size, which holds an incompressible small image and common
+    // header chunks. An array grown beyond it by large chunks, e.g. an iCCP chunk of a detailed color profile,
+    // is dropped after the encode.
+    static final int MAX_RETAINED_BYTES = 2 * SMALL_IMAGE_MAX_BYTES;
+
+    // Room for the chunks before the image data, the IDAT chunk overhead and IEND.
+    private static final int HEADER_BYTES_ESTIMATE = 1024;
+
+    private static final int IDAT_MAX_LENGTH = PngEncoderIdatChunksOutputStream.DEFAULT_BUFFER_LENGTH;
+
+    private static final ThreadLocal<PngEncoderSmallImageEncoder> THREAD_LOCAL = ThreadLocal.withInitial(PngEncoderSmallImageEncoder::new);
+
+    static boolean isSmallImage(EncodingMetaInfo metaInfo, int height) {
+        return (long) metaInfo.rowByteSize * height <= SMALL_IMAGE_MAX_BYTES;
+    }
+
+    /**
+     * Encodes the rows of the region and writes the complete file to {@code outputStream}.
+     *
+     * @return the number of bytes written
+     */
+    static int encode(AbstractScanlineExtractor extractor, int yStart, int width, int height, EncodingMetaInfo metaInfo,
+            PngEncoderAncillaryChunks ancillaryChunks, int compressionLevel, boolean usePredictor,
+            OutputStream outputStream) throws IOException {
+        final PngEncoderSmallImageEncoder encoder = THREAD_LOCAL.get();
+        if (!encoder.inUse) {
+            encoder.inUse = true;
+            try {
+                return encoder.encodeImage(extractor, yStart, width, height, metaInfo, ancillaryChunks,
+                        PngEncoderDeflaterThreadLocalDeflater.getZlibInstance(compressionLevel), usePredictor,
+                        outputStream);
+            } finally {
+                encoder.inUse = false;
+                if (encoder.buf.length > MAX_RETAINED_BYTES) {
+                    encoder.buf = new byte[0];
+                }
+            }
+        }
+
+        // Already encoding further up the stack of this thread, which owns the file array and the deflater.
+        final Deflater deflater = PngEncoderDeflaterPool.borrow(compressionLevel);
+        try {
+            return new PngEncoderSmallImageEncoder().encodeImage(extractor, yStart, width, height, metaInfo,
+                    ancillaryChunks, deflater, usePredictor, outputStream);
+        } finally {
+            PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+        }
+    }
+
+    static int getRetainedBytes() {
+        return THREAD_LOCAL.get().buf.length;
+    }
+
+    private final CRC32 crc = new CRC32();
+    private final DeflatingOutputStream deflatingOutputStream = new DeflatingOutputStream();
+    private final AbstractPNGLineConsumer lineConsumer = new PngEncoderScanlineUtil.OutputStreamPNGLineConsumer(deflatingOutputStream);
+    private PngEncoderPredictor predictor;
+    private int predictorBytesPerPixel;
+    private int predictorRowByteSize;
+    // The start of the IDAT chunk being filled, or -1.
+    private int idatStart;
+    private boolean inUse;
+
+    private PngEncoderSmallImageEncoder() {
+        super(0);
+    }
+
+    private int encodeImage(AbstractScanlineExtractor extractor, int yStart, int width, int height,
+            EncodingMetaInfo metaInfo, PngEncoderAncillaryChunks ancillaryChunks, Deflater deflater,
+            boolean usePredictor, OutputStream outputStream) throws IOException {
+        reset();
+        ensureCapacity(metaInfo.rowByteSize * height + HEADER_BYTES_ESTIMATE);
+        PngEncoderLogic.writeHeaderChunks(this, width, height, metaInfo, ancillaryChunks);
+        idatStart = -1;
+
+        deflatingOutputStream.deflater = deflater;
+        try {
+            PngEncoderScanlineUtil.stream(extractor, yStart, height, usePredictor ? getPredictor(metaInfo) : lineConsumer);
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(deflater);
+            }
+        } finally {
+            deflatingOutputStream.deflater = null;
+        }
+        finishIdatChunk();
+        write(PngEncoderLogic.FILE_ENDING, 0, PngEncoderLogic.FILE_ENDING.length);
+
+        outputStream.write(buf, 0, count);
+        outputStream.flush();
+        return count;
+    }
+
+    /**
+     * The predictor and its row buffers are reused as long as the rows keep their size.
+     */
+    private PngEncoderPredictor getPredictor(EncodingMetaInfo metaInfo) {
+        if (predictor == null || predictorBytesPerPixel != metaInfo.bytesPerPixel
+                || predictorRowByteSize != metaInfo.rowByteSize) {
+            predictor = new PngEncoderPredictor(metaInfo, deflatingOutputStream);
+            predictorBytesPerPixel = metaInfo.bytesPerPixel;
+            predictorRowByteSize = metaInfo.rowByteSize;
+        }
+        return predictor;
+    }
+
+    /**
+     * Compresses into the IDAT chunk being filled, and finishes the chunk when it is full.
+     */
+    private void deflate(Deflater deflater) {
+        if (idatStart < 0) {
+            // The length is filled in when the chunk is finished.
+            ensureCapacity(count + 8);
+            idatStart = count;
+            count += 4;
+            write(PngEncoderIdatChunksOutputStream.IDAT_BYTES, 0, PngEncoderIdatChunksOutputStream.IDAT_BYTES.length);
+        }
+        if (count == buf.length) {
+            ensureCapacity(buf.length + (buf.length >> 1));
+        }
+        final int idatEnd = idatStart + 8 + IDAT_MAX_LENGTH;
+        count += deflater.deflate(buf, count, Math.min(buf.length, idatEnd) - count);
+        if (count == idatEnd) {
+            finishIdatChunk();
+        }
+    }
+
+    private void finishIdatChunk() {
+        if (idatStart < 0) {
+            return;
+        }
+        final int idatLength = count - idatStart - 8;
+        if (idatLength == 0) {
+            count = idatStart;
+        } else {
+            putInt(idatStart, idatLength);
+            crc.reset();
+            crc.update(buf, idatStart + 4, idatLength + 4);
+            ensureCapacity(count + 4);
+            putInt(count, (int) crc.getValue());
+            count += 4;
+        }
+        idatStart = -1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buf.length < capacity) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length + (buf.length >> 1)));
+        }
+    }
+
+    private void putInt(int offset, int value) {
+        buf[offset] = (byte) (value >> 24);
+        buf[offset + 1] = (byte) (value >> 16);
+        buf[offset + 2] = (byte) (value >> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Compresses the rows straight into the file array.
+     */
+    private final class DeflatingOutputStream extends OutputStream {
+        private Deflater deflater;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(deflater);
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.pngencoder;
 
+import java.awt.Rectangle;
+
 class PngEncoderVerificationUtil {
     private PngEncoderVerificationUtil() {
     }
@@ -19,4 +21,47 @@ class PngEncoderVerificationUtil {
         }
         return chunkType;
     }
+
+    static int verifyImageDimension(String name, int value) {
+        if (value <= 0) {
+            String message = String.format("The %s must be greater than 0, but was %d.", name, value);
+            throw new IllegalArgumentException(message);
+        }
+        return value;
+    }
+
+    static int verifyBitsPerChannel(int bitsPerChannel) {
+        if (bitsPerChannel != 8 && bitsPerChannel != 16) {
+            String message = String.format("The bitsPerChannel must be 8 or 16, but was %d.", bitsPerChannel);
+            throw new IllegalArgumentException(message);
+        }
+        return bitsPerChannel;
+    }
+
+    static int verifyRowWidth(int width, int bytesPerPixel) {
+        // A row and its filter type byte must fit in an array, whose length the VM limits to a little less than
+        // Integer.MAX_VALUE.
+        if (1L + (long) width * bytesPerPixel > Integer.MAX_VALUE - 8) {
+            String message = String.format("The width %d is too large for rows of %d bytes per pixel.", width, bytesPerPixel);
+            throw new IllegalArgumentException(message);
+        }
+        return width;
+    }
+
+    static int verifyQuantizationColors(int maxColors) {
+        if (maxColors < 2 || maxColors > PngEncoderPalette.MAX_SIZE) {
+            String message = String.format("The maxColors must be between 2 and %d inclusive, but was %d.", PngEncoderPalette.MAX_SIZE, maxColors);
+            throw new IllegalArgumentException(message);
+        }
+        return maxColors;
+    }
+
+    static Rectangle verifyRegion(Rectangle region, int imageWidth, int imageHeight) {
+        if (region.isEmpty() || region.x < 0 || region.y < 0
+                || region.width > imageWidth - region.x || region.height > imageHeight - region.y) {
+            String message = String.format("The region must be a non empty part of the %dx%d image, but was %s.", imageWidth, imageHeight, region);
+            throw new IllegalArgumentException(message);
+        }
+        return region;
+    }
 }
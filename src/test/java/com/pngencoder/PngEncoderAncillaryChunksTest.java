@@ -0,0 +1,50 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderAncillaryChunksTest {
+    private static final PngEncoderPhysicalPixelDimensions DIMENSIONS = PngEncoderPhysicalPixelDimensions.dotsPerInch(300);
+
+    @Test
+    public void noChunksByDefault() {
+        assertThat(PngEncoderAncillaryChunks.NONE.get(false).length, is(0));
+        assertThat(PngEncoderAncillaryChunks.NONE.get(true).length, is(0));
+    }
+
+    @Test
+    public void chunksAreWrittenInOrder() throws IOException {
+        final PngEncoderAncillaryChunks ancillaryChunks = PngEncoderAncillaryChunks.NONE
+                .withPhysicalPixelDimensions(DIMENSIONS)
+                .withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent.PERCEPTUAL);
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(PngEncoderLogic.asChunk("sRGB", new byte[]{PngEncoderSrgbRenderingIntent.PERCEPTUAL.getValue()}));
+        expected.write(PngEncoderLogic.asChunk("gAMA", PngEncoderLogic.GAMA_SRGB_VALUE));
+        expected.write(PngEncoderLogic.asChunk("cHRM", PngEncoderLogic.CHRM_SRGB_VALUE));
+        expected.write(PngEncoderLogic.asChunk("pHYs", PngEncoderLogic.getPhysicalPixelDimensions(DIMENSIONS)));
+        assertThat(ancillaryChunks.get(false), is(expected.toByteArray()));
+    }
+
+    @Test
+    public void colorProfileReplacesTheSrgbChunks() {
+        final PngEncoderAncillaryChunks ancillaryChunks = PngEncoderAncillaryChunks.NONE
+                .withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent.PERCEPTUAL)
+                .withPhysicalPixelDimensions(DIMENSIONS);
+
+        assertThat(ancillaryChunks.get(true), is(PngEncoderLogic.asChunk("pHYs", PngEncoderLogic.getPhysicalPixelDimensions(DIMENSIONS))));
+    }
+
+    @Test
+    public void removingAllChunksGivesNone() {
+        final PngEncoderAncillaryChunks ancillaryChunks = PngEncoderAncillaryChunks.NONE
+                .withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent.PERCEPTUAL)
+                .withSrgbRenderingIntent(null);
+        assertThat(ancillaryChunks == PngEncoderAncillaryChunks.NONE, is(true));
+    }
+}
@@ -0,0 +1,132 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderAsyncEncoderTest {
+    // Large enough to be split into more segments than may be queued at once.
+    private static final int LARGE_SIDE = 1024;
+
+    @Test
+    public void largeImageIsEncodedLikeInTheCallingThread() {
+        assertThatAsyncEqualsSync(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, LARGE_SIDE)));
+    }
+
+    @Test
+    public void largeImageWithPredictorEncodingIsEncodedLikeInTheCallingThread() {
+        assertThatAsyncEqualsSync(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, LARGE_SIDE))
+                .withPredictorEncoding(true));
+    }
+
+    @Test
+    public void smallImageIsEncodedLikeInTheCallingThread() {
+        assertThatAsyncEqualsSync(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 64))
+                .withPredictorEncoding(true));
+    }
+
+    @Test
+    public void singleThreadedImageIsEncodedLikeInTheCallingThread() {
+        assertThatAsyncEqualsSync(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 512))
+                .withMultiThreadedCompressionEnabled(false));
+    }
+
+    @Test
+    public void rowSourceIsEncodedLikeInTheCallingThread() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, LARGE_SIDE);
+        final byte[] scanlines = PngEncoderScanlineUtil.get(bufferedImage);
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(LARGE_SIDE, LARGE_SIDE);
+        final int bytesPerRow = imageHeader.getBytesPerRow();
+        final AtomicInteger expectedY = new AtomicInteger();
+
+        final byte[] actual = new PngEncoder()
+                .withRowSource(imageHeader, (y, row) -> {
+                    assertThat(y, is(expectedY.getAndIncrement()));
+                    System.arraycopy(scanlines, y * (bytesPerRow + 1) + 1, row, 0, bytesPerRow);
+                })
+                .withPredictorEncoding(true)
+                .toBytesAsync()
+                .join();
+
+        assertThat(expectedY.get(), is(LARGE_SIDE));
+        assertThat(actual, is(new PngEncoder().withBufferedImage(bufferedImage).withPredictorEncoding(true).toBytes()));
+    }
+
+    @Test
+    public void moreEncodesThanThreadsComplete() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, LARGE_SIDE);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage).withCompressionLevel(1);
+        final byte[] expected = encoder.toBytes();
+
+        final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS * 4; i++) {
+            futures.add(encoder.toBytesAsync());
+        }
+
+        for (CompletableFuture<byte[]> future : futures) {
+            assertThat(future.join(), is(expected));
+        }
+    }
+
+    @Test
+    public void failedWriteCompletesTheFutureExceptionally() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, LARGE_SIDE);
+        final OutputStream outputStream = new OutputStream() {
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                count += len;
+                if (count > 100_000) {
+                    throw new IOException("Disk full");
+                }
+            }
+        };
+
+        final CompletableFuture<Integer> future = new PngEncoder().withBufferedImage(bufferedImage).toStreamAsync(outputStream);
+
+        final CompletionException exception = assertThrows(CompletionException.class, future::join);
+        assertThat(exception.getCause(), instanceOf(UncheckedIOException.class));
+    }
+
+    @Test
+    public void failedRowSourceCompletesTheFutureExceptionally() {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(LARGE_SIDE, LARGE_SIDE);
+        final CompletableFuture<byte[]> future = new PngEncoder()
+                .withRowSource(imageHeader, (y, row) -> {
+                    if (y == 500) {
+                        throw new IOException("Row not available");
+                    }
+                })
+                .toBytesAsync();
+
+        final CompletionException exception = assertThrows(CompletionException.class, future::join);
+        assertThat(exception.getCause(), instanceOf(UncheckedIOException.class));
+    }
+
+    private static void assertThatAsyncEqualsSync(PngEncoder encoder) {
+        assertThat(encoder.toBytesAsync().join(), is(encoder.toBytes()));
+    }
+}
@@ -0,0 +1,129 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PngEncoderBatchTest {
+    private static final PngEncoder ENCODER = new PngEncoder().withCompressionLevel(1).withPredictorEncoding(true);
+
+    @Test
+    public void mixedSizesAreEncodedInOrder() {
+        final List<BufferedImage> images = Arrays.asList(
+                PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024),
+                PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 16),
+                PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_BYTE_GRAY, 300),
+                PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 64));
+
+        final List<PngEncoderBatch.Result> results = new PngEncoderBatch(ENCODER).encode(
+                images.stream().map(PngEncoderBatch.Item::toBytes).collect(Collectors.toList()));
+
+        assertThat(results.size(), is(images.size()));
+        for (int i = 0; i < images.size(); i++) {
+            final PngEncoderBatch.Result result = results.get(i);
+            final byte[] expected = ENCODER.withBufferedImage(images.get(i)).toBytes();
+            assertThat(result.isSuccessful(), is(true));
+            assertThat(result.getIndex(), is(i));
+            assertThat(result.getBytes(), is(expected));
+            assertThat(result.getByteCount(), is(expected.length));
+        }
+    }
+
+    @Test
+    public void streamWithMoreImagesThanInProgressIsEncoded() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 32);
+        final byte[] expected = ENCODER.withBufferedImage(bufferedImage).toBytes();
+        final int count = PngEncoderBatch.MAX_IMAGES_IN_PROGRESS * 5;
+
+        final List<PngEncoderBatch.Result> results = new PngEncoderBatch(ENCODER).encode(
+                IntStream.range(0, count).mapToObj(i -> PngEncoderBatch.Item.toBytes(bufferedImage)));
+
+        assertThat(results.size(), is(count));
+        for (PngEncoderBatch.Result result : results) {
+            assertThat(result.getBytes(), is(expected));
+        }
+    }
+
+    @Test
+    public void encodedImagesCanBeGarbageCollected() throws InterruptedException {
+        final List<WeakReference<BufferedImage>> images = new ArrayList<>();
+        final List<PngEncoderBatch.Result> results = new PngEncoderBatch(ENCODER).encode(
+                IntStream.range(0, PngEncoderBatch.MAX_IMAGES_IN_PROGRESS * 3).mapToObj(i -> {
+                    final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 64);
+                    images.add(new WeakReference<>(bufferedImage));
+                    return PngEncoderBatch.Item.toBytes(bufferedImage);
+                }));
+
+        for (int attempt = 0; attempt < 50 && images.stream().anyMatch(image -> image.get() != null); attempt++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        assertThat(results.size(), is(images.size()));
+        for (WeakReference<BufferedImage> image : images) {
+            assertThat(image.get(), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void itemsAreWrittenToStreamsAndFiles(@TempDir Path directory) throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 100);
+        final byte[] expected = ENCODER.withBufferedImage(bufferedImage).toBytes();
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final Path filePath = directory.resolve("image.png");
+
+        final List<PngEncoderBatch.Result> results = new PngEncoderBatch(ENCODER).encode(Arrays.asList(
+                PngEncoderBatch.Item.toStream(bufferedImage, outputStream),
+                PngEncoderBatch.Item.toFile(bufferedImage, filePath)));
+
+        assertThat(results.get(0).getBytes(), is(nullValue()));
+        assertThat(outputStream.toByteArray(), is(expected));
+        assertThat(results.get(1).getByteCount(), is(expected.length));
+        assertThat(Files.readAllBytes(filePath), is(expected));
+    }
+
+    @Test
+    public void failedItemDoesNotStopTheOthers() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 100);
+        final OutputStream failingOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        final List<PngEncoderBatch.Item> items = new ArrayList<>();
+        items.add(PngEncoderBatch.Item.toBytes(bufferedImage));
+        items.add(PngEncoderBatch.Item.toStream(bufferedImage, failingOutputStream));
+        items.add(PngEncoderBatch.Item.toBytes(bufferedImage));
+
+        final List<PngEncoderBatch.Result> results = new PngEncoderBatch(ENCODER).encode(items);
+
+        assertThat(results.get(0).isSuccessful(), is(true));
+        assertThat(results.get(1).isSuccessful(), is(false));
+        assertThat(results.get(1).getException(), instanceOf(UncheckedIOException.class));
+        assertThat(results.get(2).isSuccessful(), is(true));
+    }
+}
@@ -0,0 +1,88 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares 16 bit RGBA images with the same images as 8 bit ARGB. The 16 bit rows are twice as long, so
+ * about half the throughput of the 8 bit images is what to expect.
+ */
+public class PngEncoderBenchmarkSixteenBit {
+    private static final Options OPTIONS = new OptionsBuilder()
+            .include(PngEncoderBenchmarkSixteenBit.class.getSimpleName() + ".*")
+            .shouldFailOnError(true)
+            .mode(Mode.Throughput)
+            .timeUnit(TimeUnit.SECONDS)
+            .threads(1)
+            .forks(1)
+            .warmupIterations(1)
+            .measurementIterations(1)
+            .warmupTime(TimeValue.seconds(2))
+            .measurementTime(TimeValue.seconds(5))
+            .build();
+
+    @Disabled("run manually")
+    @Test
+    public void runBenchmark() throws Exception {
+        new Runner(OPTIONS).run();
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkStateRandom1024x1024 {
+        final BufferedImage eightBit = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        final BufferedImage sixteenBit = createSixteenBitRgba(eightBit);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BenchmarkStateLogo2121x350 {
+        final BufferedImage eightBit = PngEncoderBufferedImageConverter.ensureType(PngEncoderTestUtil.readTestImageResource("png-encoder-logo.png"), PngEncoderBufferedImageType.TYPE_INT_ARGB);
+        final BufferedImage sixteenBit = createSixteenBitRgba(eightBit);
+    }
+
+    @Benchmark
+    public void random1024x1024EightBit(BenchmarkStateRandom1024x1024 state) {
+        PngEncoderTestUtil.encodeWithPngEncoderPredictorEncoding(state.eightBit, 4);
+    }
+
+    @Benchmark
+    public void random1024x1024SixteenBit(BenchmarkStateRandom1024x1024 state) {
+        PngEncoderTestUtil.encodeWithPngEncoderPredictorEncoding(state.sixteenBit, 4);
+    }
+
+    @Benchmark
+    public void logo2121x350EightBit(BenchmarkStateLogo2121x350 state) {
+        PngEncoderTestUtil.encodeWithPngEncoderPredictorEncoding(state.eightBit, 4);
+    }
+
+    @Benchmark
+    public void logo2121x350SixteenBit(BenchmarkStateLogo2121x350 state) {
+        PngEncoderTestUtil.encodeWithPngEncoderPredictorEncoding(state.sixteenBit, 4);
+    }
+
+    private static BufferedImage createSixteenBitRgba(BufferedImage source) {
+        final ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+        final BufferedImage bufferedImage = new BufferedImage(colorModel,
+                colorModel.createCompatibleWritableRaster(source.getWidth(), source.getHeight()), false, null);
+        final Graphics2D graphics = bufferedImage.createGraphics();
+        graphics.drawImage(source, 0, 0, null);
+        graphics.dispose();
+        return bufferedImage;
+    }
+}
@@ -0,0 +1,77 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderByteBufferOutputStreamTest {
+    @Test
+    public void encodedBufferEqualsEncodedBytes() {
+        final PngEncoder encoder = createEncoder(1024);
+        final byte[] expected = encoder.toBytes();
+        final ByteBuffer buffer = ByteBuffer.allocate(expected.length + 100);
+        buffer.position(10);
+
+        final int byteCount = encoder.toBuffer(buffer);
+
+        assertThat(byteCount, is(expected.length));
+        assertThat(buffer.position(), is(10 + expected.length));
+        assertThat(Arrays.copyOfRange(buffer.array(), 10, 10 + byteCount), is(expected));
+    }
+
+    @Test
+    public void directBufferIsReusedForEveryImage() {
+        final PngEncoder encoder = createEncoder(256);
+        final byte[] expected = encoder.toBytes();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length);
+
+        for (int i = 0; i < 3; i++) {
+            buffer.clear();
+            assertThat(encoder.toBuffer(buffer), is(expected.length));
+            buffer.flip();
+            final byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            assertThat(actual, is(expected));
+        }
+    }
+
+    @Test
+    public void encodedArrayEqualsEncodedBytes() {
+        final PngEncoder encoder = createEncoder(32);
+        final byte[] expected = encoder.toBytes();
+        final byte[] array = new byte[expected.length + 7];
+
+        assertThat(encoder.toArray(array, 7), is(expected.length));
+        assertThat(Arrays.copyOfRange(array, 7, array.length), is(expected));
+    }
+
+    @Test
+    public void overflowLeavesPositionUnchanged() {
+        final PngEncoder encoder = createEncoder(1024);
+        final ByteBuffer buffer = ByteBuffer.allocate(encoder.toBytes().length - 1);
+        buffer.position(1);
+
+        assertThrows(BufferOverflowException.class, () -> encoder.toBuffer(buffer));
+        assertThat(buffer.position(), is(1));
+    }
+
+    @Test
+    public void overflowOfSmallImageIsReported() {
+        final PngEncoder encoder = createEncoder(32);
+        final byte[] array = new byte[encoder.toBytes().length];
+
+        assertThrows(BufferOverflowException.class, () -> encoder.toArray(array, 1));
+    }
+
+    private static PngEncoder createEncoder(int size) {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, size);
+        return new PngEncoder().withBufferedImage(bufferedImage);
+    }
+}
@@ -0,0 +1,118 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderChunkFlushingOutputStreamTest {
+    @Test
+    public void flushesAtTheEndByDefault() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        final FlushRecordingOutputStream outputStream = new FlushRecordingOutputStream();
+
+        new PngEncoder().withBufferedImage(bufferedImage).toStream(outputStream);
+
+        // The image data is flushed before IEND is written.
+        for (Integer flushPosition : outputStream.flushPositions) {
+            assertThat(flushPosition, greaterThanOrEqualTo(outputStream.size() - PngEncoderLogic.FILE_ENDING.length));
+        }
+    }
+
+    @Test
+    public void multiThreadedImageIsFlushedAfterEveryChunk() {
+        assertThatEveryChunkIsFlushed(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024))
+                .withPredictorEncoding(true));
+    }
+
+    @Test
+    public void singleThreadedImageIsFlushedAfterEveryChunk() {
+        assertThatEveryChunkIsFlushed(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 512))
+                .withMultiThreadedCompressionEnabled(false)
+                .withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent.PERCEPTUAL));
+    }
+
+    @Test
+    public void smallImageWrittenAtOnceIsFlushedOnce() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 32);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage).withFlushPolicy(PngEncoderFlushPolicy.EVERY_CHUNK);
+        final FlushRecordingOutputStream outputStream = new FlushRecordingOutputStream();
+
+        encoder.toStream(outputStream);
+
+        assertThat(outputStream.toByteArray(), is(encoder.toBytes()));
+        assertThat(outputStream.flushPositions.get(0), is(outputStream.size()));
+    }
+
+    @Test
+    public void chunksSplitIntoSingleBytesAreRecognized() throws Exception {
+        final byte[] png = new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 64))
+                .toBytes();
+        final FlushRecordingOutputStream outputStream = new FlushRecordingOutputStream();
+        final PngEncoderChunkFlushingOutputStream flushingOutputStream = new PngEncoderChunkFlushingOutputStream(outputStream);
+
+        for (byte b : png) {
+            flushingOutputStream.write(b);
+        }
+
+        assertThat(outputStream.flushPositions, is(getChunkEnds(png)));
+    }
+
+    private static void assertThatEveryChunkIsFlushed(PngEncoder encoder) {
+        final FlushRecordingOutputStream outputStream = new FlushRecordingOutputStream();
+
+        encoder.withFlushPolicy(PngEncoderFlushPolicy.EVERY_CHUNK).toStream(outputStream);
+
+        final byte[] png = outputStream.toByteArray();
+        assertThat(png, is(encoder.toBytes()));
+        // The header chunks may be written at once, the image data is written chunk by chunk.
+        final List<Integer> chunkEnds = getChunkEnds(png);
+        final int firstImageDataChunk = chunkEnds.indexOf(getFirstIdatChunkStart(png)) + 1;
+        for (Integer chunkEnd : chunkEnds.subList(firstImageDataChunk, chunkEnds.size())) {
+            assertThat(outputStream.flushPositions, hasItem(chunkEnd));
+        }
+        assertThat(outputStream.flushPositions, hasItem(getFirstIdatChunkStart(png)));
+    }
+
+    private static List<Integer> getChunkEnds(byte[] png) {
+        final List<Integer> chunkEnds = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.wrap(png);
+        buffer.position(PngEncoderLogic.FILE_BEGINNING.length);
+        chunkEnds.add(buffer.position());
+        while (buffer.hasRemaining()) {
+            final int length = buffer.getInt();
+            buffer.position(buffer.position() + length + 8);
+            chunkEnds.add(buffer.position());
+        }
+        return chunkEnds;
+    }
+
+    private static int getFirstIdatChunkStart(byte[] png) {
+        for (Integer chunkEnd : getChunkEnds(png)) {
+            if (png[chunkEnd + 4] == 'I' && png[chunkEnd + 5] == 'D') {
+                return chunkEnd;
+            }
+        }
+        throw new AssertionError("No IDAT chunk");
+    }
+
+    private static final class FlushRecordingOutputStream extends ByteArrayOutputStream {
+        private final List<Integer> flushPositions = new ArrayList<>();
+
+        @Override
+        public void flush() {
+            flushPositions.add(size());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderChunkIteratorTest {
+    @Test
+    public void smallImageChunksMakeUpTheFile() {
+        assertThatChunksMakeUpTheFile(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 64)));
+    }
+
+    @Test
+    public void multiThreadedImageChunksMakeUpTheFile() {
+        assertThatChunksMakeUpTheFile(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024))
+                .withPredictorEncoding(true));
+    }
+
+    @Test
+    public void singleThreadedImageChunksMakeUpTheFile() {
+        assertThatChunksMakeUpTheFile(new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 512))
+                .withMultiThreadedCompressionEnabled(false)
+                .withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent.PERCEPTUAL));
+    }
+
+    @Test
+    public void firstChunksComeBeforeTheImageIsStreamed() {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(512, 2048);
+        final AtomicInteger rows = new AtomicInteger();
+        final Random random = new Random(42);
+        final Iterator<ByteBuffer> chunks = new PngEncoder()
+                .withRowSource(imageHeader, (y, row) -> {
+                    // Noise, which does not compress to nothing like blank rows would.
+                    random.nextBytes(row);
+                    rows.incrementAndGet();
+                })
+                .toChunks();
+
+        assertThat(chunks.next().remaining(), is(PngEncoderLogic.FILE_BEGINNING.length));
+        assertThat(getType(chunks.next()), is("IHDR"));
+        assertThat(rows.get(), is(0));
+
+        assertThat(getType(chunks.next()), is("IDAT"));
+        assertThat(rows.get(), lessThan(imageHeader.getHeight()));
+    }
+
+    @Test
+    public void failingRowSourceFailsTheIteration() {
+        final Iterator<ByteBuffer> chunks = new PngEncoder()
+                .withRowSource(PngEncoderImageHeader.rgb(512, 2048), (y, row) -> {
+                    throw new IOException("Row not available");
+                })
+                .toChunks();
+
+        chunks.next();
+        chunks.next();
+        assertThrows(UncheckedIOException.class, chunks::next);
+    }
+
+    @Test
+    public void failedIterationGivesBackTheDeflater() {
+        final int idleCount = fillDeflaterPool(4);
+        final PngEncoderChunkIterator chunks = new PngEncoder()
+                .withRowSource(PngEncoderImageHeader.rgb(512, 2048), (y, row) -> {
+                    throw new IOException("Row not available");
+                })
+                .withCompressionLevel(4)
+                .withMultiThreadedCompressionEnabled(false)
+                .toChunks();
+
+        chunks.next();
+        chunks.next();
+        assertThrows(UncheckedIOException.class, chunks::next);
+        assertThat(PngEncoderDeflaterPool.idleCount(4), is(idleCount));
+    }
+
+    @Test
+    public void closingAnAbandonedIterationGivesBackTheDeflater() {
+        final int idleCount = fillDeflaterPool(3);
+        final Random random = new Random(42);
+        final PngEncoderChunkIterator chunks = new PngEncoder()
+                .withRowSource(PngEncoderImageHeader.rgb(512, 2048), (y, row) -> random.nextBytes(row))
+                .withCompressionLevel(3)
+                .withMultiThreadedCompressionEnabled(false)
+                .toChunks();
+
+        chunks.next();
+        chunks.next();
+        assertThat(getType(chunks.next()), is("IDAT"));
+        assertThat(PngEncoderDeflaterPool.idleCount(3), is(idleCount - 1));
+
+        chunks.close();
+        assertThat(PngEncoderDeflaterPool.idleCount(3), is(idleCount));
+        assertThat(chunks.hasNext(), is(false));
+        chunks.close();
+        assertThat(PngEncoderDeflaterPool.idleCount(3), is(idleCount));
+    }
+
+    @Test
+    public void closingAnAbandonedMultiThreadedIterationEndsIt() {
+        final Random random = new Random(42);
+        final PngEncoderChunkIterator chunks = new PngEncoder()
+                .withRowSource(PngEncoderImageHeader.rgb(1024, 2048), (y, row) -> random.nextBytes(row))
+                .toChunks();
+
+        chunks.next();
+        chunks.next();
+        assertThat(getType(chunks.next()), is("IDAT"));
+
+        chunks.close();
+        assertThat(chunks.hasNext(), is(false));
+        chunks.close();
+    }
+
+    private static int fillDeflaterPool(int compressionLevel) {
+        // At least one idle deflater, so that the one borrowed by the iterator comes from the pool.
+        PngEncoderDeflaterPool.giveBack(compressionLevel, PngEncoderDeflaterPool.borrow(compressionLevel));
+        return PngEncoderDeflaterPool.idleCount(compressionLevel);
+    }
+
+    private static void assertThatChunksMakeUpTheFile(PngEncoder encoder) {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        encoder.toChunks().forEachRemaining(chunks::add);
+
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        for (ByteBuffer chunk : chunks) {
+            file.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        }
+        assertThat(file.toByteArray(), is(encoder.toBytes()));
+
+        assertThat(chunks.get(0).remaining(), is(PngEncoderLogic.FILE_BEGINNING.length));
+        for (ByteBuffer chunk : chunks.subList(1, chunks.size())) {
+            assertThat(chunk.getInt(chunk.position()) + 12, is(chunk.remaining()));
+        }
+        assertThat(getType(chunks.get(1)), is("IHDR"));
+        assertThat(getType(chunks.get(chunks.size() - 1)), is("IEND"));
+    }
+
+    private static String getType(ByteBuffer chunk) {
+        return new String(chunk.array(), chunk.arrayOffset() + chunk.position() + 4, 4, StandardCharsets.US_ASCII);
+    }
+}
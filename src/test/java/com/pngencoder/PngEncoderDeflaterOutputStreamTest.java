@@ -6,10 +6,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.function.BiConsumer;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterOutputStream;
@@ -18,6 +20,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 
 public class PngEncoderDeflaterOutputStreamTest {
     private static final int SEGMENT_MAX_LENGTH_ORIGINAL = 64 * 1024;
@@ -80,6 +83,73 @@ public class PngEncoderDeflaterOutputStreamTest {
         assertThatBytesIsSameAfterDeflateAndInflateFast(expected, MULTI_THREADED_DEFLATER);
     }
 
+    @Test
+    public void segmentsAreCompressedWhileTheOldestOneIsStuck() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final byte[] first = createRandomBytes(SEGMENT_MAX_LENGTH_ORIGINAL);
+        final PngEncoderDeflaterBufferPool pool = new PngEncoderDeflaterBufferPool(PngEncoderDeflaterOutputStream.getSegmentMaxLengthDeflated(SEGMENT_MAX_LENGTH_ORIGINAL));
+        final PngEncoderDeflaterBuffer firstSegment = pool.borrow();
+        System.arraycopy(first, 0, firstSegment.bytes, 0, first.length);
+        firstSegment.length = first.length;
+
+        // More segments than the queue of tasks used to take, fewer than may wait for the stuck one.
+        final int segmentCount = PngEncoderDeflaterOutputStream.COUNT_MAX_UNWRITTEN_SEGMENTS - 1;
+        assertThat(segmentCount, greaterThan(PngEncoderDeflaterOutputStream.COUNT_MAX_QUEUED_TASKS));
+        final byte[] rest = createRandomBytes(SEGMENT_MAX_LENGTH_ORIGINAL * segmentCount);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final PngEncoderDeflaterOutputStream deflaterOutputStream = new PngEncoderDeflaterOutputStream(outputStream, PngEncoder.DEFAULT_COMPRESSION_LEVEL, SEGMENT_MAX_LENGTH_ORIGINAL);
+        try {
+            deflaterOutputStream.submitTask(new PngEncoderDeflaterSegmentTask(firstSegment, pool.borrow(), PngEncoder.DEFAULT_COMPRESSION_LEVEL, false) {
+                @Override
+                public PngEncoderDeflaterSegmentResult get() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.get();
+                }
+            });
+
+            // Writing does not wait for the stuck segment, and nothing after it is written yet.
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> deflaterOutputStream.write(rest));
+            assertThat(outputStream.size(), is(2));
+        } finally {
+            release.countDown();
+        }
+        deflaterOutputStream.finish();
+
+        final byte[] expected = new byte[first.length + rest.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(rest, 0, expected, first.length, rest.length);
+        assertThat(inflate(outputStream.toByteArray()), is(expected));
+    }
+
+    @Test
+    public void deflateMultiThreadedWhileAllThreadsAreBusy() throws Exception {
+        // Every thread of the executor is taken by someone else, so the writing thread compresses all segments.
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS);
+        for (int i = 0; i < PngEncoderDeflaterExecutorService.NUM_THREADS_IS_AVAILABLE_PROCESSORS; i++) {
+            PngEncoderDeflaterExecutorService.getInstance().execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        try {
+            started.await();
+            byte[] expected = createRandomBytes(SEGMENT_MAX_LENGTH_ORIGINAL * 20);
+            assertTimeoutPreemptively(Duration.ofSeconds(30),
+                    () -> assertThatBytesIsSameAfterDeflateAndInflateFast(expected, MULTI_THREADED_DEFLATER));
+        } finally {
+            release.countDown();
+        }
+    }
+
     @Test
     public void constructorThrowsIOExceptionOnWritingDeflateHeaderWithRiggedOutputStream() throws IOException {
         RiggedOutputStream riggedOutputStream = new RiggedOutputStream(1);
@@ -0,0 +1,59 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderDeflaterPoolTest {
+    @Test
+    public void givenBackDeflaterIsBorrowedAgain() {
+        final int compressionLevel = 2;
+        final Deflater deflater = PngEncoderDeflaterPool.borrow(compressionLevel);
+        PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+
+        final Deflater borrowed = PngEncoderDeflaterPool.borrow(compressionLevel);
+        PngEncoderDeflaterPool.giveBack(compressionLevel, borrowed);
+
+        assertThat(borrowed == deflater, is(true));
+    }
+
+    @Test
+    public void deflatersBeyondTheIdleLimitAreEnded() {
+        final int compressionLevel = 3;
+        final List<Deflater> deflaters = new ArrayList<>();
+        for (int i = 0; i <= PngEncoderDeflaterPool.MAX_IDLE_PER_LEVEL; i++) {
+            deflaters.add(PngEncoderDeflaterPool.borrow(compressionLevel));
+        }
+        for (Deflater deflater : deflaters) {
+            PngEncoderDeflaterPool.giveBack(compressionLevel, deflater);
+        }
+
+        assertThat(PngEncoderDeflaterPool.idleCount(compressionLevel), is(PngEncoderDeflaterPool.MAX_IDLE_PER_LEVEL));
+        final Deflater ended = deflaters.get(deflaters.size() - 1);
+        assertThrows(RuntimeException.class, () -> ended.deflate(new byte[16]));
+    }
+
+    @Test
+    public void singleThreadedEncodeGivesTheDeflaterBack() {
+        final int compressionLevel = 4;
+        // Too large for the small image path, which has its own deflater.
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 256);
+        final PngEncoder encoder = new PngEncoder()
+                .withMultiThreadedCompressionEnabled(false)
+                .withCompressionLevel(compressionLevel)
+                .withBufferedImage(bufferedImage);
+
+        encoder.toBytes();
+        assertThat(PngEncoderDeflaterPool.idleCount(compressionLevel), is(1));
+
+        encoder.toBytes();
+        assertThat(PngEncoderDeflaterPool.idleCount(compressionLevel), is(1));
+    }
+}
@@ -0,0 +1,103 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class PngEncoderEncodedSizeTest {
+    @Test
+    public void noiseFitsIntoMaxEncodedSizeAtEveryCompressionLevel() {
+        final BufferedImage bufferedImage = createNoiseImage(BufferedImage.TYPE_INT_ARGB, 700, 600);
+        final long maxEncodedSize = PngEncoder.maxEncodedSize(PngEncoderImageHeader.rgba(700, 600));
+        for (int compressionLevel : new int[]{0, 1, 6, 9}) {
+            for (boolean multiThreaded : new boolean[]{true, false}) {
+                final PngEncoder encoder = new PngEncoder()
+                        .withBufferedImage(bufferedImage)
+                        .withCompressionLevel(compressionLevel)
+                        .withMultiThreadedCompressionEnabled(multiThreaded);
+                assertThat((long) encoder.toBytes().length, lessThan(maxEncodedSize));
+                assertThat(encoder.estimateEncodedSize(), is(maxEncodedSize));
+            }
+        }
+    }
+
+    @Test
+    public void maxEncodedSizeOfNoiseIsTight() {
+        final BufferedImage bufferedImage = createNoiseImage(BufferedImage.TYPE_INT_RGB, 1000, 1000);
+        final int rawLength = 1000 * (1 + 1000 * 3);
+        final int encodedLength = new PngEncoder().withBufferedImage(bufferedImage).withCompressionLevel(0).toBytes().length;
+
+        final long maxEncodedSize = PngEncoder.maxEncodedSize(PngEncoderImageHeader.rgb(1000, 1000));
+
+        assertThat(maxEncodedSize, greaterThanOrEqualTo((long) encodedLength));
+        assertThat(maxEncodedSize, lessThan(rawLength + rawLength / 500 + PngEncoderLogic.PALETTE_CHUNKS_MAX_LENGTH + 100L));
+    }
+
+    @Test
+    public void noiseFromRowSourceFitsIntoEstimate() {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(640, 480).withBitsPerChannel(16);
+        final Random random = new Random(7);
+        final PngEncoder encoder = new PngEncoder()
+                .withRowSource(imageHeader, (y, row) -> random.nextBytes(row))
+                .withCompressionLevel(1)
+                .withSrgbRenderingIntent(PngEncoderSrgbRenderingIntent.PERCEPTUAL);
+
+        final long estimate = encoder.estimateEncodedSize();
+
+        assertThat((long) encoder.toBytes().length, lessThan(estimate));
+        assertThat(estimate, greaterThanOrEqualTo(PngEncoder.maxEncodedSize(imageHeader)));
+    }
+
+    @Test
+    public void tinyImageWithPaletteFitsIntoEstimate() {
+        final BufferedImage bufferedImage = createNoiseImage(BufferedImage.TYPE_INT_ARGB, 1, 1);
+        final PngEncoder encoder = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withPaletteReduction(true)
+                .withPhysicalPixelDimensions(PngEncoderPhysicalPixelDimensions.dotsPerInch(300));
+
+        assertThat((long) encoder.toBytes().length, lessThan(encoder.estimateEncodedSize()));
+    }
+
+    @Test
+    public void estimateOfRegionOnlyCountsTheRegion() {
+        final BufferedImage bufferedImage = createNoiseImage(BufferedImage.TYPE_INT_RGB, 200, 200);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        assertThat(encoder.withRegion(new Rectangle(10, 20, 50, 40)).estimateEncodedSize(),
+                is(PngEncoder.maxEncodedSize(PngEncoderImageHeader.rgb(50, 40))));
+    }
+
+    @Test
+    public void bufferOfMaxEncodedSizeTakesEveryFrame() {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) PngEncoder.maxEncodedSize(PngEncoderImageHeader.rgba(300, 200)));
+        for (int seed = 0; seed < 3; seed++) {
+            final PngEncoder encoder = new PngEncoder().withBufferedImage(createNoiseImage(BufferedImage.TYPE_INT_ARGB, 300, 200, seed));
+            buffer.clear();
+            assertThat(encoder.toBuffer(buffer), is(encoder.toBytes().length));
+        }
+    }
+
+    private static BufferedImage createNoiseImage(int type, int width, int height) {
+        return createNoiseImage(type, width, height, 42);
+    }
+
+    private static BufferedImage createNoiseImage(int type, int width, int height, int seed) {
+        final Random random = new Random(seed);
+        final BufferedImage bufferedImage = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                bufferedImage.setRGB(x, y, random.nextInt());
+            }
+        }
+        return bufferedImage;
+    }
+}
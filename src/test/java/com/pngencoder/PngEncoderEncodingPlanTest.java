@@ -0,0 +1,91 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class PngEncoderEncodingPlanTest {
+    @Test
+    public void extractorMatchesMetaInfoForAllImageTypes() throws IOException {
+        for (int type = 1; type <= 13; type++) {
+            final BufferedImage bufferedImage = new BufferedImage(7, 3, type);
+            final PngEncoderEncodingPlan plan = PngEncoderEncodingPlan.of(bufferedImage, 0, bufferedImage.getWidth());
+
+            assertThat(plan.extractor.rowByteSize, is(plan.metaInfo.rowByteSize));
+            final int bitsPerPixel = plan.metaInfo.channels * plan.metaInfo.bitsPerChannel;
+            assertThat(plan.metaInfo.rowByteSize, is(1 + (bitsPerPixel * bufferedImage.getWidth() + 7) / 8));
+            assertThat(PngEncoderScanlineUtil.get(bufferedImage).length, is(plan.metaInfo.rowByteSize * bufferedImage.getHeight()));
+        }
+    }
+
+    @Test
+    public void planOfRegionHasRegionRowSize() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB);
+        final PngEncoderEncodingPlan plan = PngEncoderEncodingPlan.of(bufferedImage, 10, 20);
+        assertThat(plan.metaInfo.rowByteSize, is(1 + 4 * 20));
+        assertThat(plan.extractor.rowByteSize, is(1 + 4 * 20));
+    }
+
+    @Test
+    public void sameFormatSharesLayoutButNotMetaInfo() {
+        final BufferedImage first = new BufferedImage(10, 10, BufferedImage.TYPE_USHORT_GRAY);
+        final BufferedImage second = new BufferedImage(20, 10, BufferedImage.TYPE_USHORT_GRAY);
+        final PngEncoderEncodingPlan firstPlan = PngEncoderEncodingPlan.of(first, 0, first.getWidth());
+        final PngEncoderEncodingPlan secondPlan = PngEncoderEncodingPlan.of(second, 0, second.getWidth());
+
+        assertThat(firstPlan.metaInfo, not(sameInstance(secondPlan.metaInfo)));
+        assertThat(firstPlan.metaInfo.colorProfile, sameInstance(secondPlan.metaInfo.colorProfile));
+        assertThat(firstPlan.metaInfo.rowByteSize, is(1 + 2 * 10));
+        assertThat(secondPlan.metaInfo.rowByteSize, is(1 + 2 * 20));
+    }
+
+    @Test
+    public void imagesWithTheSameFormatKeepTheirOwnProfiles() {
+        // Like images read from files, which each get their own profile instance.
+        final byte[] profileData = ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB).getData();
+        final BufferedImage first = createImage(ICC_Profile.getInstance(profileData));
+        final BufferedImage second = createImage(ICC_Profile.getInstance(profileData));
+        final PngEncoderEncodingPlan firstPlan = PngEncoderEncodingPlan.of(first, 0, first.getWidth());
+        final PngEncoderEncodingPlan secondPlan = PngEncoderEncodingPlan.of(second, 0, second.getWidth());
+
+        assertThat(firstPlan.metaInfo.colorProfile, sameInstance(getProfile(first)));
+        assertThat(secondPlan.metaInfo.colorProfile, sameInstance(getProfile(second)));
+        assertThat(secondPlan.metaInfo.channels, is(firstPlan.metaInfo.channels));
+    }
+
+    @Test
+    public void unsupportedColorSpaceFallsBackToSrgb() {
+        final ColorSpace colorSpace = ColorSpace.getInstance(ColorSpace.CS_PYCC);
+        final ComponentColorModel colorModel = new ComponentColorModel(colorSpace, false, false,
+                ComponentColorModel.OPAQUE, DataBuffer.TYPE_BYTE);
+        final WritableRaster raster = colorModel.createCompatibleWritableRaster(4, 4);
+        final BufferedImage bufferedImage = new BufferedImage(colorModel, raster, false, null);
+
+        final PngEncoderEncodingPlan plan = PngEncoderEncodingPlan.of(bufferedImage, 0, bufferedImage.getWidth());
+        assertThat(plan.metaInfo.channels, is(3));
+        assertThat(plan.metaInfo.colorProfile == null, is(true));
+        assertThat(plan.extractor.rowByteSize, is(plan.metaInfo.rowByteSize));
+    }
+
+    private static BufferedImage createImage(ICC_Profile profile) {
+        final ComponentColorModel colorModel = new ComponentColorModel(new ICC_ColorSpace(profile), false, false,
+                ComponentColorModel.OPAQUE, DataBuffer.TYPE_USHORT);
+        return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(4, 4), false, null);
+    }
+
+    private static ICC_Profile getProfile(BufferedImage bufferedImage) {
+        return ((ICC_ColorSpace) bufferedImage.getColorModel().getColorSpace()).getProfile();
+    }
+}
@@ -0,0 +1,66 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class PngEncoderIccpChunkCacheTest {
+    @Test
+    public void chunkIsFoundByProfileContent() {
+        final PngEncoderIccpChunkCache cache = new PngEncoderIccpChunkCache(1000);
+        final byte[] chunk = {1, 2, 3};
+        cache.put(new byte[]{4, 5, 6}, chunk);
+
+        assertThat(cache.get(new byte[]{4, 5, 6}), sameInstance(chunk));
+        assertThat(cache.get(new byte[]{4, 5, 7}), nullValue());
+    }
+
+    @Test
+    public void leastRecentlyUsedChunkIsDropped() {
+        final PngEncoderIccpChunkCache cache = new PngEncoderIccpChunkCache(150);
+        cache.put(new byte[40], new byte[10]);
+        cache.put(new byte[41], new byte[10]);
+        cache.get(new byte[40]);
+        cache.put(new byte[42], new byte[10]);
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get(new byte[41]), nullValue());
+        assertThat(cache.get(new byte[40]) != null, is(true));
+        assertThat(cache.get(new byte[42]) != null, is(true));
+    }
+
+    @Test
+    public void tooLargeChunkIsNotCached() {
+        final PngEncoderIccpChunkCache cache = new PngEncoderIccpChunkCache(100);
+        cache.put(new byte[40], new byte[10]);
+        cache.put(new byte[90], new byte[20]);
+
+        assertThat(cache.size(), is(1));
+        assertThat(cache.get(new byte[90]), nullValue());
+    }
+
+    @Test
+    public void imagesWithTheSameProfileGetTheSameChunk() {
+        final byte[] first = new PngEncoder().withBufferedImage(createLinearRgbImage()).toBytes();
+        final ICC_Profile profile = ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB);
+
+        assertThat(PngEncoderIccpChunkCache.getInstance().get(profile.getData()) != null, is(true));
+        assertThat(new PngEncoder().withBufferedImage(createLinearRgbImage()).toBytes(), is(first));
+    }
+
+    private static BufferedImage createLinearRgbImage() {
+        final ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(20, 10), false, null);
+    }
+}
@@ -0,0 +1,252 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class PngEncoderImageAnalysisTest {
+    // Offsets into the IHDR chunk, which follows the 8 byte signature, 4 byte length and 4 byte type.
+    private static final int IHDR_BIT_DEPTH_OFFSET = 8 + 4 + 4 + 8;
+    private static final int IHDR_COLOR_TYPE_OFFSET = IHDR_BIT_DEPTH_OFFSET + 1;
+
+    @Test
+    public void opaqueArgbIsEncodedAsRgb() throws IOException {
+        final BufferedImage bufferedImage = createImage(BufferedImage.TYPE_INT_ARGB, 100, 60, false, false);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        byte[] reduced = encoder.withLosslessReduction(true).toBytes();
+
+        assertThat((int) reduced[IHDR_COLOR_TYPE_OFFSET], is(2));
+        assertThat(reduced.length, lessThan(encoder.toBytes().length));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(reduced), bufferedImage);
+    }
+
+    @Test
+    public void grayRgbIsEncodedAsGray() throws IOException {
+        final BufferedImage bufferedImage = createImage(BufferedImage.TYPE_3BYTE_BGR, 100, 60, true, false);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(0));
+        assertThatSamplesAreEqual(PngEncoderTest.readWithImageIO(bytes).getRaster(), bufferedImage, 1);
+    }
+
+    @Test
+    public void grayTranslucentArgbIsEncodedAsGrayAlpha() throws IOException {
+        final BufferedImage bufferedImage = createImage(BufferedImage.TYPE_INT_ARGB, 100, 60, true, true);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(4));
+        assertThatSamplesAreEqual(PngEncoderTest.readWithImageIO(bytes).getRaster(), bufferedImage, 2);
+    }
+
+    @Test
+    public void imageWithoutRedundancyIsEncodedAsBefore() {
+        final BufferedImage bufferedImage = createImage(BufferedImage.TYPE_INT_ARGB, 100, 60, false, true);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        assertThat(encoder.withLosslessReduction(true).toBytes(), is(encoder.toBytes()));
+    }
+
+    @Test
+    public void scaledUpSixteenBitGrayIsEncodedWithEightBits() throws IOException {
+        final BufferedImage bufferedImage = new BufferedImage(70, 30, BufferedImage.TYPE_USHORT_GRAY);
+        final WritableRaster raster = bufferedImage.getRaster();
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                raster.setSample(x, y, 0, ((x + y) & 0xFF) * 257);
+            }
+        }
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_BIT_DEPTH_OFFSET], is(8));
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(0));
+        final Raster decoded = PngEncoderTest.readWithImageIO(bytes).getRaster();
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                assertThat(decoded.getSample(x, y, 0) * 257, is(raster.getSample(x, y, 0)));
+            }
+        }
+    }
+
+    @Test
+    public void sixteenBitsAreKeptWhenTheLowByteIsUsed() throws IOException {
+        final BufferedImage bufferedImage = new BufferedImage(70, 30, BufferedImage.TYPE_USHORT_GRAY);
+        bufferedImage.getRaster().setSample(5, 5, 0, 0x1234);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_BIT_DEPTH_OFFSET], is(16));
+        assertThat(PngEncoderTest.readWithImageIO(bytes).getRaster().getSample(5, 5, 0), is(0x1234));
+    }
+
+    @Test
+    public void opaqueSixteenBitRgbaIsEncodedAsEightBitRgb() throws IOException {
+        final ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+        final WritableRaster raster = colorModel.createCompatibleWritableRaster(40, 20);
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                raster.setPixel(x, y, new int[]{x * 6 * 257, y * 12 * 257, (x + y) * 257, 0xFFFF});
+            }
+        }
+        final BufferedImage bufferedImage = new BufferedImage(colorModel, raster, false, null);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_BIT_DEPTH_OFFSET], is(8));
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(2));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    @Test
+    public void largeImageIsAnalyzedInBands() throws IOException {
+        final BufferedImage bufferedImage = createImage(BufferedImage.TYPE_INT_ARGB, 1024, 1024, true, false);
+        // A single translucent pixel in the last band keeps the alpha channel.
+        bufferedImage.setRGB(1000, 1000, 0x80404040);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(4));
+        assertThatSamplesAreEqual(PngEncoderTest.readWithImageIO(bytes).getRaster(), bufferedImage, 2);
+    }
+
+    @Test
+    public void regionIsAnalyzedOnItsOwn() throws IOException {
+        final BufferedImage bufferedImage = createImage(BufferedImage.TYPE_INT_RGB, 100, 100, true, false);
+        // The colored pixel is outside of the region.
+        bufferedImage.setRGB(0, 0, 0xFF0000);
+        final Rectangle region = new Rectangle(10, 20, 30, 40);
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withRegion(region)
+                .withLosslessReduction(true)
+                .toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(0));
+        assertThatSamplesAreEqual(PngEncoderTest.readWithImageIO(bytes).getRaster(),
+                bufferedImage.getSubimage(region.x, region.y, region.width, region.height), 1);
+    }
+
+    @Test
+    public void cutOutImageIsEncodedAsRgbWithTransparentColor() throws IOException {
+        final BufferedImage bufferedImage = createCutOutImage(300, 200, false);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        byte[] reduced = encoder.withLosslessReduction(true).toBytes();
+
+        assertThat((int) reduced[IHDR_COLOR_TYPE_OFFSET], is(2));
+        assertThat(new String(reduced, "ISO-8859-1").contains("tRNS"), is(true));
+        assertThat(reduced.length, lessThan(encoder.toBytes().length));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(reduced), bufferedImage);
+    }
+
+    @Test
+    public void grayCutOutImageIsEncodedAsGrayWithTransparentColor() throws IOException {
+        final BufferedImage bufferedImage = createCutOutImage(300, 200, true);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(0));
+        // ImageIO turns the transparent gray into an alpha channel.
+        assertThatSamplesAreEqual(PngEncoderTest.readWithImageIO(bytes).getRaster(), bufferedImage, 2);
+    }
+
+    @Test
+    public void transparentPixelsOfDifferentColorsKeepTheAlphaChannel() throws IOException {
+        final BufferedImage bufferedImage = createCutOutImage(300, 200, false);
+        bufferedImage.setRGB(299, 199, 0x00FF0000);
+        assertColorTypeWithLosslessReduction(bufferedImage, 6);
+    }
+
+    @Test
+    public void opaquePixelOfTheTransparentColorKeepsTheAlphaChannel() throws IOException {
+        final BufferedImage bufferedImage = createCutOutImage(1024, 1024, false);
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < bufferedImage.getWidth(); x++) {
+                bufferedImage.setRGB(x, y, 0xFF000000 | (x * 7 + y));
+            }
+        }
+        // The first transparent pixel comes after this one, in another band.
+        bufferedImage.setRGB(5, 300, 0xFFFFFFFF);
+        assertColorTypeWithLosslessReduction(bufferedImage, 6);
+    }
+
+    @Test
+    public void partlyTransparentPixelKeepsTheAlphaChannel() throws IOException {
+        final BufferedImage bufferedImage = createCutOutImage(300, 200, false);
+        bufferedImage.setRGB(150, 100, 0x80123456);
+        assertColorTypeWithLosslessReduction(bufferedImage, 6);
+    }
+
+    @Test
+    public void cutOutImageWithFewColorsIsEncodedAsPalette() throws IOException {
+        final BufferedImage bufferedImage = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < bufferedImage.getHeight(); y++) {
+            for (int x = 0; x < bufferedImage.getWidth(); x++) {
+                bufferedImage.setRGB(x, y, x < 32 ? 0x00FFFFFF : 0xFF000000 | (y / 8) * 0x203040);
+            }
+        }
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withLosslessReduction(true)
+                .withPaletteReduction(true)
+                .toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(3));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    private static void assertColorTypeWithLosslessReduction(BufferedImage bufferedImage, int colorType) throws IOException {
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withLosslessReduction(true).toBytes();
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(colorType));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    private static BufferedImage createCutOutImage(int width, int height, boolean gray) {
+        final BufferedImage bufferedImage = createImage(BufferedImage.TYPE_INT_ARGB, width, height, gray, false);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // A white background around an ellipse, masked out. White is not used within the ellipse.
+                final double dx = (x - width / 2.0) / (width / 2.0);
+                final double dy = (y - height / 2.0) / (height / 2.0);
+                if (dx * dx + dy * dy > 0.8 || bufferedImage.getRGB(x, y) == 0xFFFFFFFF) {
+                    bufferedImage.setRGB(x, y, 0x00FFFFFF);
+                }
+            }
+        }
+        return bufferedImage;
+    }
+
+    private static void assertThatSamplesAreEqual(Raster gray, BufferedImage expected, int bands) {
+        assertThat(gray.getNumBands(), is(bands));
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                final int argb = expected.getRGB(x, y);
+                assertThat(gray.getSample(x, y, 0), is(argb & 0xFF));
+                if (bands == 2) {
+                    assertThat(gray.getSample(x, y, 1), is(argb >>> 24));
+                }
+            }
+        }
+    }
+
+    private static BufferedImage createImage(int type, int width, int height, boolean gray, boolean translucent) {
+        final BufferedImage bufferedImage = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int alpha = translucent ? (x * 7 + y) & 0xFF : 0xFF;
+                final int rgb = gray ? ((x + 3 * y) & 0xFF) * 0x010101 : (x * 3) << 16 | (y * 5 & 0xFF) << 8 | (x ^ y) & 0xFF;
+                bufferedImage.setRGB(x, y, alpha << 24 | rgb);
+            }
+        }
+        return bufferedImage;
+    }
+}
@@ -10,6 +10,7 @@ import java.io.IOException;
 import javax.imageio.ImageIO;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 /**
@@ -40,7 +41,7 @@ public class PngEncoderInputTypesTest {
     }
 
     @Test
-    void showcaseMismatchInNumberOfChannels() {
+    void indexedGifKeepsItsSingleChannel() {
         final BufferedImage image = getRealGifImage();
 
         final int channels = image.getRaster().getSampleModel().getNumBands();
@@ -48,7 +49,8 @@ public class PngEncoderInputTypesTest {
         PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = PngEncoderScanlineUtil.getEncodingMetaInfo(image);
 
         assertEquals(channels, 1);
-        assertEquals(metaInfo.channels, 3);
+        assertEquals(metaInfo.channels, 1);
+        assertNotNull(metaInfo.palette);
     }
 
     @Test
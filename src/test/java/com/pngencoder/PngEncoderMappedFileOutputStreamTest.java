@@ -0,0 +1,75 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderMappedFileOutputStreamTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void mappedFileEqualsEncodedBytes() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+        final Path filePath = tempDir.resolve("mapped.png");
+
+        final long byteCount = encoder.toFileMapped(filePath);
+
+        final byte[] expected = encoder.toBytes();
+        assertThat(byteCount, is((long) expected.length));
+        assertThat(Files.readAllBytes(filePath), is(expected));
+    }
+
+    @Test
+    public void longerFileIsTruncated() throws IOException {
+        final Path filePath = tempDir.resolve("existing.png");
+        Files.write(filePath, new byte[3 * PngEncoderMappedFileOutputStream.MIN_WINDOW_LENGTH]);
+        final PngEncoder encoder = new PngEncoder()
+                .withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 64));
+
+        encoder.toFileMapped(filePath);
+
+        assertThat(Files.readAllBytes(filePath), is(encoder.toBytes()));
+    }
+
+    @Test
+    public void writesSpanningManyWindowsAreKeptInOrder() throws IOException {
+        final Random random = new Random(3);
+        final Path filePath = tempDir.resolve("windows.bin");
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (PngEncoderMappedFileOutputStream outputStream = new PngEncoderMappedFileOutputStream(filePath, 0)) {
+            while (expected.size() < 4 * PngEncoderMappedFileOutputStream.MIN_WINDOW_LENGTH) {
+                final byte[] bytes = new byte[random.nextInt(300_000)];
+                random.nextBytes(bytes);
+                outputStream.write(bytes, 0, bytes.length);
+                outputStream.write(bytes.length);
+                expected.write(bytes, 0, bytes.length);
+                expected.write(bytes.length);
+            }
+            assertThat(outputStream.size(), is((long) expected.size()));
+        }
+
+        assertThat(Files.readAllBytes(filePath), is(expected.toByteArray()));
+    }
+
+    @Test
+    public void writingAfterCloseFails() throws IOException {
+        final PngEncoderMappedFileOutputStream outputStream = new PngEncoderMappedFileOutputStream(tempDir.resolve("closed.bin"), 0);
+        outputStream.write(1);
+        outputStream.close();
+
+        assertThrows(IOException.class, () -> outputStream.write(2));
+        assertThat(Files.size(tempDir.resolve("closed.bin")), is(1L));
+    }
+}
@@ -0,0 +1,123 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class PngEncoderPaletteTest {
+    // Offsets into the IHDR chunk, which follows the 8 byte signature, 4 byte length and 4 byte type.
+    private static final int IHDR_BIT_DEPTH_OFFSET = 8 + 4 + 4 + 8;
+    private static final int IHDR_COLOR_TYPE_OFFSET = IHDR_BIT_DEPTH_OFFSET + 1;
+
+    @Test
+    public void fewColorsAreEncodedAsPalette() throws IOException {
+        final BufferedImage bufferedImage = createImageWithColors(BufferedImage.TYPE_INT_ARGB, 256, 256, 40, true);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        byte[] palette = encoder.withPaletteReduction(true).toBytes();
+        byte[] truecolor = encoder.toBytes();
+
+        assertThat((int) palette[IHDR_COLOR_TYPE_OFFSET], is(3));
+        assertThat((int) palette[IHDR_BIT_DEPTH_OFFSET], is(8));
+        assertThat(palette.length, lessThan(truecolor.length));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(palette), bufferedImage);
+    }
+
+    @Test
+    public void bitDepthFollowsColorCount() throws IOException {
+        assertBitDepth(2, 1);
+        assertBitDepth(3, 2);
+        assertBitDepth(4, 2);
+        assertBitDepth(5, 4);
+        assertBitDepth(16, 4);
+        assertBitDepth(17, 8);
+        assertBitDepth(256, 8);
+    }
+
+    @Test
+    public void tooManyColorsAreEncodedAsBefore() {
+        final BufferedImage bufferedImage = createImageWithColors(BufferedImage.TYPE_INT_RGB, 64, 64, 257, false);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        assertThat(encoder.withPaletteReduction(true).toBytes(), is(encoder.toBytes()));
+    }
+
+    @Test
+    public void opaqueImageHasNoTransparency() throws IOException {
+        final BufferedImage bufferedImage = createImageWithColors(BufferedImage.TYPE_3BYTE_BGR, 50, 30, 7, false);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withPaletteReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(3));
+        assertThat(new String(bytes, "ISO-8859-1").contains("tRNS"), is(false));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    @Test
+    public void multiThreadedPaletteImage() throws IOException {
+        final BufferedImage bufferedImage = createImageWithColors(BufferedImage.TYPE_INT_ARGB, 1024, 1024, 100, true);
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withPaletteReduction(true)
+                .withPredictorEncoding(true)
+                .toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(3));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    @Test
+    public void regionWithPalette() throws IOException {
+        final BufferedImage bufferedImage = createImageWithColors(BufferedImage.TYPE_INT_ARGB, 100, 100, 9, true);
+        final Rectangle region = new Rectangle(13, 7, 31, 50);
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withRegion(region)
+                .withPaletteReduction(true)
+                .toBytes();
+
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes),
+                bufferedImage.getSubimage(region.x, region.y, region.width, region.height));
+    }
+
+    @Test
+    public void paletteLookup() {
+        final PngEncoderPalette palette = PngEncoderPalette.of(new int[]{0xFF000000, 0x00000000, 0x80FF0000});
+        assertThat(palette.indexOf(0x00000000), is(1));
+        assertThat(palette.indexOf(0x80FF0000), is(2));
+        assertThat(palette.indexOf(0xFFFFFFFF), is(-1));
+        assertThat(palette.getTrns(), is(new byte[]{(byte) 0xFF, 0, (byte) 0x80}));
+    }
+
+    private static void assertBitDepth(int colors, int expectedBitDepth) throws IOException {
+        // An odd width, so that the packed rows end in a partial byte.
+        final BufferedImage bufferedImage = createImageWithColors(BufferedImage.TYPE_INT_ARGB, 37, 11, colors, true);
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withPaletteReduction(true).toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(3));
+        assertThat((int) bytes[IHDR_BIT_DEPTH_OFFSET], is(expectedBitDepth));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    private static BufferedImage createImageWithColors(int type, int width, int height, int colors, boolean translucent) {
+        final int[] palette = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            int alpha = translucent && i % 3 == 0 ? (i * 37) & 0xFF : 0xFF;
+            // Multiplying by an odd number gives distinct colors.
+            palette[i] = alpha << 24 | ((i * 0x9E3779) & 0xFFFFFF);
+        }
+        final BufferedImage bufferedImage = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Every color is used, in runs of a few pixels.
+                bufferedImage.setRGB(x, y, palette[((y * width + x) / 3) % colors]);
+            }
+        }
+        return bufferedImage;
+    }
+}
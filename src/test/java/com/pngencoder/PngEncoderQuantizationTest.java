@@ -0,0 +1,179 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderQuantizationTest {
+    // Offsets into the IHDR chunk, which follows the 8 byte signature, 4 byte length and 4 byte type.
+    private static final int IHDR_BIT_DEPTH_OFFSET = 8 + 4 + 4 + 8;
+    private static final int IHDR_COLOR_TYPE_OFFSET = IHDR_BIT_DEPTH_OFFSET + 1;
+
+    @Test
+    public void gradientIsQuantizedToAnEightBitPalette() throws IOException {
+        final BufferedImage bufferedImage = createGradient(BufferedImage.TYPE_INT_RGB, 300, 200);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        byte[] quantized = encoder.withQuantization(PngEncoderQuantization.colors(64)).toBytes();
+
+        assertThat((int) quantized[IHDR_COLOR_TYPE_OFFSET], is(3));
+        assertThat((int) quantized[IHDR_BIT_DEPTH_OFFSET], is(8));
+        // The length of the PLTE chunk precedes its type.
+        final int plteLengthOffset = new String(quantized, "ISO-8859-1").indexOf("PLTE") - 4;
+        assertThat(ByteBuffer.wrap(quantized, plteLengthOffset, 4).getInt(), lessThanOrEqualTo(64 * 3));
+        assertThat(quantized.length, lessThan(encoder.toBytes().length));
+        assertThatImageIsClose(PngEncoderTest.readWithImageIO(quantized), bufferedImage, 40);
+    }
+
+    @Test
+    public void ditheringKeepsTheAverageColorCloser() throws IOException {
+        final BufferedImage bufferedImage = createGradient(BufferedImage.TYPE_INT_RGB, 256, 256);
+        final PngEncoderQuantization quantization = PngEncoderQuantization.colors(16);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+
+        final BufferedImage dithered = PngEncoderTest.readWithImageIO(
+                encoder.withQuantization(quantization.withDithering(true)).toBytes());
+        final BufferedImage notDithered = PngEncoderTest.readWithImageIO(
+                encoder.withQuantization(quantization).toBytes());
+
+        // Every pixel may be further off, but blocks of 16x16 pixels have a closer average color.
+        assertThat(sumOfBlockErrors(dithered, bufferedImage), lessThan(sumOfBlockErrors(notDithered, bufferedImage) / 2));
+    }
+
+    @Test
+    public void translucentImageKeepsItsAlpha() throws IOException {
+        final BufferedImage bufferedImage = createGradient(BufferedImage.TYPE_INT_ARGB, 200, 100);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 200; x++) {
+                bufferedImage.setRGB(x, y, bufferedImage.getRGB(x, y) & 0xFFFFFF | (x < 50 ? 0 : 0xFF) << 24);
+            }
+        }
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withQuantization(PngEncoderQuantization.colors(32).withDithering(true))
+                .toBytes();
+
+        assertThat(new String(bytes, "ISO-8859-1").contains("tRNS"), is(true));
+        final BufferedImage decoded = PngEncoderTest.readWithImageIO(bytes);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 200; x++) {
+                assertThat(decoded.getRGB(x, y) >>> 24, is(x < 50 ? 0 : 0xFF));
+            }
+        }
+    }
+
+    @Test
+    public void imageWithFewColorsIsStoredWithoutLoss() throws IOException {
+        final BufferedImage bufferedImage = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                bufferedImage.setRGB(x, y, ((x / 10) * 0x1A2B3C) | 0xFF000000);
+            }
+        }
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withQuantization(PngEncoderQuantization.colors(16).withDithering(true))
+                .toBytes();
+
+        assertThat((int) bytes[IHDR_COLOR_TYPE_OFFSET], is(3));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    @Test
+    public void resultDoesNotDependOnThreads() throws IOException {
+        final BufferedImage bufferedImage = createGradient(BufferedImage.TYPE_INT_RGB, 512, 700);
+        final PngEncoder encoder = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withQuantization(PngEncoderQuantization.colors(100).withDithering(true));
+
+        final BufferedImage multiThreaded = PngEncoderTest.readWithImageIO(encoder.toBytes());
+        final BufferedImage singleThreaded = PngEncoderTest.readWithImageIO(
+                encoder.withMultiThreadedCompressionEnabled(false).toBytes());
+
+        PngEncoderTestUtil.assertThatImageIsEqual(multiThreaded, singleThreaded);
+    }
+
+    @Test
+    public void regionIsQuantized() throws IOException {
+        final BufferedImage bufferedImage = createGradient(BufferedImage.TYPE_3BYTE_BGR, 300, 200);
+        final Rectangle region = new Rectangle(30, 70, 100, 90);
+        byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withRegion(region)
+                .withQuantization(PngEncoderQuantization.colors(128))
+                .toBytes();
+
+        assertThatImageIsClose(PngEncoderTest.readWithImageIO(bytes),
+                bufferedImage.getSubimage(region.x, region.y, region.width, region.height), 32);
+    }
+
+    @Test
+    public void grayImageIsEncodedAsBefore() {
+        final BufferedImage bufferedImage = new BufferedImage(50, 50, BufferedImage.TYPE_BYTE_GRAY);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage);
+        assertThat(encoder.withQuantization(PngEncoderQuantization.colors(4)).toBytes(), is(encoder.toBytes()));
+    }
+
+    @Test
+    public void colorsMustFitIntoAPalette() {
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderQuantization.colors(1));
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderQuantization.colors(257));
+    }
+
+    private static void assertThatImageIsClose(BufferedImage actual, BufferedImage expected, int maxDifference) {
+        assertThat(actual.getWidth(), is(expected.getWidth()));
+        assertThat(actual.getHeight(), is(expected.getHeight()));
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int difference = ((actual.getRGB(x, y) >>> shift) & 0xFF) - ((expected.getRGB(x, y) >>> shift) & 0xFF);
+                    assertThat(Math.abs(difference), lessThanOrEqualTo(maxDifference));
+                }
+            }
+        }
+    }
+
+    private static int sumOfBlockErrors(BufferedImage actual, BufferedImage expected) {
+        int sum = 0;
+        for (int y = 0; y < expected.getHeight(); y += 16) {
+            for (int x = 0; x < expected.getWidth(); x += 16) {
+                for (int shift = 0; shift < 24; shift += 8) {
+                    sum += Math.abs(averageOfBlock(actual, x, y, shift) - averageOfBlock(expected, x, y, shift));
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static int averageOfBlock(BufferedImage bufferedImage, int xStart, int yStart, int shift) {
+        int sum = 0;
+        for (int y = yStart; y < yStart + 16; y++) {
+            for (int x = xStart; x < xStart + 16; x++) {
+                sum += (bufferedImage.getRGB(x, y) >>> shift) & 0xFF;
+            }
+        }
+        return sum / 256;
+    }
+
+    private static BufferedImage createGradient(int type, int width, int height) {
+        final BufferedImage bufferedImage = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / (width - 1);
+                int g = y * 255 / (height - 1);
+                int b = (x + y) * 255 / (width + height - 2);
+                bufferedImage.setRGB(x, y, 0xFF000000 | r << 16 | g << 8 | b);
+            }
+        }
+        return bufferedImage;
+    }
+}
@@ -0,0 +1,131 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderRowSourceTest {
+    @Test
+    public void rgbaRowSourceEqualsBufferedImage() throws IOException {
+        assertThatRowSourceEqualsBufferedImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 256, false);
+    }
+
+    @Test
+    public void rgbRowSourceEqualsBufferedImage() throws IOException {
+        assertThatRowSourceEqualsBufferedImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 256, false);
+    }
+
+    @Test
+    public void grayRowSourceEqualsBufferedImage() throws IOException {
+        assertThatRowSourceEqualsBufferedImage(PngEncoderBufferedImageType.TYPE_BYTE_GRAY, 256, true);
+    }
+
+    @Test
+    public void multiThreadedRowSourceEqualsBufferedImage() throws IOException {
+        // Large enough to be split into several segments.
+        assertThatRowSourceEqualsBufferedImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024, false);
+    }
+
+    @Test
+    public void multiThreadedPredictorRowSourceEqualsBufferedImage() throws IOException {
+        assertThatRowSourceEqualsBufferedImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024, true);
+    }
+
+    @Test
+    public void sixteenBitGrayRowSource() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_USHORT_GRAY);
+        final byte[] scanlines = PngEncoderScanlineUtil.get(bufferedImage);
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader
+                .gray(bufferedImage.getWidth(), bufferedImage.getHeight())
+                .withBitsPerChannel(16);
+
+        byte[] bytes = new PngEncoder()
+                .withRowSource(imageHeader, scanlineRowSource(scanlines, imageHeader))
+                .toBytes();
+
+        BufferedImage actual = PngEncoderTest.readWithImageIO(bytes);
+        assertThat(PngEncoderScanlineUtil.get(actual), is(scanlines));
+    }
+
+    @Test
+    public void rowsArePulledExactlyOnceInOrder() {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(16, 600);
+        final AtomicInteger expectedY = new AtomicInteger();
+        new PngEncoder()
+                .withRowSource(imageHeader, (y, row) -> assertThat(y, is(expectedY.getAndIncrement())))
+                .withPredictorEncoding(true)
+                .toBytes();
+        assertThat(expectedY.get(), is(imageHeader.getHeight()));
+    }
+
+    @Test
+    public void failingRowSourceGivesBackTheDeflater() {
+        // At least one idle deflater, so that the one borrowed by the encode comes from the pool.
+        PngEncoderDeflaterPool.giveBack(5, PngEncoderDeflaterPool.borrow(5));
+        final int idleCount = PngEncoderDeflaterPool.idleCount(5);
+        final PngEncoder encoder = new PngEncoder()
+                .withRowSource(PngEncoderImageHeader.rgb(512, 2048), (y, row) -> {
+                    if (y == 100) {
+                        throw new IOException("Row not available");
+                    }
+                })
+                .withCompressionLevel(5)
+                .withMultiThreadedCompressionEnabled(false);
+
+        assertThrows(UncheckedIOException.class, encoder::toBytes);
+        assertThat(PngEncoderDeflaterPool.idleCount(5), is(idleCount));
+    }
+
+    @Test
+    public void bytesPerRow() {
+        assertThat(PngEncoderImageHeader.gray(10, 1).getBytesPerRow(), is(10));
+        assertThat(PngEncoderImageHeader.grayAlpha(10, 1).getBytesPerRow(), is(20));
+        assertThat(PngEncoderImageHeader.rgb(10, 1).getBytesPerRow(), is(30));
+        assertThat(PngEncoderImageHeader.rgba(10, 1).withBitsPerChannel(16).getBytesPerRow(), is(80));
+    }
+
+    @Test
+    public void invalidImageHeader() {
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderImageHeader.rgb(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderImageHeader.rgb(1, -1));
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderImageHeader.rgb(1, 1).withBitsPerChannel(4));
+    }
+
+    @Test
+    public void imageHeaderWithRowsTooLongForAnArray() {
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderImageHeader.rgba(300_000_000, 1).withBitsPerChannel(16));
+        assertThrows(IllegalArgumentException.class, () -> PngEncoderImageHeader.gray(Integer.MAX_VALUE, 1));
+        assertThat(PngEncoderImageHeader.gray(Integer.MAX_VALUE - 9, 1).getBytesPerRow(), is(Integer.MAX_VALUE - 9));
+    }
+
+    private static void assertThatRowSourceEqualsBufferedImage(PngEncoderBufferedImageType type, int side, boolean predictor) throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(type, side);
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage);
+        final byte[] scanlines = PngEncoderScanlineUtil.get(bufferedImage);
+        final PngEncoderImageHeader imageHeader = metaInfo.channels == 1 ? PngEncoderImageHeader.gray(side, side)
+                : metaInfo.hasAlpha ? PngEncoderImageHeader.rgba(side, side) : PngEncoderImageHeader.rgb(side, side);
+
+        final PngEncoder encoder = new PngEncoder()
+                .withCompressionLevel(1)
+                .withPredictorEncoding(predictor);
+        byte[] expected = encoder.withBufferedImage(bufferedImage).toBytes();
+        byte[] actual = encoder.withRowSource(imageHeader, scanlineRowSource(scanlines, imageHeader)).toBytes();
+
+        assertThat(PngEncoderScanlineUtil.get(PngEncoderTest.readWithImageIO(actual)), is(scanlines));
+        if (metaInfo.colorProfile == null) {
+            assertThat(actual, is(expected));
+        }
+    }
+
+    private static PngEncoderRowSource scanlineRowSource(byte[] scanlines, PngEncoderImageHeader imageHeader) {
+        final int bytesPerRow = imageHeader.getBytesPerRow();
+        return (y, row) -> System.arraycopy(scanlines, y * (bytesPerRow + 1) + 1, row, 0, bytesPerRow);
+    }
+}
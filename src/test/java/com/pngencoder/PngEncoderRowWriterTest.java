@@ -0,0 +1,165 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PngEncoderRowWriterTest {
+    @Test
+    public void writtenRowsEqualBufferedImage() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        final byte[] scanlines = PngEncoderScanlineUtil.get(bufferedImage);
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgba(bufferedImage.getWidth(), bufferedImage.getHeight());
+        final PngEncoder encoder = new PngEncoder().withCompressionLevel(1).withPredictorEncoding(true);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int count;
+        try (PngEncoderRowWriter rowWriter = encoder.openWriter(outputStream, imageHeader)) {
+            for (int y = 0; y < imageHeader.getHeight(); y++) {
+                rowWriter.writeRows(scanlines, y * (imageHeader.getBytesPerRow() + 1) + 1, 1);
+            }
+            count = rowWriter.finish();
+        }
+
+        byte[] expected = encoder.withBufferedImage(bufferedImage).toBytes();
+        assertThat(outputStream.toByteArray(), is(expected));
+        assertThat(count, is(expected.length));
+    }
+
+    @Test
+    public void writeSeveralRowsAtOnce() throws IOException {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.gray(3, 4);
+        final byte[] rows = {
+                0, 1, 2,
+                3, 4, 5,
+                6, 7, 8,
+                9, 10, 11
+        };
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (PngEncoderRowWriter rowWriter = new PngEncoder().openWriter(outputStream, imageHeader)) {
+            rowWriter.writeRows(rows, 0, 3);
+            rowWriter.writeRow(new byte[]{9, 10, 11});
+        }
+
+        BufferedImage actual = PngEncoderTest.readWithImageIO(outputStream.toByteArray());
+        assertThat(actual.getRaster().getSample(2, 3, 0), is(11));
+        assertThat(actual.getRaster().getSample(1, 1, 0), is(4));
+    }
+
+    @Test
+    public void finishBeforeAllRowsThrows() {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(2, 2);
+        PngEncoderRowWriter rowWriter = new PngEncoder().openWriter(new ByteArrayOutputStream(), imageHeader);
+        assertThrows(IllegalStateException.class, rowWriter::finish);
+    }
+
+    @Test
+    public void closeBeforeAllRowsGivesBackTheDeflater() throws IOException {
+        // At least one idle deflater, so that the one borrowed by the writer comes from the pool.
+        PngEncoderDeflaterPool.giveBack(2, PngEncoderDeflaterPool.borrow(2));
+        final int idleCount = PngEncoderDeflaterPool.idleCount(2);
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(2, 2);
+        PngEncoderRowWriter rowWriter = new PngEncoder().withCompressionLevel(2)
+                .openWriter(new ByteArrayOutputStream(), imageHeader);
+        rowWriter.writeRow(new byte[6]);
+        assertThat(PngEncoderDeflaterPool.idleCount(2), is(idleCount - 1));
+
+        rowWriter.close();
+        assertThat(PngEncoderDeflaterPool.idleCount(2), is(idleCount));
+        assertThrows(IllegalStateException.class, () -> rowWriter.writeRow(new byte[6]));
+    }
+
+    @Test
+    public void closeBeforeAllRowsLeavesAnIncompleteImage() throws IOException {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(1024, 4096);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] row = new byte[imageHeader.getBytesPerRow()];
+        try (PngEncoderRowWriter rowWriter = new PngEncoder().openWriter(outputStream, imageHeader)) {
+            for (int y = 0; y < imageHeader.getHeight() / 2; y++) {
+                rowWriter.writeRow(row);
+            }
+        }
+
+        final byte[] bytes = outputStream.toByteArray();
+        final byte[] ending = Arrays.copyOfRange(bytes, bytes.length - PngEncoderLogic.FILE_ENDING.length, bytes.length);
+        assertThat(ending, is(not(PngEncoderLogic.FILE_ENDING)));
+    }
+
+    @Test
+    public void failedFinishGivesBackTheDeflater() throws IOException {
+        PngEncoderDeflaterPool.giveBack(2, PngEncoderDeflaterPool.borrow(2));
+        final int idleCount = PngEncoderDeflaterPool.idleCount(2);
+        final FailingOutputStream outputStream = new FailingOutputStream();
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(2, 2);
+        PngEncoderRowWriter rowWriter = new PngEncoder().withCompressionLevel(2).openWriter(outputStream, imageHeader);
+        rowWriter.writeRow(new byte[6]);
+        rowWriter.writeRow(new byte[6]);
+
+        outputStream.failing = true;
+        assertThrows(IOException.class, rowWriter::finish);
+        assertThat(PngEncoderDeflaterPool.idleCount(2), is(idleCount));
+
+        assertThrows(IllegalStateException.class, rowWriter::finish);
+        rowWriter.close();
+        assertThat(PngEncoderDeflaterPool.idleCount(2), is(idleCount));
+    }
+
+    @Test
+    public void failedMultiThreadedFinishCanNotBeRepeated() throws IOException {
+        final FailingOutputStream outputStream = new FailingOutputStream();
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(1024, 1024);
+        final byte[] row = new byte[imageHeader.getBytesPerRow()];
+        PngEncoderRowWriter rowWriter = new PngEncoder().openWriter(outputStream, imageHeader);
+        for (int y = 0; y < imageHeader.getHeight(); y++) {
+            rowWriter.writeRow(row);
+        }
+
+        outputStream.failing = true;
+        assertThrows(IOException.class, rowWriter::finish);
+        assertThrows(IllegalStateException.class, rowWriter::finish);
+        rowWriter.close();
+    }
+
+    @Test
+    public void writeBeyondHeightThrows() throws IOException {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(2, 1);
+        PngEncoderRowWriter rowWriter = new PngEncoder().openWriter(new ByteArrayOutputStream(), imageHeader);
+        rowWriter.writeRow(new byte[6]);
+        assertThrows(IllegalStateException.class, () -> rowWriter.writeRow(new byte[6]));
+    }
+
+    @Test
+    public void writeTooShortRowThrows() {
+        final PngEncoderImageHeader imageHeader = PngEncoderImageHeader.rgb(2, 1);
+        PngEncoderRowWriter rowWriter = new PngEncoder().openWriter(new ByteArrayOutputStream(), imageHeader);
+        assertThrows(IndexOutOfBoundsException.class, () -> rowWriter.writeRow(new byte[5]));
+    }
+
+    private static final class FailingOutputStream extends OutputStream {
+        private boolean failing;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (failing) {
+                throw new IOException("Disk full");
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failing) {
+                throw new IOException("Disk full");
+            }
+        }
+    }
+}
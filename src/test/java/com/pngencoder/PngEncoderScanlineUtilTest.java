@@ -2,9 +2,21 @@ package com.pngencoder;
 
 import org.junit.jupiter.api.Test;
 
+import javax.imageio.ImageIO;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Random;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
@@ -33,13 +45,14 @@ public class PngEncoderScanlineUtilTest {
         final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_BYTE_INDEXED);
         final byte[] data = PngEncoderScanlineUtil.get(bufferedImage);
         final int actual = data.length;
-        final int expected = bufferedImage.getHeight() * (bufferedImage.getWidth() * 3 + 1);
+        final int expected = bufferedImage.getHeight() * (bufferedImage.getWidth() + 1);
         assertThat(actual, is(expected));
 
         PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage);
         byte[] ihdrHeader = PngEncoderLogic.getIhdrHeader(bufferedImage.getWidth(), bufferedImage.getHeight(), metaInfo);
 
-        assertThat((int)ihdrHeader[9], is(2));
+        assertThat((int)ihdrHeader[8], is(8));
+        assertThat((int)ihdrHeader[9], is(3));
     }
 
     @Test
@@ -59,7 +72,48 @@ public class PngEncoderScanlineUtilTest {
 
     @Test
     public void getBinary() throws IOException {
-        assertThatScanlineOfTestImageEqualsIntRgbOrArgb(PngEncoderBufferedImageType.TYPE_BYTE_BINARY, false);
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_BYTE_BINARY);
+        final byte[] data = PngEncoderScanlineUtil.get(bufferedImage);
+        final int expected = bufferedImage.getHeight() * ((bufferedImage.getWidth() + 7) / 8 + 1);
+        assertThat(data.length, is(expected));
+
+        byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).toBytes();
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+    }
+
+    @Test
+    public void getBinaryRegionNotOnByteBoundary() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_BYTE_BINARY);
+        for (int x = 0; x < 8; x++) {
+            final Rectangle region = new Rectangle(x, 3, 29 + x, 10);
+            byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).withRegion(region).toBytes();
+            PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes),
+                    bufferedImage.getSubimage(region.x, region.y, region.width, region.height));
+        }
+    }
+
+    @Test
+    public void getPackedIndexedWithTwoAndFourBits() throws IOException {
+        for (int bits : new int[]{2, 4}) {
+            final int size = 1 << bits;
+            final byte[] gray = new byte[size];
+            final byte[] alpha = new byte[size];
+            for (int i = 0; i < size; i++) {
+                gray[i] = (byte) (i * 255 / (size - 1));
+                alpha[i] = (byte) (255 - i);
+            }
+            final IndexColorModel colorModel = new IndexColorModel(bits, size, gray, gray, gray, alpha);
+            final BufferedImage bufferedImage = new BufferedImage(21, 9, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+            for (int y = 0; y < bufferedImage.getHeight(); y++) {
+                for (int x = 0; x < bufferedImage.getWidth(); x++) {
+                    bufferedImage.getRaster().setSample(x, y, 0, (x + y) % size);
+                }
+            }
+
+            byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).toBytes();
+            assertThat((int) bytes[8 + 4 + 4 + 8], is(bits));
+            PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(bytes), bufferedImage);
+        }
     }
 
     @Test
@@ -86,6 +140,59 @@ public class PngEncoderScanlineUtilTest {
         assertThat(actual.length * 2 - sourceImage.getHeight(), is(expected.length));
     }
 
+    @Test
+    public void getUshortRgbAndRgba() throws IOException {
+        for (boolean alpha : new boolean[]{false, true}) {
+            final BufferedImage bufferedImage = createUshortImage(alpha, 37, 23);
+            final int channels = alpha ? 4 : 3;
+            assertThat(PngEncoderScanlineUtil.getExtractorKind(bufferedImage),
+                    is(alpha ? PngEncoderScanlineUtil.ExtractorKind.USHORT_RGBA : PngEncoderScanlineUtil.ExtractorKind.USHORT_RGB));
+
+            final Rectangle region = new Rectangle(5, 3, 20, 11);
+            final byte[] data = new byte[region.height * (region.width * channels * 2 + 1)];
+            final PngEncoderScanlineUtil.ByteBufferPNGLineConsumer consumer = new PngEncoderScanlineUtil.ByteBufferPNGLineConsumer(data.length);
+            PngEncoderScanlineUtil.stream(bufferedImage, region.x, region.y, region.width, region.height, consumer);
+
+            int i = 0;
+            for (int y = region.y; y < region.y + region.height; y++) {
+                data[i++] = 0;
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    for (int band = 0; band < channels; band++) {
+                        final int sample = bufferedImage.getRaster().getSample(x, y, band);
+                        data[i++] = (byte) (sample >> 8);
+                        data[i++] = (byte) sample;
+                    }
+                }
+            }
+            assertThat(consumer.bytes, is(data));
+        }
+    }
+
+    @Test
+    public void ushortRgbaWithPredictorEncodingIsLossless() throws IOException {
+        final BufferedImage bufferedImage = createUshortImage(true, 64, 48);
+        final byte[] bytes = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withPredictorEncoding(true)
+                .toBytes();
+
+        final Raster decoded = PngEncoderTest.readWithImageIO(bytes).getRaster();
+        assertThat(decoded.getSampleModel().getSampleSize(0), is(16));
+        assertThat(decoded.getPixels(0, 0, 64, 48, (int[]) null), is(bufferedImage.getRaster().getPixels(0, 0, 64, 48, (int[]) null)));
+    }
+
+    @Test
+    public void ushortSamplesInOtherOrderAreNotTakenForRgba() {
+        final ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+                Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+        final PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_USHORT, 10, 10, 4, 40,
+                new int[]{3, 2, 1, 0});
+        final BufferedImage bufferedImage = new BufferedImage(colorModel, Raster.createWritableRaster(sampleModel, null), false, null);
+
+        assertThat(PngEncoderScanlineUtil.getExtractorKind(bufferedImage), is(PngEncoderScanlineUtil.ExtractorKind.USHORT_GENERIC_DATA_BUFFER_USHORT));
+        assertThat(PngEncoderScanlineUtil.getExtractorKind(createUshortImage(true, 10, 10)), is(PngEncoderScanlineUtil.ExtractorKind.USHORT_RGBA));
+    }
+
     @Test
     public void testCustomIntRGBA() throws IOException {
         final BufferedImage sourceImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_4BYTE_ABGR);
@@ -98,6 +205,73 @@ public class PngEncoderScanlineUtilTest {
         assertThat(actual, is(expected));
     }
 
+    @Test
+    public void streamSlicesWithOneContext() throws IOException {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB);
+        final byte[] expected = PngEncoderScanlineUtil.get(bufferedImage);
+        final PngEncoderScanlineUtil.AbstractScanlineExtractor extractor = PngEncoderEncodingPlan.of(bufferedImage, 0, bufferedImage.getWidth()).extractor;
+        final PngEncoderScanlineUtil.ByteBufferPNGLineConsumer consumer = new PngEncoderScanlineUtil.ByteBufferPNGLineConsumer(expected.length);
+
+        try (PngEncoderScanlineContext context = PngEncoderScanlineContext.open(extractor)) {
+            for (int y = 0; y < bufferedImage.getHeight(); y += 7) {
+                context.stream(y, Math.min(7, bufferedImage.getHeight() - y), consumer);
+            }
+        }
+        assertThat(consumer.bytes, is(expected));
+    }
+
+    @Test
+    public void reusedContextDoesNotLeakRows() throws IOException {
+        final BufferedImage large = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB);
+        final BufferedImage small = new BufferedImage(3, 2, BufferedImage.TYPE_INT_ARGB);
+        final byte[] expected = PngEncoderScanlineUtil.get(small);
+
+        PngEncoderScanlineUtil.get(large);
+        assertThat(PngEncoderScanlineUtil.get(small), is(expected));
+        assertThat(PngEncoderScanlineUtil.get(large), is(PngEncoderScanlineUtil.get(large)));
+    }
+
+    @Test
+    public void fallbackStreamsTallImagesInBands() throws IOException {
+        // An odd number of rows per band, so that the last row of a band is in the other row buffer.
+        final int width = 1001;
+        final int height = 3 * PngEncoderScanlineUtil.FALLBACK_BAND_MAX_PIXELS / width;
+        assertThat(PngEncoderScanlineUtil.FALLBACK_BAND_MAX_PIXELS / width % 2, is(1));
+        final BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_565_RGB);
+        final Random random = new Random(5);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                bufferedImage.setRGB(x, y, random.nextInt());
+            }
+        }
+
+        final byte[] png = new PngEncoder()
+                .withBufferedImage(bufferedImage)
+                .withPredictorEncoding(true)
+                .withMultiThreadedCompressionEnabled(false)
+                .toBytes();
+
+        PngEncoderTestUtil.assertThatImageIsEqual(ImageIO.read(new ByteArrayInputStream(png)), bufferedImage);
+    }
+
+    @Test
+    public void nestedStreamingUsesSeparateContext() throws IOException {
+        final BufferedImage outer = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB);
+        final BufferedImage inner = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB);
+        final byte[] expected = PngEncoderScanlineUtil.get(outer);
+        final byte[] expectedInner = PngEncoderScanlineUtil.get(inner);
+        final PngEncoderScanlineUtil.ByteBufferPNGLineConsumer consumer = new PngEncoderScanlineUtil.ByteBufferPNGLineConsumer(expected.length);
+
+        PngEncoderScanlineUtil.stream(outer, 0, outer.getHeight(), new PngEncoderScanlineUtil.AbstractPNGLineConsumer() {
+            @Override
+            void consume(byte[] currRow, byte[] prevRow) throws IOException {
+                assertThat(PngEncoderScanlineUtil.get(inner), is(expectedInner));
+                consumer.consume(currRow, prevRow);
+            }
+        });
+        assertThat(consumer.bytes, is(expected));
+    }
+
     private void assertThatScanlineOfTestImageEqualsIntRgbOrArgb(PngEncoderBufferedImageType type, boolean alpha) throws IOException {
         final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(type);
         final BufferedImage bufferedImageEnsured = PngEncoderBufferedImageConverter.ensureType(bufferedImage, alpha ? PngEncoderBufferedImageType.TYPE_INT_ARGB : PngEncoderBufferedImageType.TYPE_INT_RGB);
@@ -105,4 +279,19 @@ public class PngEncoderScanlineUtilTest {
         final byte[] expected = PngEncoderScanlineUtil.get(bufferedImageEnsured);
         assertThat(actual, is(expected));
     }
+
+    private static BufferedImage createUshortImage(boolean alpha, int width, int height) {
+        final ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        final WritableRaster raster = colorModel.createCompatibleWritableRaster(width, height);
+        final Random random = new Random(width * 31 + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int band = 0; band < raster.getNumBands(); band++) {
+                    raster.setSample(x, y, band, random.nextInt(0x10000));
+                }
+            }
+        }
+        return new BufferedImage(colorModel, raster, false, null);
+    }
 }
@@ -0,0 +1,80 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderSegmentedOutputStreamTest {
+    @Test
+    public void emptyStream() {
+        final PngEncoderSegmentedOutputStream outputStream = new PngEncoderSegmentedOutputStream();
+        assertThat(outputStream.toByteArray().length, is(0));
+        assertThat(outputStream.toByteBuffer().remaining(), is(0));
+        assertThat(outputStream.toByteBuffers().size(), is(0));
+    }
+
+    @Test
+    public void bytesSpanningManyBlocksAreKeptInOrder() {
+        final Random random = new Random(1);
+        final PngEncoderSegmentedOutputStream outputStream = new PngEncoderSegmentedOutputStream();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        while (expected.size() < 3 * PngEncoderSegmentedOutputStream.MAX_BLOCK_LENGTH) {
+            final byte[] bytes = new byte[random.nextInt(100_000)];
+            random.nextBytes(bytes);
+            outputStream.write(bytes, 0, bytes.length);
+            outputStream.write(bytes.length);
+            expected.write(bytes, 0, bytes.length);
+            expected.write(bytes.length);
+        }
+
+        assertThat(outputStream.size(), is(expected.size()));
+        assertThat(outputStream.toByteArray(), is(expected.toByteArray()));
+        assertThat(toByteArray(outputStream.toByteBuffer()), is(expected.toByteArray()));
+        assertThat(concat(outputStream.toByteBuffers()), is(expected.toByteArray()));
+    }
+
+    @Test
+    public void fileWrittenAtOnceIsNotCopied() {
+        final byte[] bytes = new byte[100_000];
+        final PngEncoderSegmentedOutputStream outputStream = new PngEncoderSegmentedOutputStream();
+        outputStream.write(bytes, 0, bytes.length);
+
+        final byte[] first = outputStream.toByteArray();
+        assertThat(first.length, is(bytes.length));
+        assertThat(outputStream.toByteArray() == first, is(true));
+        assertThat(outputStream.toByteBuffer().array() == first, is(true));
+    }
+
+    @Test
+    public void encodedBuffersEqualEncodedBytes() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 1024);
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(bufferedImage).withCompressionLevel(1);
+        final byte[] expected = encoder.toBytes();
+
+        assertThat(expected.length > PngEncoderSegmentedOutputStream.MAX_BLOCK_LENGTH, is(true));
+        assertThat(toByteArray(encoder.toByteBuffer()), is(expected));
+        assertThat(concat(encoder.toByteBuffers()), is(expected));
+    }
+
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(List<ByteBuffer> buffers) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            final byte[] bytes = toByteArray(buffer);
+            outputStream.write(bytes, 0, bytes.length);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,178 @@
+package com.pngencoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PngEncoderSmallImageEncoderTest {
+    @Test
+    public void smallImageIsWrittenAtOnce() {
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 64);
+        final WriteCountingOutputStream outputStream = new WriteCountingOutputStream();
+
+        final int count = new PngEncoder().withBufferedImage(bufferedImage).toStream(outputStream);
+
+        assertThat(outputStream.writes, is(1));
+        assertThat(outputStream.size(), is(count));
+    }
+
+    @Test
+    public void imageDataIsCompressedLikeTheStreamedImages() throws IOException {
+        // Random pixels hardly compress, so the image data needs several IDAT chunks.
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB, 128);
+        final PngEncoderScanlineUtil.EncodingMetaInfo metaInfo = PngEncoderScanlineUtil.getEncodingMetaInfo(bufferedImage);
+        assertThat(PngEncoderSmallImageEncoder.isSmallImage(metaInfo, 128), is(true));
+
+        final byte[] actual = new PngEncoder().withBufferedImage(bufferedImage).toBytes();
+
+        assertThat(getImageData(actual), is(getImageData(encodeStreamed(bufferedImage, metaInfo))));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(actual), bufferedImage);
+    }
+
+    @Test
+    public void encodesAreIndependentOfEachOther() throws IOException {
+        final BufferedImage large = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 100);
+        final BufferedImage small = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_BYTE_GRAY, 10);
+        final PngEncoder encoder = new PngEncoder().withPredictorEncoding(true);
+        final byte[] expected = encoder.withBufferedImage(small).toBytes();
+
+        encoder.withBufferedImage(large).toBytes();
+
+        assertThat(encoder.withBufferedImage(small).toBytes(), is(expected));
+        PngEncoderTestUtil.assertThatImageIsEqual(PngEncoderTest.readWithImageIO(expected), small);
+    }
+
+    @Test
+    public void encodeNestedInAnotherEncodeOfTheThread() throws IOException {
+        final BufferedImage inner = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_ARGB, 32);
+        final PngEncoder innerEncoder = new PngEncoder().withBufferedImage(inner);
+        final byte[] expectedInner = innerEncoder.toBytes();
+        final PngEncoder outerEncoder = new PngEncoder().withRowSource(PngEncoderImageHeader.gray(16, 16), (y, row) -> {
+            Arrays.fill(row, (byte) y);
+            assertThat(innerEncoder.toBytes(), is(expectedInner));
+        });
+
+        final byte[] outer = outerEncoder.toBytes();
+
+        final BufferedImage actual = PngEncoderTest.readWithImageIO(outer);
+        for (int y = 0; y < 16; y++) {
+            assertThat(actual.getRaster().getSample(3, y, 0), is(y));
+        }
+        assertThat(outerEncoder.toBytes(), is(outer));
+    }
+
+    @Test
+    public void fileArrayGrownByLargeChunksIsNotRetained() {
+        final ICC_Profile profile = createLargeProfile(2 * PngEncoderSmallImageEncoder.MAX_RETAINED_BYTES);
+        final ComponentColorModel colorModel = new ComponentColorModel(new ICC_ColorSpace(profile), false, false,
+                Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        final BufferedImage bufferedImage = new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(16, 16),
+                false, null);
+
+        final byte[] bytes = new PngEncoder().withBufferedImage(bufferedImage).toBytes();
+
+        assertThat(bytes.length > PngEncoderSmallImageEncoder.MAX_RETAINED_BYTES, is(true));
+        assertThat(PngEncoderSmallImageEncoder.getRetainedBytes() <= PngEncoderSmallImageEncoder.MAX_RETAINED_BYTES, is(true));
+    }
+
+    /**
+     * The linear RGB profile with an extra private tag of noise, which does not compress.
+     */
+    private static ICC_Profile createLargeProfile(int noiseLength) {
+        final byte[] data = ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB).getData();
+        final ByteBuffer in = ByteBuffer.wrap(data);
+        final int tagCount = in.getInt(128);
+        final int tagTableEnd = 132 + tagCount * 12;
+        final byte[] noise = new byte[noiseLength];
+        new Random(42).nextBytes(noise);
+        final int tagLength = 12 + noise.length;
+
+        final ByteBuffer out = ByteBuffer.allocate(data.length + 12 + tagLength);
+        out.put(data, 0, tagTableEnd);
+        out.putInt(0, out.capacity());
+        out.putInt(128, tagCount + 1);
+        for (int i = 0; i < tagCount; i++) {
+            // The tag data moves behind the new entry of the tag table.
+            final int offsetPosition = 132 + i * 12 + 4;
+            out.putInt(offsetPosition, in.getInt(offsetPosition) + 12);
+        }
+        out.putInt(0x7a7a7a7a).putInt(data.length + 12).putInt(tagLength);
+        out.put(data, tagTableEnd, data.length - tagTableEnd);
+        out.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(0).putInt(1).put(noise);
+        return ICC_Profile.getInstance(out.array());
+    }
+
+    /**
+     * Encodes the image the way images too large for the fast path are encoded without multithreading.
+     */
+    private static byte[] encodeStreamed(BufferedImage bufferedImage, PngEncoderScanlineUtil.EncodingMetaInfo metaInfo) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PngEncoderLogic.writeHeaderChunks(outputStream, bufferedImage.getWidth(), bufferedImage.getHeight(), metaInfo,
+                PngEncoderAncillaryChunks.NONE);
+        final PngEncoderIdatChunksOutputStream idatChunksOutputStream = new PngEncoderIdatChunksOutputStream(outputStream);
+        final DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(idatChunksOutputStream,
+                new Deflater(PngEncoder.DEFAULT_COMPRESSION_LEVEL));
+        PngEncoderScanlineUtil.stream(bufferedImage, 0, bufferedImage.getHeight(),
+                new PngEncoderScanlineUtil.OutputStreamPNGLineConsumer(deflaterOutputStream));
+        deflaterOutputStream.finish();
+        deflaterOutputStream.flush();
+        outputStream.write(PngEncoderLogic.FILE_ENDING);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Returns the data of all IDAT chunks, checking that none of them is larger than the chunks of
+     * {@link PngEncoderIdatChunksOutputStream}.
+     */
+    private static byte[] getImageData(byte[] png) {
+        final ByteBuffer buffer = ByteBuffer.wrap(png, PngEncoderLogic.FILE_BEGINNING.length, png.length - PngEncoderLogic.FILE_BEGINNING.length);
+        final ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+        int idatChunks = 0;
+        while (buffer.hasRemaining()) {
+            final int length = buffer.getInt();
+            final byte[] type = new byte[4];
+            buffer.get(type);
+            if (Arrays.equals(type, PngEncoderIdatChunksOutputStream.IDAT_BYTES)) {
+                assertThat(length <= PngEncoderIdatChunksOutputStream.DEFAULT_BUFFER_LENGTH, is(true));
+                imageData.write(png, buffer.position(), length);
+                idatChunks++;
+            }
+            buffer.position(buffer.position() + length + 4);
+        }
+        assertThat(idatChunks > 1, is(true));
+        return imageData.toByteArray();
+    }
+
+    private static final class WriteCountingOutputStream extends ByteArrayOutputStream {
+        private int writes;
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void write(int b) {
+            writes++;
+            super.write(b);
+        }
+    }
+}
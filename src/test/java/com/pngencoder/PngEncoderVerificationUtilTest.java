@@ -2,6 +2,8 @@ package com.pngencoder;
 
 import org.junit.jupiter.api.Test;
 
+import java.awt.Rectangle;
+
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class PngEncoderVerificationUtilTest {
@@ -34,4 +36,21 @@ public class PngEncoderVerificationUtilTest {
     public void verifyChunkTypeRejectsLorem() {
         assertThrows(IllegalArgumentException.class, () -> PngEncoderVerificationUtil.verifyChunkType("Lorem"));
     }
+
+    @Test
+    public void verifyRegionAcceptsWholeImage() {
+        PngEncoderVerificationUtil.verifyRegion(new Rectangle(0, 0, 100, 50), 100, 50);
+    }
+
+    @Test
+    public void verifyRegionRejectsWidthOverflowingPastTheImage() {
+        assertThrows(IllegalArgumentException.class,
+                () -> PngEncoderVerificationUtil.verifyRegion(new Rectangle(10, 0, Integer.MAX_VALUE, 10), 100, 50));
+    }
+
+    @Test
+    public void verifyRegionRejectsHeightOverflowingPastTheImage() {
+        assertThrows(IllegalArgumentException.class,
+                () -> PngEncoderVerificationUtil.verifyRegion(new Rectangle(0, 10, 10, Integer.MAX_VALUE), 100, 50));
+    }
 }
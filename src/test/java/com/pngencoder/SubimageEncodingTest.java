@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -18,7 +19,9 @@ import java.util.Hashtable;
 import java.util.Objects;
 import javax.imageio.ImageIO;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class SubimageEncodingTest {
     @Test
@@ -36,6 +39,52 @@ public class SubimageEncodingTest {
         }
     }
 
+    @Test
+    public void testRegionEncoding() throws IOException {
+        PngEncoderBufferedImageType[] typesToTest = new PngEncoderBufferedImageType[]{
+                PngEncoderBufferedImageType.TYPE_BYTE_GRAY, PngEncoderBufferedImageType.TYPE_INT_RGB,
+                PngEncoderBufferedImageType.TYPE_INT_ARGB, PngEncoderBufferedImageType.TYPE_INT_BGR,
+                PngEncoderBufferedImageType.TYPE_3BYTE_BGR, PngEncoderBufferedImageType.TYPE_4BYTE_ABGR,
+                PngEncoderBufferedImageType.TYPE_USHORT_GRAY, PngEncoderBufferedImageType.TYPE_BYTE_INDEXED
+        };
+
+        for (PngEncoderBufferedImageType type : typesToTest) {
+            final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(type);
+            validateRegion(type, bufferedImage, new Rectangle(10, 20, 50, 40));
+            validateRegion(type, bufferedImage.getSubimage(5, 5, 100, 100), new Rectangle(10, 20, 50, 40));
+        }
+    }
+
+    @Test
+    public void testRegionEncodingMultiThreaded() throws IOException {
+        // Large enough for the region to be encoded in several slices and segments.
+        final BufferedImage bufferedImage = PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_BYTE_INDEXED, 1024);
+        validateRegion(PngEncoderBufferedImageType.TYPE_BYTE_INDEXED, bufferedImage, new Rectangle(100, 50, 900, 950));
+    }
+
+    @Test
+    public void testRegionOutsideImage() {
+        final PngEncoder encoder = new PngEncoder().withBufferedImage(PngEncoderTestUtil.createTestImage(PngEncoderBufferedImageType.TYPE_INT_RGB));
+        assertThrows(IllegalArgumentException.class, () -> encoder.withRegion(new Rectangle(200, 200, 100, 10)).toBytes());
+        assertThrows(IllegalArgumentException.class, () -> encoder.withRegion(new Rectangle(-1, 0, 10, 10)).toBytes());
+        assertThrows(IllegalArgumentException.class, () -> encoder.withRegion(new Rectangle(0, 0, 0, 10)).toBytes());
+    }
+
+    private void validateRegion(PngEncoderBufferedImageType type, BufferedImage bufferedImage, Rectangle region) throws IOException {
+        final BufferedImage subimage = bufferedImage.getSubimage(region.x, region.y, region.width, region.height);
+        PngEncoder plainCompressor = new PngEncoder().withCompressionLevel(1).withMultiThreadedCompressionEnabled(false);
+        for (PngEncoder encoder : new PngEncoder[]{
+                plainCompressor,
+                plainCompressor.withPredictorEncoding(true),
+                plainCompressor.withMultiThreadedCompressionEnabled(true),
+                plainCompressor.withMultiThreadedCompressionEnabled(true).withPredictorEncoding(true)
+        }) {
+            byte[] expected = encoder.withBufferedImage(subimage).toBytes();
+            byte[] actual = encoder.withBufferedImage(bufferedImage).withRegion(region).toBytes();
+            assertArrayEquals(expected, actual, "Region encoding differs from subimage encoding with type " + type);
+        }
+    }
+
     private void testImageEncoders(PngEncoderBufferedImageType type, BufferedImage bufferedImage) throws IOException {
         PngEncoder plainCompressor = new PngEncoder().withPredictorEncoding(false).withCompressionLevel(0).withMultiThreadedCompressionEnabled(false);
         PngEncoder predictorCompressor = plainCompressor.withPredictorEncoding(true);